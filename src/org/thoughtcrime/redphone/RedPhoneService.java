@@ -40,6 +40,7 @@ import org.thoughtcrime.redphone.call.InitiatingCallManager;
 import org.thoughtcrime.redphone.call.LockManager;
 import org.thoughtcrime.redphone.call.ResponderCallManager;
 import org.thoughtcrime.redphone.crypto.zrtp.SASInfo;
+import org.thoughtcrime.redphone.crypto.zrtp.ZRTPKeyPairPool;
 import org.thoughtcrime.redphone.pstn.CallStateView;
 import org.thoughtcrime.redphone.pstn.IncomingPstnCallListener;
 import org.thoughtcrime.redphone.signaling.OtpCounterProvider;
@@ -169,6 +170,8 @@ public class RedPhoneService extends Service implements CallStateListener, CallS
     this.state            = STATE_IDLE;
     this.zid              = getZID();
     this.lockManager      = new LockManager(this);
+
+    ZRTPKeyPairPool.getInstance().prefill();
   }
 
   private void registerUncaughtExceptionHandler() {
@@ -42,6 +42,17 @@ public class SecureRtpPacket extends RtpPacket {
     super(packet.getPacket(), packet.getPacketLength());
   }
 
+  public int getMacOffset() {
+    return packetLength - MAC_SIZE;
+  }
+
+  public int getMacLength() {
+    return MAC_SIZE;
+  }
+
+  /**
+   * Copies the MAC into a new array. Use {@link #getMacOffset()} to read it in place.
+   */
   public byte[] getMac() {
     byte[] mac = new byte[MAC_SIZE];
     System.arraycopy(data, packetLength - MAC_SIZE, mac, 0, mac.length);
@@ -58,6 +69,11 @@ public class SecureRtpPacket extends RtpPacket {
     super.packetLength += MAC_SIZE;
   }
 
+  @Override
+  public int getPayloadLength() {
+    return packetLength - HEADER_LENGTH - MAC_SIZE;
+  }
+
   @Override
   public byte[] getPayload() {
     int payloadLength = packetLength - HEADER_LENGTH - MAC_SIZE;
@@ -62,6 +62,13 @@ public class HandshakePacket extends RtpPacket {
 
   private static final int ZRTP_CRC_LENGTH = 4;
 
+  private static final ThreadLocal<CRC32> crc32 = new ThreadLocal<CRC32>() {
+    @Override
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
   public HandshakePacket(RtpPacket packet) {
     super(packet.getPacket(), packet.getPacketLength());
     fixOffsetsForHeaderBug();
@@ -137,14 +144,14 @@ public class HandshakePacket extends RtpPacket {
   protected void verifyMac(byte[] key, int macOffset, int messageLength, byte[] subhash)
       throws InvalidPacketException
   {
-    byte[] digest          = calculateMac(key, messageLength);
-    byte[] truncatedDigest = new byte[8];
-    byte[] messageDigest   = new byte[8];
+    byte[] digest = calculateMac(key, messageLength);
+    int    result = 0;
 
-    System.arraycopy(digest, 0, truncatedDigest, 0, truncatedDigest.length);
-    System.arraycopy(this.data, macOffset, messageDigest, 0, messageDigest.length);
+    for (int i=0;i<8;i++) {
+      result |= digest[i] ^ this.data[macOffset + i];
+    }
 
-    if (!Arrays.equals(truncatedDigest, messageDigest))
+    if (result != 0)
       throw new InvalidPacketException("Bad MAC!");
 
     if (!verifySubHash(key, subhash))
@@ -162,7 +169,8 @@ public class HandshakePacket extends RtpPacket {
   }
 
   private long calculateCRC(byte[] data, int packetLength) {
-    CRC32 crc = new CRC32();
+    CRC32 crc = crc32.get();
+    crc.reset();
     crc.update(data, 0, packetLength-4);
     return crc.getValue();
   }
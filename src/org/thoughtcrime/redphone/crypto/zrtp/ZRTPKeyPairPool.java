@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.redphone.crypto.zrtp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Keeps a freshly generated key pair of each ZRTP key agreement type ready, so
+ * that call setup doesn't have to wait on a 3072-bit DH key generation.
+ *
+ * Each pair is handed out exactly once. Taking one schedules a replacement on a
+ * background thread, and if the pool is empty the caller generates its own.
+ */
+public class ZRTPKeyPairPool {
+  static {
+    Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
+  }
+
+  private static final String TAG = ZRTPKeyPairPool.class.getSimpleName();
+
+  private static final ZRTPKeyPairPool instance = new ZRTPKeyPairPool();
+
+  public static ZRTPKeyPairPool getInstance() {
+    return instance;
+  }
+
+  private final BlockingQueue<KeyPair> dh3kKeyPairs = new ArrayBlockingQueue<>(1);
+  private final BlockingQueue<KeyPair> ec25KeyPairs = new ArrayBlockingQueue<>(1);
+  private final ExecutorService        executor     = Executors.newSingleThreadExecutor();
+
+  private ZRTPKeyPairPool() {}
+
+  /**
+   * Generates any missing key pairs in the background.
+   */
+  public void prefill() {
+    refillDH3k();
+    refillEC25();
+  }
+
+  public KeyPair getDH3kKeyPair() {
+    KeyPair keyPair = dh3kKeyPairs.poll();
+
+    if (keyPair == null) {
+      Log.w(TAG, "DH3K pool empty, generating inline...");
+      keyPair = generateDH3kKeyPair();
+    }
+
+    refillDH3k();
+    return keyPair;
+  }
+
+  public KeyPair getEC25KeyPair() {
+    KeyPair keyPair = ec25KeyPairs.poll();
+
+    if (keyPair == null) {
+      Log.w(TAG, "EC25 pool empty, generating inline...");
+      keyPair = generateEC25KeyPair();
+    }
+
+    refillEC25();
+    return keyPair;
+  }
+
+  private void refillDH3k() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (dh3kKeyPairs.remainingCapacity() > 0) {
+          long start = SystemClock.elapsedRealtime();
+          dh3kKeyPairs.offer(generateDH3kKeyPair());
+          Log.w(TAG, "Generated DH3K key pair in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+      }
+    });
+  }
+
+  private void refillEC25() {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (ec25KeyPairs.remainingCapacity() > 0) {
+          ec25KeyPairs.offer(generateEC25KeyPair());
+        }
+      }
+    });
+  }
+
+  private static KeyPair generateDH3kKeyPair() {
+    try {
+      KeyPairGenerator kg    = KeyPairGenerator.getInstance("DH");
+      DHParameterSpec dhSpec = new DHParameterSpec(ZRTPSocket.PRIME, ZRTPSocket.GENERATOR);
+      kg.initialize(dhSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new IllegalArgumentException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private static KeyPair generateEC25KeyPair() {
+    try {
+      KeyPairGenerator kg       = KeyPairGenerator.getInstance("ECDH", "SC");
+      ECGenParameterSpec ecSpec = new ECGenParameterSpec("secp256r1");
+      kg.initialize(ecSpec);
+
+      return kg.generateKeyPair();
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new AssertionError(nsae);
+    } catch (NoSuchProviderException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
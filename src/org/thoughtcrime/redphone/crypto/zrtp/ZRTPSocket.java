@@ -18,6 +18,7 @@
 package org.thoughtcrime.redphone.crypto.zrtp;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.spongycastle.jce.interfaces.ECPublicKey;
@@ -28,16 +29,10 @@ import org.thoughtcrime.redphone.util.Conversions;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.DatagramSocket;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.Security;
-import java.security.spec.ECGenParameterSpec;
 
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 
 /**
  * The base ZRTP socket implementation.
@@ -46,6 +41,8 @@ import javax.crypto.spec.DHParameterSpec;
  * parts in the ZRTP handshake.
  *
  * This is fundamentally just a simple state machine which iterates through the ZRTP handshake.
+ * The local key pair is only taken from the ZRTPKeyPairPool once the key agreement type has
+ * been negotiated, and the time spent in each handshake state is logged on completion.
  *
  * @author Moxie Marlinspike
  *
@@ -88,8 +85,12 @@ public abstract class ZRTPSocket {
   protected final String remoteNumber;
 
   private HandshakePacket lastPacket;
-  private KeyPair dh3kKeyPair;
-  private KeyPair ec25KeyPair;
+  private KeyPair keyPair;
+
+  private final long          startTime     = SystemClock.elapsedRealtime();
+  private final StringBuilder stateTimings  = new StringBuilder();
+  private       long          stateTime     = startTime;
+  private       long          keyPairMillis = 0;
 
   protected HashChain hashChain;
   protected MasterSecret masterSecret;
@@ -102,8 +103,6 @@ public abstract class ZRTPSocket {
     this.remoteNumber      = remoteNumber;
     this.socket            = socket;
     this.state             = initialState;
-    this.dh3kKeyPair       = initializeDH3kKeys();
-    this.ec25KeyPair       = initializeEC25Keys();
     this.hashChain         = new HashChain();
 
     this.socket.setTimeout(RETRANSMIT_INTERVAL_MILLIS);
@@ -141,21 +140,29 @@ public abstract class ZRTPSocket {
   }
 
   protected KeyPair getKeyPair() {
-    switch (getKeyAgreementType()) {
-    case KA_TYPE_EC25: return ec25KeyPair;
-    case KA_TYPE_DH3K: return dh3kKeyPair;
-    default:           throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+    if (keyPair == null) {
+      long start = SystemClock.elapsedRealtime();
+
+      switch (getKeyAgreementType()) {
+      case KA_TYPE_EC25: keyPair = ZRTPKeyPairPool.getInstance().getEC25KeyPair(); break;
+      case KA_TYPE_DH3K: keyPair = ZRTPKeyPairPool.getInstance().getDH3kKeyPair(); break;
+      default:           throw new AssertionError("Unknown KA type: " + getKeyAgreementType());
+      }
+
+      keyPairMillis = SystemClock.elapsedRealtime() - start;
     }
+
+    return keyPair;
   }
 
   private byte[] getPublicDH3kKey() {
     byte[] temp = new byte[384];
-    Conversions.bigIntegerToByteArray(temp, ((DHPublicKey)dh3kKeyPair.getPublic()).getY());
+    Conversions.bigIntegerToByteArray(temp, ((DHPublicKey)getKeyPair().getPublic()).getY());
     return temp;
   }
 
   private byte[] getPublicEC25Key() {
-    ECPublicKey publicKey = (ECPublicKey)ec25KeyPair.getPublic();
+    ECPublicKey publicKey = (ECPublicKey)getKeyPair().getPublic();
     ECPoint q             = publicKey.getQ();
 
     byte[] x = new byte[32];
@@ -193,7 +200,30 @@ public abstract class ZRTPSocket {
   }
 
   protected void setState(int state) {
+    long now = SystemClock.elapsedRealtime();
+
+    stateTimings.append(getStateName(this.state)).append(": ").append(now - stateTime).append("ms, ");
+    stateTime  = now;
     this.state = state;
+
+    if (state == HANDSHAKE_COMPLETE) {
+      Log.w("ZRTPSocket", "Time to SAS: " + (now - startTime) + "ms (" + stateTimings +
+                          "key pair: " + keyPairMillis + "ms)");
+    }
+  }
+
+  private static String getStateName(int state) {
+    switch (state) {
+    case EXPECTING_HELLO:       return "hello";
+    case EXPECTING_HELLO_ACK:   return "hello ack";
+    case EXPECTING_COMMIT:      return "commit";
+    case EXPECTING_DH_1:        return "dh1";
+    case EXPECTING_DH_2:        return "dh2";
+    case EXPECTING_CONFIRM_ONE: return "confirm1";
+    case EXPECTING_CONFIRM_TWO: return "confirm2";
+    case EXPECTING_CONFIRM_ACK: return "confirm ack";
+    default:                    return String.valueOf(state);
+    }
   }
 
   protected void sendFreshPacket(HandshakePacket packet) {
@@ -230,36 +260,6 @@ public abstract class ZRTPSocket {
     sendPacket(lastPacket);
   }
 
-  private KeyPair initializeDH3kKeys() {
-    try {
-      KeyPairGenerator kg    = KeyPairGenerator.getInstance("DH");
-      DHParameterSpec dhSpec = new DHParameterSpec(PRIME, GENERATOR);
-      kg.initialize(dhSpec);
-
-      return kg.generateKeyPair();
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new IllegalArgumentException(e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalArgumentException(e);
-    }
-  }
-
-  private KeyPair initializeEC25Keys() {
-    try {
-      KeyPairGenerator kg       = KeyPairGenerator.getInstance("ECDH", "SC");
-      ECGenParameterSpec ecSpec = new ECGenParameterSpec("secp256r1");
-      kg.initialize(ecSpec);
-
-      return kg.generateKeyPair();
-    } catch (InvalidAlgorithmParameterException e) {
-      throw new AssertionError(e);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
-    } catch (NoSuchProviderException e) {
-      throw new AssertionError(e);
-    }
-  }
-
   private boolean isRetransmitTime() {
     return (System.currentTimeMillis() - transmitStartTime >= retransmitInterval);
   }
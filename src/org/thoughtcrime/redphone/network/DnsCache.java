@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.redphone.network;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches relay host resolutions so that call setup doesn't wait on a DNS lookup
+ * every time. An expired entry is still used if the host can't be resolved again.
+ */
+public class DnsCache {
+
+  private static final String TAG = DnsCache.class.getSimpleName();
+
+  private static final long TTL_MILLIS = 5 * 60 * 1000;
+
+  private static final DnsCache instance = new DnsCache(TTL_MILLIS);
+
+  public static DnsCache getInstance() {
+    return instance;
+  }
+
+  private final Map<String, Entry> entries = new HashMap<>();
+  private final long               ttlMillis;
+
+  DnsCache(long ttlMillis) {
+    this.ttlMillis = ttlMillis;
+  }
+
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    Entry entry;
+
+    synchronized (this) {
+      entry = entries.get(host);
+    }
+
+    if (entry != null && entry.expiration > System.currentTimeMillis()) {
+      return entry.addresses;
+    }
+
+    try {
+      InetAddress[] addresses = InetAddress.getAllByName(host);
+
+      synchronized (this) {
+        entries.put(host, new Entry(addresses, System.currentTimeMillis() + ttlMillis));
+      }
+
+      return addresses;
+    } catch (UnknownHostException e) {
+      if (entry == null) throw e;
+
+      Log.w(TAG, "Resolution failed, using expired addresses for " + host);
+      return entry.addresses;
+    }
+  }
+
+  private static class Entry {
+    private final InetAddress[] addresses;
+    private final long          expiration;
+
+    private Entry(InetAddress[] addresses, long expiration) {
+      this.addresses  = addresses;
+      this.expiration = expiration;
+    }
+  }
+}
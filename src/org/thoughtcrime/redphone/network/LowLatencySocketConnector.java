@@ -27,12 +27,17 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A multi-connect utility class.  Given a list of addresses, connect
- * to all of them simultaneously, and return the connection that completes
- * first.  Used as a client-centric form of server failover and discovery
- * of low-latency paths.
+ * to them in order of their previous connect times, starting the next
+ * attempt whenever the current ones haven't completed within a short
+ * stagger interval, and return the connection that completes first.
+ * Used as a client-centric form of server failover and discovery of
+ * low-latency paths.
+ *
+ * Connect times and failures are recorded in the {@link RelayLatencyTable}.
  *
  * @author Moxie Marlinspike
  *
@@ -42,59 +47,154 @@ public class LowLatencySocketConnector {
   private static final String TAG = LowLatencySocketConnector.class.getSimpleName();
 
   private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int STAGGER_MILLIS         = 250;
 
   public static Socket connect(InetAddress[] addresses, int port) throws IOException {
-    Selector selector                   = Selector.open();
-    SocketChannel[] channels            = constructSocketChannels(selector, addresses.length);
-    InetSocketAddress[] socketAddresses = constructSocketAddresses(addresses, port);
+    return connect(constructSocketAddresses(addresses, port), RelayLatencyTable.getInstance(), STAGGER_MILLIS);
+  }
 
-    assert(channels.length == socketAddresses.length);
+  static Socket connect(InetSocketAddress[] addresses, RelayLatencyTable latencyTable, long staggerMillis)
+      throws IOException
+  {
+    List<InetSocketAddress> ranked        = latencyTable.rank(addresses);
+    Selector                selector      = Selector.open();
+    long                    startTime     = System.currentTimeMillis();
+    long                    deadline      = startTime + CONNECT_TIMEOUT_MILLIS;
+    long                    nextAttemptAt = startTime;
+    int                     attempts      = 0;
 
-    connectChannels(channels, socketAddresses);
+    try {
+      while (true) {
+        long now = System.currentTimeMillis();
 
-    return waitForFirstChannel(selector);
-  }
+        if (attempts < ranked.size() && (now >= nextAttemptAt || !hasValidKeys(selector))) {
+          SelectionKey key = startAttempt(selector, ranked.get(attempts), ++attempts, latencyTable);
+
+          if (key != null && ((SocketChannel)key.channel()).isConnected()) {
+            return finishConnection(selector, key, latencyTable, startTime, ranked.size());
+          }
+
+          nextAttemptAt = now + staggerMillis;
+          continue;
+        }
+
+        if (!hasValidKeys(selector)) {
+          throw new IOException("All connections failed!");
+        }
+
+        if (now >= deadline) {
+          recordPendingFailures(selector, latencyTable);
+          throw new IOException("Connect timed out!");
+        }
 
-  private static Socket waitForFirstChannel(Selector selector) throws IOException {
-    while (hasValidKeys(selector)) {
-      int readyCount = selector.select(CONNECT_TIMEOUT_MILLIS);
+        long timeout = deadline - now;
 
-      if (readyCount == 0)
-        throw new IOException("Connect timed out!");
+        if (attempts < ranked.size()) {
+          timeout = Math.min(timeout, nextAttemptAt - now);
+        }
+
+        selector.select(Math.max(1, timeout));
 
-      Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 
-      while (iterator.hasNext()) {
-        SelectionKey key = iterator.next();
-        iterator.remove();
+        while (iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
 
-        if (!key.isValid()) continue;
+          if (!key.isValid()) continue;
 
-        SocketChannel channel = (SocketChannel)key.channel();
-        boolean connected     = isChannelConnected(channel);
+          SocketChannel channel = (SocketChannel)key.channel();
 
-        if (connected) {
-          closeAllButChannel(selector, channel);
-          return channel.socket();
-        } else {
-          key.cancel();
+          if (isChannelConnected(channel)) {
+            return finishConnection(selector, key, latencyTable, startTime, ranked.size());
+          } else {
+            latencyTable.recordFailure(((Attempt)key.attachment()).address);
+            key.cancel();
+            closeQuietly(channel);
+            nextAttemptAt = System.currentTimeMillis();
+          }
         }
       }
+    } finally {
+      if (selector.isOpen()) {
+        closeAllButChannel(selector, null);
+        selector.close();
+      }
+    }
+  }
+
+  private static Socket finishConnection(Selector selector, SelectionKey key,
+                                         RelayLatencyTable latencyTable,
+                                         long startTime, int candidates)
+      throws IOException
+  {
+    SocketChannel channel       = (SocketChannel)key.channel();
+    Attempt       attempt       = (Attempt)key.attachment();
+    long          connectMillis = System.currentTimeMillis() - attempt.startTime;
+
+    latencyTable.recordSuccess(attempt.address, connectMillis);
+
+    Log.w(TAG, "Connected to " + attempt.address + " in " + connectMillis + "ms, " +
+               (System.currentTimeMillis() - startTime) + "ms total, attempt " +
+               attempt.index + " of " + candidates);
+
+    closeAllButChannel(selector, channel);
+    selector.close();
+    channel.configureBlocking(true);
+
+    return channel.socket();
+  }
+
+  private static SelectionKey startAttempt(Selector selector, InetSocketAddress address,
+                                           int index, RelayLatencyTable latencyTable)
+  {
+    SocketChannel channel = null;
+
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+
+      SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT,
+                                          new Attempt(address, index, System.currentTimeMillis()));
+      channel.connect(address);
+
+      return key;
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+      latencyTable.recordFailure(address);
+
+      if (channel != null) {
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null) key.cancel();
+        closeQuietly(channel);
+      }
+
+      return null;
     }
+  }
 
-    throw new IOException("All connections failed!");
+  private static void recordPendingFailures(Selector selector, RelayLatencyTable latencyTable) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.isValid()) {
+        latencyTable.recordFailure(((Attempt)key.attachment()).address);
+      }
+    }
   }
 
   private static void closeAllButChannel(Selector selector, SocketChannel channel) {
     for (SelectionKey key : selector.keys()) {
       if (key.channel() != channel) {
-        try {
-          key.channel().close();
-        } catch (IOException ioe) {}
+        closeQuietly((SocketChannel)key.channel());
       }
     }
   }
 
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ioe) {}
+  }
+
   private static boolean hasValidKeys(Selector selector) {
     for (SelectionKey key : selector.keys())
       if (key.isValid())
@@ -112,14 +212,6 @@ public class LowLatencySocketConnector {
     }
   }
 
-  private static void connectChannels(SocketChannel[] channels, InetSocketAddress[] addresses)
-      throws IOException
-  {
-    for (int i=0;i<channels.length;i++) {
-      channels[i].connect(addresses[i]);
-    }
-  }
-
   private static InetSocketAddress[] constructSocketAddresses(InetAddress[] addresses, int port) {
     InetSocketAddress[] socketAddresses = new InetSocketAddress[addresses.length];
 
@@ -130,18 +222,16 @@ public class LowLatencySocketConnector {
     return socketAddresses;
   }
 
-  private static SocketChannel[] constructSocketChannels(Selector selector, int count)
-      throws IOException
-  {
-    SocketChannel[] channels = new SocketChannel[count];
+  private static class Attempt {
+    private final InetSocketAddress address;
+    private final int               index;
+    private final long              startTime;
 
-    for (int i=0;i<channels.length;i++) {
-      channels[i] = SocketChannel.open();
-      channels[i].configureBlocking(false);
-      channels[i].register(selector, SelectionKey.OP_CONNECT);
+    private Attempt(InetSocketAddress address, int index, long startTime) {
+      this.address   = address;
+      this.index     = index;
+      this.startTime = startTime;
     }
-
-    return channels;
   }
 
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 Open Whisper Systems
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.thoughtcrime.redphone.network;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers how quickly each relay address accepted a connection, as a moving
+ * average of connect times, and backs off addresses that recently failed.
+ * {@link LowLatencySocketConnector} consults it to decide which relay to try first.
+ */
+public class RelayLatencyTable {
+
+  private static final double SMOOTHING           = 0.25;
+  private static final long   BASE_BACKOFF_MILLIS = 5 * 1000;
+  private static final long   MAX_BACKOFF_MILLIS  = 5 * 60 * 1000;
+
+  private static final RelayLatencyTable instance = new RelayLatencyTable();
+
+  public static RelayLatencyTable getInstance() {
+    return instance;
+  }
+
+  private final Map<InetSocketAddress, Entry> entries = new HashMap<>();
+
+  RelayLatencyTable() {}
+
+  /**
+   * Orders addresses by their average connect time, with addresses that haven't
+   * been tried yet after those that have, and addresses that are backing off last.
+   */
+  public synchronized List<InetSocketAddress> rank(InetSocketAddress[] addresses) {
+    final long                    now    = System.currentTimeMillis();
+    final List<InetSocketAddress> ranked = new ArrayList<>(addresses.length);
+
+    Collections.addAll(ranked, addresses);
+    Collections.sort(ranked, new Comparator<InetSocketAddress>() {
+      @Override
+      public int compare(InetSocketAddress lhs, InetSocketAddress rhs) {
+        return Double.compare(getScore(lhs, now), getScore(rhs, now));
+      }
+    });
+
+    return ranked;
+  }
+
+  public synchronized void recordSuccess(InetSocketAddress address, long connectMillis) {
+    Entry entry = getEntry(address);
+
+    if (entry.averageMillis < 0) entry.averageMillis = connectMillis;
+    else                         entry.averageMillis += SMOOTHING * (connectMillis - entry.averageMillis);
+
+    entry.failures   = 0;
+    entry.retryAfter = 0;
+  }
+
+  public synchronized void recordFailure(InetSocketAddress address) {
+    Entry entry   = getEntry(address);
+    long  backoff = BASE_BACKOFF_MILLIS << Math.min(entry.failures, 16);
+
+    entry.failures++;
+    entry.retryAfter = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF_MILLIS);
+  }
+
+  synchronized double getAverageMillis(InetSocketAddress address) {
+    Entry entry = entries.get(address);
+    return entry == null ? -1 : entry.averageMillis;
+  }
+
+  synchronized boolean isBackingOff(InetSocketAddress address) {
+    Entry entry = entries.get(address);
+    return entry != null && entry.retryAfter > System.currentTimeMillis();
+  }
+
+  private double getScore(InetSocketAddress address, long now) {
+    Entry entry = entries.get(address);
+
+    if      (entry == null)           return MAX_BACKOFF_MILLIS;
+    else if (entry.retryAfter > now)  return MAX_BACKOFF_MILLIS * 2 + entry.retryAfter - now;
+    else if (entry.averageMillis < 0) return MAX_BACKOFF_MILLIS;
+    else                              return entry.averageMillis;
+  }
+
+  private Entry getEntry(InetSocketAddress address) {
+    Entry entry = entries.get(address);
+
+    if (entry == null) {
+      entry = new Entry();
+      entries.put(address, entry);
+    }
+
+    return entry;
+  }
+
+  private static class Entry {
+    private double averageMillis = -1;
+    private int    failures      = 0;
+    private long   retryAfter    = 0;
+  }
+}
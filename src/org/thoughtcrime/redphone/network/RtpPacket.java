@@ -135,6 +135,10 @@ public class RtpPacket {
     packetLength = len + HEADER_LENGTH;
   }
 
+  /**
+   * Copies the payload into a new array. Use {@link #getPayloadOffset()} and
+   * {@link #getPayloadLength()} to read it in place.
+   */
   public byte[] getPayload(){
     int payloadLen = packetLength - HEADER_LENGTH;
     byte[] result  = new byte[payloadLen];
@@ -143,6 +147,14 @@ public class RtpPacket {
     return result;
   }
 
+  public int getPayloadOffset() {
+    return HEADER_LENGTH;
+  }
+
+  public int getPayloadLength() {
+    return packetLength - HEADER_LENGTH;
+  }
+
   public byte[] getPacket() {
     return data;
   }
@@ -150,4 +162,8 @@ public class RtpPacket {
   public int getPacketLength() {
     return packetLength;
   }
+
+  void setPacketLength(int packetLength) {
+    this.packetLength = packetLength;
+  }
 }
@@ -29,13 +29,19 @@ import java.net.SocketTimeoutException;
 /**
  * RtpSocket wraps a {@link DatagramSocket}, allowing {@link RtpPacket}s to be sent a received.
  *
+ * The datagram packets and the received {@link RtpPacket} are reused, so a packet returned
+ * by {@link #receive()} is only valid until the next call.
+ *
  * @author Stuart O. Anderson
  */
 public class RtpSocket {
 
   private static final String TAG = RtpSocket.class.getSimpleName();
 
-  private final byte [] buf = new byte[4096];
+  private final byte []        buf           = new byte[4096];
+  private final DatagramPacket receiveBuffer = new DatagramPacket(buf, buf.length);
+  private final RtpPacket      receivePacket = new RtpPacket(buf, 0);
+  private final DatagramPacket sendBuffer    = new DatagramPacket(buf, 0);
 
   private final String remoteIp;
   private final int    remotePort;
@@ -74,7 +80,10 @@ public class RtpSocket {
 
   public void send(RtpPacket outPacket) throws IOException {
     try {
-      socket.send(new DatagramPacket(outPacket.getPacket(), outPacket.getPacketLength()));
+      synchronized (sendBuffer) {
+        sendBuffer.setData(outPacket.getPacket(), 0, outPacket.getPacketLength());
+        socket.send(sendBuffer);
+      }
     } catch (IOException e) {
       if (!socket.isClosed()) {
         throw new IOException(e);
@@ -84,9 +93,10 @@ public class RtpSocket {
 
   public RtpPacket receive() throws IOException {
     try {
-      DatagramPacket dataPack = new DatagramPacket(buf, buf.length);
-      socket.receive(dataPack);
-      return  new RtpPacket(dataPack.getData(), dataPack.getLength());
+      receiveBuffer.setLength(buf.length);
+      socket.receive(receiveBuffer);
+      receivePacket.setPacketLength(receiveBuffer.getLength());
+      return receivePacket;
     } catch( SocketTimeoutException e ) {
       //Do Nothing.
     } catch (IOException e) {
@@ -22,6 +22,7 @@ import android.util.Log;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import org.thoughtcrime.redphone.network.DnsCache;
 import org.thoughtcrime.redphone.network.LowLatencySocketConnector;
 import org.thoughtcrime.redphone.signaling.signals.BusySignal;
 import org.thoughtcrime.redphone.signaling.signals.HangupSignal;
@@ -123,10 +124,14 @@ public class SignalingSocket {
   private Socket timeoutHackConnect(SSLSocketFactory sslSocketFactory, String host, int port)
       throws IOException
   {
-    InetAddress[] addresses      = InetAddress.getAllByName(host);
-    Socket stagedSocket          = LowLatencySocketConnector.connect(addresses, port);
-
-    Log.w(TAG, "Connected to: " + stagedSocket.getInetAddress().getHostAddress());
+    long          startTime    = System.currentTimeMillis();
+    InetAddress[] addresses    = DnsCache.getInstance().resolve(host);
+    long          resolveTime  = System.currentTimeMillis();
+    Socket        stagedSocket = LowLatencySocketConnector.connect(addresses, port);
+
+    Log.w(TAG, "Connected to: " + stagedSocket.getInetAddress().getHostAddress() +
+               " (resolve " + (resolveTime - startTime) + "ms, " +
+               "connect " + (System.currentTimeMillis() - resolveTime) + "ms)");
 
     SocketConnectMonitor monitor = new SocketConnectMonitor(stagedSocket);
 
@@ -45,6 +45,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -64,7 +66,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     extends CursorRecyclerViewAdapter<ConversationAdapter.ViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE             = 40;
+  private static final int THUMBNAIL_PREFETCH_DISTANCE = 6;
   private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
       Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
 
@@ -82,6 +85,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final @NonNull  LayoutInflater    inflater;
   private final @NonNull  MessageDigest     digest;
 
+  private final @Nullable ThumbnailPrefetcher thumbnailPrefetcher;
+
   protected static class ViewHolder extends RecyclerView.ViewHolder {
     public <V extends View & BindableConversationItem> ViewHolder(final @NonNull V itemView) {
       super(itemView);
@@ -110,6 +115,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.inflater      = null;
       this.db            = null;
       this.digest        = MessageDigest.getInstance("SHA1");
+
+      this.thumbnailPrefetcher = null;
     } catch (NoSuchAlgorithmException nsae) {
       throw new AssertionError("SHA1 isn't supported!");
     }
@@ -132,6 +139,8 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
       this.db            = DatabaseFactory.getMmsSmsDatabase(context);
       this.digest        = MessageDigest.getInstance("SHA1");
 
+      this.thumbnailPrefetcher = new ThumbnailPrefetcher(context, masterSecret);
+
       setHasStableIds(true);
     } catch (NoSuchAlgorithmException nsae) {
       throw new AssertionError("SHA1 isn't supported!");
@@ -150,6 +159,7 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     String        type          = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
     MessageRecord messageRecord = getMessageRecord(id, cursor, type);
 
+    if (thumbnailPrefetcher != null) thumbnailPrefetcher.onBind(messageRecord);
     viewHolder.getView().bind(masterSecret, messageRecord, locale, batchSelected, recipients);
   }
 
@@ -224,10 +234,49 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     return messageRecord;
   }
 
+  public @Nullable MmsSmsDatabase.PageKey getLastPageKey() {
+    Cursor cursor = getCursor();
+
+    if (cursor == null || cursor.isClosed() || !cursor.moveToLast()) {
+      return null;
+    }
+
+    return MmsSmsDatabase.PageKey.fromCursor(cursor);
+  }
+
   public void close() {
     getCursor().close();
   }
 
+  /**
+   * Starts loading the thumbnails of the items within a few positions either side of
+   * the visible range, and cancels any earlier prefetches that are no longer near it.
+   */
+  public void prefetchThumbnails(int firstVisible, int lastVisible) {
+    if (thumbnailPrefetcher == null || !isActiveCursor()) return;
+
+    List<MessageRecord> upcoming = new LinkedList<>();
+    int                 first    = Math.max(firstVisible - THUMBNAIL_PREFETCH_DISTANCE, hasHeaderView() ? 1 : 0);
+    int                 last     = Math.min(lastVisible + THUMBNAIL_PREFETCH_DISTANCE,
+                                            getItemCount() - (hasFooterView() ? 2 : 1));
+
+    for (int position=first;position<=last;position++) {
+      if (position >= firstVisible && position <= lastVisible) continue;
+
+      Cursor cursor = getCursorAtPositionOrThrow(position);
+      long   id     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+      String type   = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+
+      upcoming.add(getMessageRecord(id, cursor, type));
+    }
+
+    thumbnailPrefetcher.prefetch(upcoming);
+  }
+
+  public void clearThumbnailPrefetches() {
+    if (thumbnailPrefetcher != null) thumbnailPrefetcher.clear();
+  }
+
   public void toggleSelection(MessageRecord messageRecord) {
     if (!batchSelected.remove(messageRecord)) {
       batchSelected.add(messageRecord);
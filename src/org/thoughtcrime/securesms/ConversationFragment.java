@@ -74,7 +74,8 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG = ConversationFragment.class.getSimpleName();
 
-  private static final long   PARTIAL_CONVERSATION_LIMIT = 500L;
+  private static final int    PAGE_SIZE              = 100;
+  private static final int    PAGE_PREFETCH_DISTANCE = 20;
 
   private final ActionModeCallback actionModeCallback     = new ActionModeCallback();
   private final ItemClickListener  selectionClickListener = new ConversationFragmentItemClickListener();
@@ -103,14 +104,14 @@ public class ConversationFragment extends Fragment
     final LinearLayoutManager layoutManager = new LinearLayoutManager(getActivity(), LinearLayoutManager.VERTICAL, true);
     list.setHasFixedSize(false);
     list.setLayoutManager(layoutManager);
+    list.addOnScrollListener(new PagingScrollListener());
+    list.addOnScrollListener(new ThumbnailPrefetchScrollListener());
 
     loadMoreView = inflater.inflate(R.layout.load_more_header, container, false);
     loadMoreView.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
+        loadOlderMessages();
       }
     });
     return view;
@@ -163,6 +164,8 @@ public class ConversationFragment extends Fragment
 
   private void initializeListAdapter() {
     if (this.recipients != null && this.threadId != -1) {
+      if (list.getAdapter() != null) getListAdapter().clearThumbnailPrefetches();
+
       list.setAdapter(new ConversationAdapter(getActivity(), masterSecret, locale, selectionClickListener, null, this.recipients));
       getLoaderManager().restartLoader(0, Bundle.EMPTY, this);
       list.getItemAnimator().setSupportsChangeAnimations(false);
@@ -170,6 +173,16 @@ public class ConversationFragment extends Fragment
     }
   }
 
+  private void loadOlderMessages() {
+    Loader<Cursor>         loader  = getLoaderManager().getLoader(0);
+    ConversationAdapter    adapter = getListAdapter();
+    MmsSmsDatabase.PageKey lastKey = adapter != null ? adapter.getLastPageKey() : null;
+
+    if (loader instanceof ConversationLoader && lastKey != null && ((ConversationLoader) loader).hasMore()) {
+      ((ConversationLoader) loader).loadOlder(lastKey);
+    }
+  }
+
   private void setCorrectMenuVisibility(Menu menu) {
     Set<MessageRecord> messageRecords = getListAdapter().getSelectedItems();
 
@@ -357,13 +370,13 @@ public class ConversationFragment extends Fragment
 */
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT));
+    return new ConversationLoader(getActivity(), threadId, PAGE_SIZE);
   }
 
   @Override
   public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
     if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && ((ConversationLoader)loader).hasLimit()) {
+      if (((ConversationLoader)loader).hasMore()) {
         getListAdapter().setFooterView(loadMoreView);
       } else {
         getListAdapter().setFooterView(null);
@@ -383,6 +396,33 @@ public class ConversationFragment extends Fragment
     void setThreadId(long threadId);
   }
 
+  private class PagingScrollListener extends RecyclerView.OnScrollListener {
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+      LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+      int                 lastVisible   = layoutManager.findLastVisibleItemPosition();
+
+      if (lastVisible != RecyclerView.NO_POSITION &&
+          lastVisible >= layoutManager.getItemCount() - PAGE_PREFETCH_DISTANCE)
+      {
+        loadOlderMessages();
+      }
+    }
+  }
+
+  private class ThumbnailPrefetchScrollListener extends RecyclerView.OnScrollListener {
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+      LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+      int                 firstVisible  = layoutManager.findFirstVisibleItemPosition();
+      int                 lastVisible   = layoutManager.findLastVisibleItemPosition();
+
+      if (firstVisible != RecyclerView.NO_POSITION && recyclerView.getAdapter() != null) {
+        getListAdapter().prefetchThumbnails(firstVisible, lastVisible);
+      }
+    }
+  }
+
   private class ConversationFragmentItemClickListener implements ItemClickListener {
 
     @Override
@@ -16,6 +16,7 @@ import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.SmsMigrator.ProgressDescription;
@@ -145,6 +146,11 @@ public class DatabaseMigrationActivity extends PassphraseRequiredActionBarActivi
     this.progress.setSecondaryProgress((int)Math.round((secondaryComplete / secondaryTotal) * max));
   }
 
+  private void handleImportFailed() {
+    Toast.makeText(this, R.string.ApplicationMigrationService_the_import_stopped_before_it_finished, Toast.LENGTH_LONG).show();
+    handleStateIdle();
+  }
+
   private void handleImportComplete() {
     if (isVisible) {
       if (getIntent().hasExtra("next_intent")) {
@@ -164,6 +170,7 @@ public class DatabaseMigrationActivity extends PassphraseRequiredActionBarActivi
       case ImportState.STATE_IDLE:                   handleStateIdle();                                     break;
       case ImportState.STATE_MIGRATING_IN_PROGRESS:  handleStateProgress((ProgressDescription)message.obj); break;
       case ImportState.STATE_MIGRATING_COMPLETE:     handleImportComplete();                                break;
+      case ImportState.STATE_MIGRATING_FAILED:       handleImportFailed();                                  break;
       }
     }
   }
@@ -39,6 +39,7 @@ import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.AttachmentFormatMigrationJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
@@ -68,6 +69,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int CONTACTS_ACCOUNT_VERSION             = 136;
   public static final int MEDIA_DOWNLOAD_CONTROLS_VERSION      = 151;
   public static final int REDPHONE_SUPPORT_VERSION             = 157;
+  public static final int CHUNKED_ATTACHMENTS_VERSION          = 195;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -81,6 +83,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(MIGRATE_SESSION_PLAINTEXT);
     add(MEDIA_DOWNLOAD_CONTROLS_VERSION);
     add(REDPHONE_SUPPORT_VERSION);
+    add(CHUNKED_ATTACHMENTS_VERSION);
   }};
 
   private MasterSecret masterSecret;
@@ -231,6 +234,12 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                           .add(new DirectoryRefreshJob(getApplicationContext()));
       }
 
+      if (params[0] < CHUNKED_ATTACHMENTS_VERSION) {
+        ApplicationContext.getInstance(getApplicationContext())
+                          .getJobManager()
+                          .add(new AttachmentFormatMigrationJob(getApplicationContext()));
+      }
+
       return null;
     }
 
@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+
+import org.thoughtcrime.securesms.components.ThumbnailView;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.mms.Slide;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads the thumbnails of conversation items just outside the visible range ahead of
+ * them being bound, so that they're decrypted, decoded and transformed into Glide's
+ * memory cache by the time they scroll into view. Loads for items that have since
+ * scrolled out of range are cancelled.
+ *
+ * Must only be used from the main thread.
+ */
+class ThumbnailPrefetcher {
+
+  private static final String TAG = ThumbnailPrefetcher.class.getSimpleName();
+
+  private final Context      context;
+  private final MasterSecret masterSecret;
+  private final int          size;
+  private final int          outgoingColor;
+
+  private final Map<Uri, PrefetchTarget> pending = new HashMap<>();
+  private final Set<Uri>                 ready   = new HashSet<>();
+
+  private int hits;
+  private int misses;
+
+  ThumbnailPrefetcher(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    this.context       = context;
+    this.masterSecret  = masterSecret;
+    this.size          = context.getResources().getDimensionPixelSize(R.dimen.media_bubble_height);
+    this.outgoingColor = getOutgoingColor(context);
+  }
+
+  void onBind(@NonNull MessageRecord messageRecord) {
+    Slide slide = getThumbnailSlide(messageRecord);
+
+    if (slide == null) return;
+
+    if (ready.contains(slide.getThumbnailUri())) hits++;
+    else                                         misses++;
+  }
+
+  void prefetch(@NonNull List<MessageRecord> upcoming) {
+    Map<Uri, MessageRecord> wanted = new HashMap<>();
+
+    for (MessageRecord messageRecord : upcoming) {
+      Slide slide = getThumbnailSlide(messageRecord);
+
+      if (slide != null && !slide.isInProgress()) {
+        wanted.put(slide.getThumbnailUri(), messageRecord);
+      }
+    }
+
+    ready.retainAll(wanted.keySet());
+
+    Iterator<Map.Entry<Uri, PrefetchTarget>> iterator = pending.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Uri, PrefetchTarget> entry = iterator.next();
+
+      if (!wanted.containsKey(entry.getKey())) {
+        Glide.clear(entry.getValue());
+        iterator.remove();
+      }
+    }
+
+    for (Map.Entry<Uri, MessageRecord> entry : wanted.entrySet()) {
+      Uri uri = entry.getKey();
+
+      if (ready.contains(uri) || pending.containsKey(uri)) continue;
+
+      PrefetchTarget target = new PrefetchTarget(uri);
+      pending.put(uri, target);
+
+      ThumbnailView.buildThumbnailRequest(context, masterSecret, uri, getColor(entry.getValue()))
+                   .into(target);
+    }
+  }
+
+  void clear() {
+    for (PrefetchTarget target : pending.values()) {
+      Glide.clear(target);
+    }
+
+    Log.w(TAG, "Thumbnail prefetch hits: " + hits + ", misses: " + misses);
+
+    pending.clear();
+    ready.clear();
+  }
+
+  int getHitCount() {
+    return hits;
+  }
+
+  int getMissCount() {
+    return misses;
+  }
+
+  private int getColor(MessageRecord messageRecord) {
+    if (messageRecord.isOutgoing()) return outgoingColor;
+    else                            return messageRecord.getIndividualRecipient().getColor().toConversationColor(context);
+  }
+
+  private static @Nullable Slide getThumbnailSlide(MessageRecord messageRecord) {
+    if (!messageRecord.isMms() || messageRecord.isMmsNotification()) return null;
+
+    Slide slide = ((MediaMmsMessageRecord)messageRecord).getSlideDeck().getThumbnailSlide();
+
+    if (slide == null || slide.getThumbnailUri() == null) return null;
+    else                                                  return slide;
+  }
+
+  private static int getOutgoingColor(Context context) {
+    TypedArray attrs = context.obtainStyledAttributes(new int[] {R.attr.conversation_item_bubble_background});
+    int        color = attrs.getColor(0, Color.WHITE);
+
+    attrs.recycle();
+    return color;
+  }
+
+  private class PrefetchTarget extends SimpleTarget<GlideDrawable> {
+    private final Uri uri;
+
+    private PrefetchTarget(Uri uri) {
+      super(size, size);
+      this.uri = uri;
+    }
+
+    @Override
+    public void onResourceReady(GlideDrawable resource, GlideAnimation<? super GlideDrawable> animation) {
+      if (pending.get(uri) == this) {
+        pending.remove(uri);
+        ready.add(uri);
+      }
+
+      Glide.clear(this);
+    }
+
+    @Override
+    public void onLoadFailed(Exception e, Drawable errorDrawable) {
+      if (pending.get(uri) == this) {
+        pending.remove(uri);
+      }
+    }
+  }
+}
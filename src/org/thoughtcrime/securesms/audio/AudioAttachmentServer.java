@@ -4,6 +4,7 @@ package org.thoughtcrime.securesms.audio;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.spongycastle.util.encoders.Hex;
@@ -12,12 +13,8 @@ import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.Util;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
@@ -26,36 +23,73 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
-import java.util.Map;
-import java.util.Properties;
-import java.util.StringTokenizer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
+ * Serves a single encrypted audio attachment to the local media player over HTTP.
+ *
+ * Each connection is served on its own thread. A byte range request seeks
+ * straight to the requested offset, since the attachment streams skip by cipher
+ * block or chunk instead of decrypting the skipped data.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
 public class AudioAttachmentServer implements Runnable {
 
   private static final String TAG = AudioAttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_HEADER_SIZE = 8192;
+  private static final int BUFFER_SIZE     = 32 * 1024;
+  private static final int MAX_BUFFERS     = 4;
+
+  private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_BUFFERS);
+
+  interface AttachmentSource {
+    @NonNull InputStream getStream() throws IOException;
+    long getSize();
+    @NonNull String getContentType();
+  }
+
+  private final AttachmentSource source;
+  private final ServerSocket     socket;
+  private final int              port;
+  private final String           auth;
+  private final ExecutorService  executor;
 
   private volatile boolean isRunning;
 
-  public AudioAttachmentServer(Context context, MasterSecret masterSecret, Attachment attachment)
+  public AudioAttachmentServer(final Context context, final MasterSecret masterSecret, final Attachment attachment)
       throws IOException
   {
+    this(new AttachmentSource() {
+      @Override
+      public @NonNull InputStream getStream() throws IOException {
+        return PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
+      }
+
+      @Override
+      public long getSize() {
+        return attachment.getSize();
+      }
+
+      @Override
+      public @NonNull String getContentType() {
+        return attachment.getContentType();
+      }
+    });
+  }
+
+  AudioAttachmentServer(@NonNull AttachmentSource source) throws IOException {
     try {
-      this.context      = context;
-      this.masterSecret = masterSecret;
-      this.attachment   = attachment;
-      this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-      this.port         = socket.getLocalPort();
-      this.auth         = new String(Hex.encode(Util.getSecretBytes(16)));
+      this.source   = source;
+      this.socket   = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+      this.port     = socket.getLocalPort();
+      this.auth     = new String(Hex.encode(Util.getSecretBytes(16)));
+      this.executor = Executors.newCachedThreadPool();
 
       this.socket.setSoTimeout(5000);
     } catch (UnknownHostException e) {
@@ -67,6 +101,14 @@ public class AudioAttachmentServer implements Runnable {
     return Uri.parse(String.format("http://127.0.0.1:%d/%s", port, auth));
   }
 
+  int getPort() {
+    return port;
+  }
+
+  String getPath() {
+    return "/" + auth;
+  }
+
   public void start() {
     isRunning = true;
     new Thread(this).start();
@@ -79,298 +121,234 @@ public class AudioAttachmentServer implements Runnable {
   @Override
   public void run() {
     while (isRunning) {
-      Socket client = null;
-
       try {
-        client = socket.accept();
+        final Socket client = socket.accept();
 
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
-
-          if (task.processRequest()) {
-            task.execute();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(client);
           }
-        }
-
+        });
       } catch (SocketTimeoutException e) {
         Log.w(TAG, e);
       } catch (IOException e) {
         Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
       }
     }
 
+    executor.shutdownNow();
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void serve(Socket client) {
+    try {
+      Request request = readRequest(client.getInputStream());
 
-  private class StreamToMediaPlayerTask {
+      if (request == null) {
+        Log.w(TAG, "Malformed request");
+      } else if (!"GET".equals(request.method)) {
+        Log.w(TAG, "Only GET is supported: " + request.method);
+      } else if (!MessageDigest.isEqual(request.path.getBytes(), getPath().getBytes())) {
+        Log.w(TAG, "Bad auth token!");
+      } else {
+        respond(client.getOutputStream(), request.range);
+      }
+    } catch (SocketException e) {
+      Log.w(TAG, "Client closed the connection: " + e.getMessage());
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      try {
+        client.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+  }
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+  private void respond(OutputStream output, @Nullable String range) throws IOException {
+    long   size        = source.getSize();
+    String contentType = source.getContentType();
+    long[] bounds      = parseRange(range, size);
+
+    if (bounds == null) {
+      Log.w(TAG, "Unsatisfiable range: " + range);
+      output.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n" +
+                    "Content-Range: bytes */" + size + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n").getBytes());
+      output.flush();
+      return;
+    }
 
-    private long       cbSkip;
-    private Properties parameters;
-    private Properties request;
-    private Properties requestHeaders;
-//    private String filePath;
+    long   start  = bounds[0];
+    long   end    = bounds[1];
+    long   length = end - start + 1;
+    String headers;
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+    if (range != null) {
+      headers = "HTTP/1.1 206 Partial Content\r\n" +
+                "Content-Range: bytes " + start + "-" + end + "/" + size + "\r\n";
+    } else {
+      headers = "HTTP/1.1 200 OK\r\n";
     }
 
-    public boolean processRequest() throws IOException {
-            InputStream is         = client.getInputStream();
-      final int         bufferSize = 8192;
-            byte[]      buffer     = new byte[bufferSize];
-            int         splitByte  = 0;
-            int         readLength = 0;
-
-      {
-        int read = is.read(buffer, 0, bufferSize);
-        while (read > 0) {
-          readLength += read;
-          splitByte = findHeaderEnd(buffer, readLength);
-          if (splitByte > 0)
-            break;
-          read = is.read(buffer, readLength, bufferSize - readLength);
-        }
-      }
+    headers += "Content-Type: " + contentType + "\r\n" +
+               "Accept-Ranges: bytes\r\n" +
+               "Content-Length: " + length + "\r\n" +
+               "Connection: close\r\n" +
+               "\r\n";
 
-      // Create a BufferedReader for parsing the header.
-      ByteArrayInputStream hbis = new ByteArrayInputStream(buffer, 0, readLength);
-      BufferedReader       hin  = new BufferedReader(new InputStreamReader(hbis));
+    Log.w(TAG, "Serving bytes " + start + "-" + end + "/" + size);
 
-      request        = new Properties();
-      parameters     = new Properties();
-      requestHeaders = new Properties();
+    InputStream input  = source.getStream();
+    byte[]      buffer = acquireBuffer();
 
-      try {
-        decodeHeader(hin, request, parameters, requestHeaders);
-      } catch (InterruptedException e1) {
-        Log.e(TAG, "Exception: " + e1.getMessage());
-        e1.printStackTrace();
-      }
+    try {
+      output.write(headers.getBytes());
+      skipFully(input, start, buffer);
 
-      for (Map.Entry<Object, Object> e : requestHeaders.entrySet()) {
-        Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
-      }
+      while (length > 0) {
+        int read = input.read(buffer, 0, (int)Math.min(buffer.length, length));
+        if (read == -1) break;
 
-      String range = requestHeaders.getProperty("range");
-
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
+        output.write(buffer, 0, read);
+        length -= read;
       }
 
-      if (!"GET".equals(request.get("method"))) {
-        Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
-      }
+      output.flush();
+    } finally {
+      releaseBuffer(buffer);
+      input.close();
+    }
+  }
 
-      String receivedAuth = request.getProperty("uri");
+  /**
+   * Resolves a "bytes=" range header against the content size into inclusive start
+   * and end offsets. Returns the whole content when there's no range or the range
+   * can't be parsed, and null when the range lies outside the content.
+   */
+  static @Nullable long[] parseRange(@Nullable String range, long size) {
+    long[] whole = new long[] {0, size - 1};
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
-        Log.w(TAG, "Bad auth token!");
-        return false;
-      }
+    if (range == null) return whole;
 
-//      filePath = request.getProperty("uri");
+    range = range.trim().toLowerCase(Locale.US);
 
-      return true;
-    }
+    if (!range.startsWith("bytes=") || range.indexOf(',') != -1) return whole;
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
-
-      String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
-        headers += "HTTP/1.1 206 Partial Content\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      } else {
-        headers += "HTTP/1.1 200 OK\r\n";
-        headers += "Content-Type: " + attachment.getContentType() + "\r\n";
-        headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
-        headers += "\r\n";
-      }
+    int separator = range.indexOf('-');
 
-      Log.i(TAG, "headers: " + headers);
+    if (separator == -1) return whole;
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
+    try {
+      String first = range.substring(6, separator).trim();
+      String last  = range.substring(separator + 1).trim();
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+      if (first.length() == 0) {
+        if (last.length() == 0) return whole;
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
-          output.write(buff, 0, cbRead);
-        }
-      }
-      catch (SocketException socketException) {
-        Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
-      }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-      }
+        long suffix = Long.parseLong(last);
 
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
-        }
-        client.close();
-      }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
+        if (suffix <= 0 || size == 0) return null;
+        return new long[] {Math.max(0, size - suffix), size - 1};
       }
+
+      long start = Long.parseLong(first);
+      long end   = last.length() == 0 ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+
+      if (start >= size || end < start) return null;
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      Log.w(TAG, e);
+      return whole;
     }
+  }
 
-    /**
-     * Find byte index separating header from body. It must be the last byte of
-     * the first two sequential new lines.
-     **/
-    private int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 3 < rlen) {
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n'
-            && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n')
-          return splitbyte + 4;
-        splitbyte++;
-      }
-      return 0;
+  private static @Nullable Request readRequest(InputStream input) throws IOException {
+    byte[] header = new byte[MAX_HEADER_SIZE];
+    int    length = 0;
+    int    end    = -1;
+
+    while (end == -1 && length < header.length) {
+      int read = input.read(header, length, header.length - length);
+      if (read == -1) break;
+
+      length += read;
+      end     = findHeaderEnd(header, length);
     }
 
+    if (end == -1) return null;
 
-    /**
-     * Decodes the sent headers and loads the data into java Properties' key -
-     * value pairs
-     **/
-    private void decodeHeader(BufferedReader in, Properties pre,
-                              Properties parms, Properties header) throws InterruptedException {
-      try {
-        // Read the request line
-        String inLine = in.readLine();
-        if (inLine == null)
-          return;
-        StringTokenizer st = new StringTokenizer(inLine);
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-
-        String method = st.nextToken();
-        pre.put("method", method);
-
-        if (!st.hasMoreTokens())
-          Log.e(TAG,
-                "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
-
-        String uri = st.nextToken();
-
-        // Decode parameters from the URI
-        int qmi = uri.indexOf('?');
-        if (qmi >= 0) {
-          decodeParms(uri.substring(qmi + 1), parms);
-          uri = decodePercent(uri.substring(0, qmi));
-        } else
-          uri = decodePercent(uri);
-
-        // If there's another token, it's protocol version,
-        // followed by HTTP headers. Ignore version but parse headers.
-        // NOTE: this now forces header names lowercase since they are
-        // case insensitive and vary by client.
-        if (st.hasMoreTokens()) {
-          String line = in.readLine();
-          while (line != null && line.trim().length() > 0) {
-            int p = line.indexOf(':');
-            if (p >= 0)
-              header.put(line.substring(0, p).trim().toLowerCase(),
-                         line.substring(p + 1).trim());
-            line = in.readLine();
-          }
-        }
+    String[] lines       = new String(header, 0, end, "ISO-8859-1").split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+
+    if (requestLine.length < 2) return null;
+
+    String range = null;
 
-        pre.put("uri", uri);
-      } catch (IOException ioe) {
-        Log.e(TAG,
-              "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
+    for (int i=1;i<lines.length;i++) {
+      int separator = lines[i].indexOf(':');
+
+      if (separator > 0 && lines[i].substring(0, separator).trim().equalsIgnoreCase("range")) {
+        range = lines[i].substring(separator + 1).trim();
       }
     }
 
-    /**
-     * Decodes parameters in percent-encoded URI-format ( e.g.
-     * "name=Jack%20Daniels&pass=Single%20Malt" ) and adds them to given
-     * Properties. NOTE: this doesn't support multiple identical keys due to the
-     * simplicity of Properties -- if you need multiples, you might want to
-     * replace the Properties with a Hashtable of Vectors or such.
-     */
-    private void decodeParms(String parms, Properties p)
-        throws InterruptedException {
-      if (parms == null)
-        return;
-
-      StringTokenizer st = new StringTokenizer(parms, "&");
-      while (st.hasMoreTokens()) {
-        String e = st.nextToken();
-        int sep = e.indexOf('=');
-        if (sep >= 0)
-          p.put(decodePercent(e.substring(0, sep)).trim(),
-                decodePercent(e.substring(sep + 1)));
+    return new Request(requestLine[0], requestLine[1], range);
+  }
+
+  private static int findHeaderEnd(byte[] buffer, int length) {
+    for (int i=0;i+3<length;i++) {
+      if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+        return i;
       }
     }
 
-    /**
-     * Decodes the percent encoding scheme. <br/>
-     * For example: "an+example%20string" -> "an example string"
-     */
-    private String decodePercent(String str) throws InterruptedException {
-      try {
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < str.length(); i++) {
-          char c = str.charAt(i);
-          switch (c) {
-            case '+':
-              sb.append(' ');
-              break;
-            case '%':
-              sb.append((char) Integer.parseInt(
-                  str.substring(i + 1, i + 3), 16));
-              i += 2;
-              break;
-            default:
-              sb.append(c);
-              break;
-          }
-        }
-        return sb.toString();
-      } catch (Exception e) {
-        Log.e(TAG, "BAD REQUEST: Bad percent-encoding.");
-        return null;
+    return -1;
+  }
+
+  private static void skipFully(InputStream input, long count, byte[] buffer) throws IOException {
+    while (count > 0) {
+      long skipped = input.skip(count);
+
+      if (skipped <= 0) {
+        int read = input.read(buffer, 0, (int)Math.min(buffer.length, count));
+        if (read == -1) throw new IOException("Stream ended before offset");
+        skipped = read;
       }
+
+      count -= skipped;
+    }
+  }
+
+  private static byte[] acquireBuffer() {
+    byte[] buffer = buffers.poll();
+    return buffer != null ? buffer : new byte[BUFFER_SIZE];
+  }
+
+  private static void releaseBuffer(byte[] buffer) {
+    buffers.offer(buffer);
+  }
+
+  private static class Request {
+    private final String method;
+    private final String path;
+    private final String range;
+
+    private Request(String method, String path, String range) {
+      this.method = method;
+      this.path   = path;
+      this.range  = range;
     }
   }
-}
\ No newline at end of file
+}
@@ -159,11 +159,25 @@ public class ThumbnailView extends FrameLayout {
            !((Activity)getContext()).isDestroyed();
   }
 
+  /**
+   * Builds the request a thumbnail is displayed with, so that a prefetch of the same
+   * thumbnail lands under the same memory cache key.
+   */
+  public static DrawableRequestBuilder<DecryptableUri> buildThumbnailRequest(@NonNull Context context,
+                                                                             @NonNull MasterSecret masterSecret,
+                                                                             @NonNull Uri thumbnailUri,
+                                                                             int backgroundColorHint)
+  {
+    int radius = context.getResources().getDimensionPixelSize(R.dimen.message_bubble_corner_radius);
+
+    return Glide.with(context).load(new DecryptableUri(masterSecret, thumbnailUri))
+                              .crossFade()
+                              .transform(new RoundedCorners(context, true, radius, backgroundColorHint));
+  }
+
   private GenericRequestBuilder buildThumbnailGlideRequest(@NonNull Slide slide, @NonNull MasterSecret masterSecret) {
     @SuppressWarnings("ConstantConditions")
-    DrawableRequestBuilder<DecryptableUri> builder = Glide.with(getContext()).load(new DecryptableUri(masterSecret, slide.getThumbnailUri()))
-                                                                             .crossFade()
-                                                                             .transform(new RoundedCorners(getContext(), true, radius, backgroundColorHint));
+    DrawableRequestBuilder<DecryptableUri> builder = buildThumbnailRequest(getContext(), masterSecret, slide.getThumbnailUri(), backgroundColorHint);
 
     if (slide.isInProgress()) return builder;
     else                      return builder.error(R.drawable.ic_missing_thumbnail_picture);
@@ -0,0 +1,223 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a part in the chunked format described by {@link ChunkedPartCipher} off the disk.
+ *
+ * Each chunk is authenticated before any of its plaintext is returned, so tampering is
+ * reported as soon as the damaged chunk is reached rather than at the end of the file.
+ * Upcoming chunks are read and decrypted ahead of the reader in parallel, and skipping
+ * jumps straight to the chunk that holds the target offset.
+ */
+public class ChunkedDecryptingPartInputStream extends InputStream {
+
+  private static final String TAG = ChunkedDecryptingPartInputStream.class.getSimpleName();
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final MasterSecret     masterSecret;
+  private final byte[]           header;
+  private final int              chunkSize;
+  private final int              encryptedChunkSize;
+  private final long             fileLength;
+  private final long             chunkCount;
+
+  private final LinkedList<PendingChunk> readAhead = new LinkedList<>();
+
+  private byte[] current;
+  private int    currentOffset;
+  private long   currentChunk;
+  private long   nextChunk;
+
+  public ChunkedDecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    this.file         = new RandomAccessFile(file, "r");
+    this.channel      = this.file.getChannel();
+    this.masterSecret = masterSecret;
+    this.header       = new byte[ChunkedPartCipher.HEADER_LENGTH];
+
+    try {
+      this.fileLength = this.file.length();
+      this.file.readFully(header);
+
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      byte       version      = headerBuffer.get();
+
+      this.chunkSize          = headerBuffer.getInt();
+      this.encryptedChunkSize = ChunkedPartCipher.getEncryptedChunkLength(chunkSize);
+
+      if (version != ChunkedPartCipher.VERSION || !ChunkedPartCipher.isValidChunkSize(chunkSize)) {
+        throw new FileNotFoundException("Unsupported part format: " + version + ", " + chunkSize);
+      }
+
+      long dataLength = fileLength - ChunkedPartCipher.HEADER_LENGTH;
+
+      this.chunkCount   = (dataLength + encryptedChunkSize - 1) / encryptedChunkSize;
+      this.currentChunk = -1;
+
+      if (chunkCount == 0) {
+        throw new FileNotFoundException("Part has no chunks!");
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      close(this.file);
+      throw new FileNotFoundException("IOException while reading header!");
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+
+    if (current == null || currentOffset == current.length) {
+      if (!advance()) return -1;
+    }
+
+    int read = Math.min(length, current.length - currentOffset);
+    System.arraycopy(current, currentOffset, buffer, offset, read);
+    currentOffset += read;
+
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    if (byteCount <= 0) return 0;
+
+    long position    = getPosition();
+    long target      = position + byteCount;
+    long targetChunk = Math.min(target / chunkSize, chunkCount - 1);
+
+    if (targetChunk > currentChunk) {
+      while (!readAhead.isEmpty() && readAhead.getFirst().index < targetChunk) {
+        readAhead.removeFirst().future.cancel(false);
+      }
+
+      nextChunk = Math.max(nextChunk, targetChunk);
+
+      if (!advance()) return 0;
+    }
+
+    while (getPosition() < target) {
+      if (currentOffset == current.length) {
+        if (!advance()) break;
+      }
+
+      currentOffset += (int)Math.min(current.length - currentOffset, target - getPosition());
+    }
+
+    return getPosition() - position;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    cancelReadAhead();
+    file.close();
+  }
+
+  private long getPosition() {
+    if (current == null) return 0;
+    return currentChunk * chunkSize + currentOffset;
+  }
+
+  private boolean advance() throws IOException {
+    fillReadAhead();
+
+    if (readAhead.isEmpty()) return false;
+
+    try {
+      PendingChunk next = readAhead.removeFirst();
+
+      current       = next.future.get();
+      currentOffset = 0;
+      currentChunk  = next.index;
+
+      fillReadAhead();
+      return true;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+      else                                     throw new IOException(e.getCause());
+    }
+  }
+
+  private void fillReadAhead() {
+    while (readAhead.size() < ChunkedPartCipher.PARALLELISM && nextChunk < chunkCount) {
+      final long index = nextChunk++;
+
+      readAhead.add(new PendingChunk(index, ChunkedPartCipher.getExecutor().submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return readChunk(index);
+        }
+      })));
+    }
+  }
+
+  private void cancelReadAhead() {
+    for (PendingChunk pending : readAhead) {
+      pending.future.cancel(false);
+    }
+
+    readAhead.clear();
+  }
+
+  private byte[] readChunk(long index) throws IOException {
+    long       offset = ChunkedPartCipher.HEADER_LENGTH + index * encryptedChunkSize;
+    int        length = (int)Math.min(encryptedChunkSize, fileLength - offset);
+    ByteBuffer chunk  = ByteBuffer.allocate(length);
+
+    while (chunk.hasRemaining()) {
+      if (channel.read(chunk, offset + chunk.position()) == -1) {
+        throw new IOException("Unexpected end of part at chunk " + index);
+      }
+    }
+
+    return ChunkedPartCipher.decryptChunk(masterSecret, header, index, index == chunkCount - 1,
+                                          chunk.array(), length);
+  }
+
+  private static class PendingChunk {
+    private final long           index;
+    private final Future<byte[]> future;
+
+    private PendingChunk(long index, Future<byte[]> future) {
+      this.index  = index;
+      this.future = future;
+    }
+  }
+
+  private static void close(RandomAccessFile file) {
+    try {
+      file.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a part to disk in the chunked format described by {@link ChunkedPartCipher}.
+ *
+ * Full chunks are buffered until there are enough of them to keep every core busy, and
+ * are then encrypted in parallel and written out in order.
+ */
+public class ChunkedEncryptingPartOutputStream extends OutputStream {
+
+  private static final String TAG = ChunkedEncryptingPartOutputStream.class.getSimpleName();
+
+  private final FileOutputStream out;
+  private final MasterSecret     masterSecret;
+  private final byte[]           header;
+  private final int              chunkSize;
+  private final List<byte[]>     pending = new LinkedList<>();
+
+  private byte[]  buffer;
+  private int     bufferLength;
+  private long    chunkIndex;
+  private boolean closed;
+
+  public ChunkedEncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    this(file, masterSecret, ChunkedPartCipher.DEFAULT_CHUNK_SIZE);
+  }
+
+  public ChunkedEncryptingPartOutputStream(File file, MasterSecret masterSecret, int chunkSize)
+      throws FileNotFoundException
+  {
+    if (!ChunkedPartCipher.isValidChunkSize(chunkSize)) {
+      throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+    }
+
+    this.out          = new FileOutputStream(file);
+    this.masterSecret = masterSecret;
+    this.chunkSize    = chunkSize;
+    this.header       = ChunkedPartCipher.getHeader(chunkSize);
+    this.buffer       = new byte[chunkSize];
+
+    try {
+      out.write(header);
+    } catch (IOException ioe) {
+      Log.w(TAG, ioe);
+      throw new FileNotFoundException("Couldn't write header");
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte)b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (bufferLength == chunkSize) {
+        pending.add(buffer);
+        buffer       = new byte[chunkSize];
+        bufferLength = 0;
+
+        if (pending.size() >= ChunkedPartCipher.PARALLELISM) {
+          writePending(false);
+        }
+      }
+
+      int copy = Math.min(length, chunkSize - bufferLength);
+      System.arraycopy(data, offset, buffer, bufferLength, copy);
+
+      bufferLength += copy;
+      offset       += copy;
+      length       -= copy;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) return;
+
+    try {
+      byte[] last = new byte[bufferLength];
+      System.arraycopy(buffer, 0, last, 0, bufferLength);
+
+      pending.add(last);
+      writePending(true);
+
+      closed = true;
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writePending(boolean includesLast) throws IOException {
+    if (pending.size() == 1) {
+      byte[] plaintext = pending.remove(0);
+      out.write(ChunkedPartCipher.encryptChunk(masterSecret, header, chunkIndex++, includesLast,
+                                               plaintext, 0, plaintext.length));
+      return;
+    }
+
+    List<Future<byte[]>> encrypted = new LinkedList<>();
+
+    while (!pending.isEmpty()) {
+      final byte[]  plaintext = pending.remove(0);
+      final long    index     = chunkIndex++;
+      final boolean last      = includesLast && pending.isEmpty();
+
+      encrypted.add(ChunkedPartCipher.getExecutor().submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() {
+          return ChunkedPartCipher.encryptChunk(masterSecret, header, index, last, plaintext, 0, plaintext.length);
+        }
+      }));
+    }
+
+    try {
+      for (Future<byte[]> chunk : encrypted) {
+        out.write(chunk.get());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encryption and decryption of individual chunks in the chunked part format.
+ *
+ * A chunked part starts with a header of a version byte and a 32-bit chunk size, followed
+ * by the chunks themselves. Each chunk is independently encrypted with AES-CBC under its
+ * own IV, and is laid out as IV || ciphertext || HMAC-SHA1. Every chunk except the last
+ * holds exactly one chunk size of plaintext, so chunks can be located without reading
+ * what comes before them.
+ *
+ * The MAC covers the header, the chunk's index, whether it's the final chunk, the IV and
+ * the ciphertext, so chunks can't be reordered, moved between files, or truncated away.
+ */
+class ChunkedPartCipher {
+
+  static final byte VERSION            = 1;
+  static final int  HEADER_LENGTH      = 5;
+  static final int  DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  private static final int BLOCK_SIZE = 16;
+  private static final int IV_LENGTH  = 16;
+  private static final int MAC_LENGTH = 20;
+
+  static final int PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private static final ExecutorService executor = Executors.newFixedThreadPool(PARALLELISM);
+
+  static ExecutorService getExecutor() {
+    return executor;
+  }
+
+  static byte[] getHeader(int chunkSize) {
+    return ByteBuffer.allocate(HEADER_LENGTH).put(VERSION).putInt(chunkSize).array();
+  }
+
+  static int getEncryptedChunkLength(int plaintextLength) {
+    return IV_LENGTH + (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE + MAC_LENGTH;
+  }
+
+  static boolean isValidChunkSize(int chunkSize) {
+    return chunkSize > 0 && chunkSize % BLOCK_SIZE == 0;
+  }
+
+  static byte[] encryptChunk(MasterSecret masterSecret, byte[] header, long index, boolean last,
+                             byte[] plaintext, int offset, int length)
+  {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+
+      byte[] iv         = cipher.getIV();
+      byte[] ciphertext = cipher.doFinal(plaintext, offset, length);
+      byte[] mac        = getMac(masterSecret, header, index, last, iv, ciphertext, 0, ciphertext.length);
+
+      return ByteBuffer.allocate(iv.length + ciphertext.length + mac.length)
+                       .put(iv)
+                       .put(ciphertext)
+                       .put(mac)
+                       .array();
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+             IllegalBlockSizeException | BadPaddingException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  static byte[] decryptChunk(MasterSecret masterSecret, byte[] header, long index, boolean last,
+                             byte[] chunk, int length)
+      throws IOException
+  {
+    if (length < IV_LENGTH + BLOCK_SIZE + MAC_LENGTH || (length - IV_LENGTH - MAC_LENGTH) % BLOCK_SIZE != 0) {
+      throw new IOException("Invalid chunk length: " + length);
+    }
+
+    int    ciphertextLength = length - IV_LENGTH - MAC_LENGTH;
+    byte[] iv               = new byte[IV_LENGTH];
+    byte[] theirMac         = new byte[MAC_LENGTH];
+
+    System.arraycopy(chunk, 0, iv, 0, IV_LENGTH);
+    System.arraycopy(chunk, IV_LENGTH + ciphertextLength, theirMac, 0, MAC_LENGTH);
+
+    byte[] ourMac = getMac(masterSecret, header, index, last, iv, chunk, IV_LENGTH, ciphertextLength);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException("MAC doesn't match on chunk " + index + "! Potential tampering?");
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(iv));
+
+      return cipher.doFinal(chunk, IV_LENGTH, ciphertextLength);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new IOException(e);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+             InvalidAlgorithmParameterException e)
+    {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static byte[] getMac(MasterSecret masterSecret, byte[] header, long index, boolean last,
+                               byte[] iv, byte[] ciphertext, int offset, int length)
+  {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA1");
+      mac.init(masterSecret.getMacKey());
+
+      mac.update(header);
+      mac.update(ByteBuffer.allocate(9).putLong(index).put((byte)(last ? 1 : 0)).array());
+      mac.update(iv);
+      mac.update(ciphertext, offset, length);
+
+      return mac.doFinal();
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
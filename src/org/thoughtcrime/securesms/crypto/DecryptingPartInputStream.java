@@ -20,10 +20,15 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.lang.System;
 
 import javax.crypto.BadPaddingException;
@@ -47,28 +52,46 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   private static final String TAG = DecryptingPartInputStream.class.getSimpleName();
 
-  private static final int IV_LENGTH  = 16;
-  private static final int MAC_LENGTH = 20;
+  private static final int IV_LENGTH          = 16;
+  private static final int MAC_LENGTH         = 20;
+  private static final int MAX_VERIFIED_FILES = 32;
+
+  private static final Map<String, Boolean> verifiedFiles = new LinkedHashMap<String, Boolean>(MAX_VERIFIED_FILES, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > MAX_VERIFIED_FILES;
+    }
+  };
+
+  private final File file;
 
   private Cipher cipher;
   private Mac mac;
+  private SecretKeySpec encryptionKey;
+  private SecretKeySpec macKey;
 
   private boolean done;
+  private boolean authenticating;
   private long totalDataSize;
   private long totalRead;
+  private long plaintextPosition;
   private byte[] overflowBuffer;
 
   public DecryptingPartInputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
     super(file);
+    this.file = file;
     try {
       if (file.length() <= IV_LENGTH + MAC_LENGTH)
         throw new FileNotFoundException("Part shorter than crypto overhead!");
 
-      done          = false;
-      mac           = initializeMac(masterSecret.getMacKey());
-      cipher        = initializeCipher(masterSecret.getEncryptionKey());
-      totalDataSize = file.length() - cipher.getBlockSize() - mac.getMacLength();
-      totalRead     = 0;
+      done           = false;
+      authenticating = true;
+      encryptionKey  = masterSecret.getEncryptionKey();
+      macKey         = masterSecret.getMacKey();
+      mac            = initializeMac(macKey);
+      cipher         = initializeCipher(encryptionKey);
+      totalDataSize  = file.length() - cipher.getBlockSize() - mac.getMacLength();
+      totalRead      = 0;
     } catch (InvalidKeyException ike) {
       Log.w(TAG, ike);
       throw new FileNotFoundException("Invalid key!");
@@ -87,12 +110,17 @@ public class DecryptingPartInputStream extends FileInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
+    int read;
+
     if (totalRead != totalDataSize)
-      return readIncremental(buffer, offset, length);
+      read = readIncremental(buffer, offset, length);
     else if (!done)
-      return readFinal(buffer, offset, length);
-    else 
-      return -1;
+      read = readFinal(buffer, offset, length);
+    else
+      read = readOverflow(buffer, offset, length);
+
+    if (read > 0) plaintextPosition += read;
+    return read;
   }
 
   @Override
@@ -100,45 +128,153 @@ public class DecryptingPartInputStream extends FileInputStream {
     return false;
   }
 
+  /**
+   * Skips forward without decrypting the skipped data. In CBC mode each ciphertext block
+   * is the IV for the next one, so decryption can restart at any block boundary by
+   * reading the previous ciphertext block as the IV.
+   *
+   * The MAC covers the whole file, so it can't be checked incrementally once data has
+   * been skipped this way. Instead the whole file is authenticated before the first seek
+   * (once per file while it stays in a small cache), and the seek is refused if that fails.
+   */
   @Override
   public long skip(long byteCount) throws IOException {
-    long skipped = 0L;
-    while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+    if (byteCount <= 0) return 0;
+
+    long start     = plaintextPosition;
+    long target    = start + byteCount;
+    int  blockSize = cipher.getBlockSize();
+    long lastBlock = totalDataSize / blockSize - 1;
+    long block     = Math.min(target / blockSize, lastBlock);
 
-      skipped += read;
+    if (block * blockSize > plaintextPosition) {
+      seekToBlock(block, blockSize);
     }
 
-    return skipped;
+    byte[] buffer = new byte[4096];
+
+    while (plaintextPosition < target) {
+      int read = read(buffer, 0, (int)Math.min(buffer.length, target - plaintextPosition));
+      if (read == -1) break;
+    }
+
+    return plaintextPosition - start;
   }
-	
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+
+  private void seekToBlock(long block, int blockSize) throws IOException {
+    if (authenticating) verifyMac();
+
+    try {
+      byte[] iv = new byte[blockSize];
+
+      getChannel().position(IV_LENGTH + (block - 1) * blockSize);
+      readFully(iv);
+
+      cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+
+      totalRead         = block * blockSize;
+      plaintextPosition = block * blockSize;
+      overflowBuffer    = null;
+      authenticating    = false;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void verifyMac() throws IOException {
+    String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+
+    synchronized (verifiedFiles) {
+      if (verifiedFiles.containsKey(key)) return;
+    }
+
     try {
-      int flourish = cipher.doFinal(buffer, offset);
-      //mac.update(buffer, offset, flourish);
+      Mac         verifier  = initializeMac(macKey);
+      FileChannel channel   = getChannel();
+      ByteBuffer  buffer    = ByteBuffer.allocate(8192);
+      long        macOffset = channel.size() - MAC_LENGTH;
+      long        position  = 0;
+
+      while (position < macOffset) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), macOffset - position));
+
+        int read = channel.read(buffer, position);
+        if (read == -1) throw new IOException("Part truncated while verifying MAC!");
+
+        verifier.update(buffer.array(), 0, read);
+        position += read;
+      }
 
-      byte[] ourMac   = mac.doFinal();
-      byte[] theirMac = new byte[mac.getMacLength()];
-      readFully(theirMac);
+      ByteBuffer theirMac = ByteBuffer.allocate(MAC_LENGTH);
 
-      if (!Arrays.equals(ourMac, theirMac))
+      while (theirMac.hasRemaining()) {
+        if (channel.read(theirMac, macOffset + theirMac.position()) == -1) {
+          throw new IOException("Part truncated while verifying MAC!");
+        }
+      }
+
+      if (!MessageDigest.isEqual(verifier.doFinal(), theirMac.array())) {
         throw new IOException("MAC doesn't match! Potential tampering?");
+      }
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+
+    synchronized (verifiedFiles) {
+      verifiedFiles.put(key, true);
+    }
+  }
+
+  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+    try {
+      byte[] flourish = cipher.doFinal();
+
+      if (authenticating) {
+        byte[] ourMac   = mac.doFinal();
+        byte[] theirMac = new byte[mac.getMacLength()];
+        readFully(theirMac);
+
+        if (!Arrays.equals(ourMac, theirMac))
+          throw new IOException("MAC doesn't match! Potential tampering?");
+      }
 
       done = true;
-      return flourish;
+
+      if (overflowBuffer == null) {
+        overflowBuffer = flourish;
+      } else {
+        byte[] combined = new byte[overflowBuffer.length + flourish.length];
+        System.arraycopy(overflowBuffer, 0, combined, 0, overflowBuffer.length);
+        System.arraycopy(flourish, 0, combined, overflowBuffer.length, flourish.length);
+        overflowBuffer = combined;
+      }
+
+      return readOverflow(buffer, offset, length);
     } catch (IllegalBlockSizeException e) {
       Log.w(TAG, e);
       throw new IOException("Illegal block size exception!");
-    } catch (ShortBufferException e) {
-      Log.w(TAG, e);
-      throw new IOException("Short buffer exception!");
     } catch (BadPaddingException e) {
       Log.w(TAG, e);
       throw new IOException("Bad padding exception!");
     }
   }
 
+  private int readOverflow(byte[] buffer, int offset, int length) {
+    if (overflowBuffer == null || overflowBuffer.length == 0) {
+      overflowBuffer = null;
+      return -1;
+    }
+
+    int read = Math.min(length, overflowBuffer.length);
+    System.arraycopy(overflowBuffer, 0, buffer, offset, read);
+
+    if (read == overflowBuffer.length) overflowBuffer = null;
+    else                               overflowBuffer = Arrays.copyOfRange(overflowBuffer, read, overflowBuffer.length);
+
+    return read;
+  }
+
   private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
     int readLength = 0;
     if (null != overflowBuffer) {
@@ -167,7 +303,7 @@ public class DecryptingPartInputStream extends FileInputStream {
     totalRead            += read;
 
     try {
-      mac.update(internalBuffer, 0, read);
+      if (authenticating) mac.update(internalBuffer, 0, read);
 
       int outputLen = cipher.getOutputSize(read);
 
@@ -28,14 +28,14 @@ import org.whispersystems.libsignal.ecc.ECPrivateKey;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -55,20 +55,40 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class MasterCipher {
 
+  private static final int IV_LENGTH  = 16;
+  private static final int MAC_LENGTH = 20;
+
+  private static final Set<CipherState> cipherStates = Collections.newSetFromMap(new WeakHashMap<CipherState, Boolean>());
+
+  private static final ThreadLocal<CipherState> cipherState = new ThreadLocal<CipherState>() {
+    @Override
+    protected CipherState initialValue() {
+      CipherState state = new CipherState();
+
+      synchronized (cipherStates) {
+        cipherStates.add(state);
+      }
+
+      return state;
+    }
+  };
+
+  /**
+   * Drops the Cipher and Mac instances cached on every thread, so that the key schedules
+   * they were initialized with don't outlive a master secret that has been cleared.
+   */
+  public static void clearCachedState() {
+    synchronized (cipherStates) {
+      for (CipherState state : cipherStates) {
+        state.clear();
+      }
+    }
+  }
+
   private final MasterSecret masterSecret;
-  private final Cipher encryptingCipher;
-  private final Cipher decryptingCipher;
-  private final Mac hmac;
-	
+
   public MasterCipher(MasterSecret masterSecret) {
-    try {
-      this.masterSecret = masterSecret;		
-      this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
-    }
+    this.masterSecret = masterSecret;
   }
 
   public byte[] encryptKey(ECPrivateKey privateKey) {
@@ -80,7 +100,23 @@ public class MasterCipher {
   }
 	
   public String decryptBody(String body) throws InvalidMessageException {
-    return new String(decodeAndDecryptBytes(body));
+    byte[] decodedBody;
+
+    try {
+      decodedBody = Base64.decode(body);
+    } catch (IOException e) {
+      throw new InvalidMessageException("Bad Base64 Encoding...", e);
+    }
+
+    byte[] plaintext = cipherState.get().getBuffer(decodedBody.length);
+
+    try {
+      int length = decryptBytes(decodedBody, 0, decodedBody.length, plaintext, 0);
+      return new String(plaintext, 0, length);
+    } finally {
+      // The buffer outlives this call, so don't leave plaintext behind in it
+      Arrays.fill(plaintext, 0, decodedBody.length, (byte)0);
+    }
   }
 	
   public ECPrivateKey decryptKey(byte[] key)
@@ -94,33 +130,87 @@ public class MasterCipher {
   }
 	
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
+    byte[] plaintext = new byte[Math.max(0, decodedBody.length - IV_LENGTH - MAC_LENGTH)];
+    int    length    = decryptBytes(decodedBody, 0, decodedBody.length, plaintext, 0);
+
+    if (length == plaintext.length) return plaintext;
+    else                            return Arrays.copyOf(plaintext, length);
+  }
+
+  /**
+   * Decrypts IV || AES-CBC(plaintext) || HMAC-SHA1 from the given range into the output
+   * buffer, which needs room for at least length - 36 bytes.
+   *
+   * @return The length of the plaintext.
+   */
+  public int decryptBytes(@NonNull byte[] input, int offset, int length,
+                          @NonNull byte[] output, int outputOffset)
+      throws InvalidMessageException
+  {
+    if (length < IV_LENGTH + MAC_LENGTH) {
+      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
+    }
+
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-			
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
-			
-      return encrypted;
+      CipherState state           = cipherState.get();
+      Mac         mac             = state.getMac(masterSecret.getMacKey());
+      int         encryptedLength = length - MAC_LENGTH;
+
+      mac.update(input, offset, encryptedLength);
+      mac.doFinal(state.macBuffer, 0);
+
+      if (!isEqual(state.macBuffer, 0, input, offset + encryptedLength, MAC_LENGTH))
+        throw new InvalidMessageException("MAC doesen't match.");
+
+      Cipher cipher = state.getDecryptingCipher();
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(), new IvParameterSpec(input, offset, IV_LENGTH));
+
+      return cipher.doFinal(input, offset + IV_LENGTH, encryptedLength - IV_LENGTH, output, outputOffset);
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
   }
-	
+
   public byte[] encryptBytes(byte[] body) {
+    byte[] output = new byte[getEncryptedLength(body.length)];
+    int    length = encryptBytes(body, 0, body.length, output, 0);
+
+    return length == -1 ? null : output;
+  }
+
+  /**
+   * Encrypts the given range as IV || AES-CBC(plaintext) || HMAC-SHA1 into the output
+   * buffer, which needs room for at least {@link #getEncryptedLength(int)} bytes.
+   *
+   * @return The number of bytes written, or -1 on failure.
+   */
+  public int encryptBytes(@NonNull byte[] input, int offset, int length,
+                          @NonNull byte[] output, int outputOffset)
+  {
     try {
-      Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
-		
-      byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
-		
-      return encryptedAndMacBody;
+      CipherState state  = cipherState.get();
+      Cipher      cipher = state.getEncryptingCipher();
+      Mac         mac    = state.getMac(masterSecret.getMacKey());
+
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey());
+
+      byte[] iv              = cipher.getIV();
+      int    encryptedLength = cipher.doFinal(input, offset, length, output, outputOffset + iv.length);
+
+      System.arraycopy(iv, 0, output, outputOffset, iv.length);
+
+      mac.update(output, outputOffset, iv.length + encryptedLength);
+      mac.doFinal(output, outputOffset + iv.length + encryptedLength);
+
+      return iv.length + encryptedLength + MAC_LENGTH;
     } catch (GeneralSecurityException ge) {
       Log.w("bodycipher", ge);
-      return null;
-    }	
-		
+      return -1;
+    }
+  }
+
+  public static int getEncryptedLength(int plaintextLength) {
+    return IV_LENGTH + (plaintextLength / 16 + 1) * 16 + MAC_LENGTH;
   }
 	
   public boolean verifyMacFor(String content, byte[] theirMac) {
@@ -133,91 +223,94 @@ public class MasterCipher {
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
     try {
-      Mac mac = getMac(masterSecret.getMacKey());
+      Mac mac = cipherState.get().getMac(masterSecret.getMacKey());
       return mac.doFinal(content.getBytes());
     } catch (GeneralSecurityException ike) {
       throw new AssertionError(ike);
     }
   }
 
-  private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
-    try {
-      byte[] decodedBody = Base64.decode(body);
-      return decryptBytes(decodedBody);
-    } catch (IOException e) {
-      throw new InvalidMessageException("Bad Base64 Encoding...", e);
-    }
-  }
-	
   private String encryptAndEncodeBytes(@NonNull  byte[] bytes) {
     byte[] encryptedAndMacBody = encryptBytes(bytes);
     return Base64.encodeBytes(encryptedAndMacBody);
   }
 	
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
-      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
+  private static boolean isEqual(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    int result = 0;
+
+    for (int i=0;i<length;i++) {
+      result |= a[aOffset + i] ^ b[bOffset + i];
     }
 
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-		
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-		
-    byte[] localMac  = hmac.doFinal(encrypted);
-		
-    if (!Arrays.equals(remoteMac, localMac))
-      throw new InvalidMessageException("MAC doesen't match.");
-		
-    return encrypted;
-  }
-	
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
-  }
-	
-  private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
-    byte[] encrypted = cipher.doFinal(body);
-    byte[] iv        = cipher.getIV();
-		
-    byte[] ivAndBody = new byte[iv.length + encrypted.length];
-    System.arraycopy(iv, 0, ivAndBody, 0, iv.length);
-    System.arraycopy(encrypted, 0, ivAndBody, iv.length, encrypted.length);
-		
-    return ivAndBody;
+    return result == 0;
   }
-	
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
 
-    return hmac;
-  }
-	
-  private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
-    byte[] mac             = hmac.doFinal(encryptedBody);
-    byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
+  /**
+   * Cipher and Mac instances are expensive to create, and not safe to share between
+   * threads, so each thread keeps its own set along with the key its Mac was last
+   * initialized with. They're created lazily, and dropped again by {@link #clear()}.
+   */
+  private static class CipherState {
+    private final byte[] macBuffer = new byte[MAC_LENGTH];
 
-    System.arraycopy(encryptedBody, 0, encryptedAndMac, 0, encryptedBody.length);
-    System.arraycopy(mac, 0, encryptedAndMac, encryptedBody.length, mac.length);
-		
-    return encryptedAndMac;
-  }
-	
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
-    decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
-		
-    return decryptingCipher;
-  }
-	
-  private Cipher getEncryptingCipher(SecretKeySpec key) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    encryptingCipher.init(Cipher.ENCRYPT_MODE, key);
-		
-    return encryptingCipher;
+    private Cipher        encryptingCipher;
+    private Cipher        decryptingCipher;
+    private Mac           mac;
+    private SecretKeySpec macKey;
+    private byte[]        buffer;
+
+    private synchronized Cipher getEncryptingCipher() {
+      if (encryptingCipher == null) encryptingCipher = createCipher();
+      return encryptingCipher;
+    }
+
+    private synchronized Cipher getDecryptingCipher() {
+      if (decryptingCipher == null) decryptingCipher = createCipher();
+      return decryptingCipher;
+    }
+
+    private synchronized Mac getMac(SecretKeySpec key) throws InvalidKeyException {
+      if (mac == null) {
+        try {
+          mac = Mac.getInstance("HmacSHA1");
+        } catch (NoSuchAlgorithmException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      if (!key.equals(macKey)) {
+        mac.init(key);
+        macKey = key;
+      } else {
+        mac.reset();
+      }
+
+      return mac;
+    }
+
+    private synchronized byte[] getBuffer(int length) {
+      if (buffer == null || buffer.length < length) {
+        buffer = new byte[Math.max(length, 1024)];
+      }
+
+      return buffer;
+    }
+
+    private synchronized void clear() {
+      encryptingCipher = null;
+      decryptingCipher = null;
+      mac              = null;
+      macKey           = null;
+      buffer           = null;
+    }
+
+    private static Cipher createCipher() {
+      try {
+        return Cipher.getInstance("AES/CBC/PKCS5Padding");
+      } catch (NoSuchPaddingException | NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
   }
-	
+
 }
@@ -49,19 +49,19 @@ public class PreKeyUtil {
   public static final int BATCH_SIZE = 100;
 
   public static List<PreKeyRecord> generatePreKeys(Context context) {
-    PreKeyStore        preKeyStore    = new TextSecurePreKeyStore(context);
-    List<PreKeyRecord> records        = new LinkedList<>();
-    int                preKeyIdOffset = getNextPreKeyId(context);
+    TextSecurePreKeyStore preKeyStore    = new TextSecurePreKeyStore(context);
+    List<PreKeyRecord>    records        = new LinkedList<>();
+    int                   preKeyIdOffset = getNextPreKeyId(context);
 
     for (int i=0;i<BATCH_SIZE;i++) {
       int          preKeyId = (preKeyIdOffset + i) % Medium.MAX_VALUE;
       ECKeyPair    keyPair  = Curve.generateKeyPair();
       PreKeyRecord record   = new PreKeyRecord(preKeyId, keyPair);
 
-      preKeyStore.storePreKey(preKeyId, record);
       records.add(record);
     }
 
+    preKeyStore.storePreKeys(records);
     setNextPreKeyId(context, (preKeyIdOffset + BATCH_SIZE + 1) % Medium.MAX_VALUE);
     return records;
   }
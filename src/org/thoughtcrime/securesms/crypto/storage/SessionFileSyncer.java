@@ -0,0 +1,77 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes recently written session files to stable storage in batches, so that
+ * a burst of ratchet updates costs one fsync per file per window rather than
+ * one per write.
+ */
+class SessionFileSyncer {
+
+  private static final String TAG = SessionFileSyncer.class.getSimpleName();
+
+  private static final long SYNC_DELAY_MILLIS = 100;
+
+  private static final SessionFileSyncer instance = new SessionFileSyncer();
+
+  static SessionFileSyncer getInstance() {
+    return instance;
+  }
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Set<File>                pending  = new HashSet<>();
+
+  private SessionFileSyncer() {}
+
+  void schedule(@NonNull File file) {
+    synchronized (pending) {
+      boolean idle = pending.isEmpty();
+
+      if (pending.add(file) && idle) {
+        executor.schedule(new SyncTask(), SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private class SyncTask implements Runnable {
+    @Override
+    public void run() {
+      List<File> files;
+
+      synchronized (pending) {
+        files = new LinkedList<>(pending);
+        pending.clear();
+      }
+
+      for (File file : files) {
+        try {
+          FileInputStream in = new FileInputStream(file);
+
+          try {
+            in.getFD().sync();
+          } finally {
+            in.close();
+          }
+        } catch (FileNotFoundException e) {
+          // Session was deleted before it was flushed
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+}
@@ -7,6 +7,8 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.PreKeyDatabase;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
@@ -18,12 +20,16 @@ import org.thoughtcrime.securesms.util.Conversions;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * Prekey and signed prekey records, kept in {@link PreKeyDatabase}.
+ *
+ * Installs that predate the table kept one file per record under {@link #PREKEY_DIRECTORY}
+ * and {@link #SIGNED_PREKEY_DIRECTORY}; those are imported into the table (and removed)
+ * the first time the store is used in a process.
+ */
 public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   public  static final String PREKEY_DIRECTORY        = "prekeys";
@@ -32,9 +38,11 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   private static final int    PLAINTEXT_VERSION      = 2;
   private static final int    CURRENT_VERSION_MARKER = 2;
-  private static final Object FILE_LOCK              = new Object();
+  private static final Object IMPORT_LOCK            = new Object();
   private static final String TAG                    = TextSecurePreKeyStore.class.getSimpleName();
 
+  private static volatile boolean legacyRecordsImported;
+
   @NonNull  private final Context      context;
   @Nullable private final MasterSecret masterSecret;
 
@@ -49,121 +57,134 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new PreKeyRecord(loadSerializedRecord(getPreKeyFile(preKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
-    }
+    PreKeyRecord record = getDatabase().getPreKey(preKeyId);
+
+    if (record == null) throw new InvalidKeyIdException("No such prekey: " + preKeyId);
+    else                return record;
   }
 
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyFile(signedPreKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
-    }
+    SignedPreKeyRecord record = getDatabase().getSignedPreKey(signedPreKeyId);
+
+    if (record == null) throw new InvalidKeyIdException("No such signed prekey: " + signedPreKeyId);
+    else                return record;
   }
 
   @Override
   public List<SignedPreKeyRecord> loadSignedPreKeys() {
-    synchronized (FILE_LOCK) {
-      File                     directory = getSignedPreKeyDirectory();
-      List<SignedPreKeyRecord> results   = new LinkedList<>();
-
-      for (File signedPreKeyFile : directory.listFiles()) {
-        try {
-          results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
-        } catch (IOException | InvalidMessageException e) {
-          Log.w(TAG, e);
-        }
-      }
-
-      return results;
-    }
+    return getDatabase().getAllSignedPreKeys();
   }
 
   @Override
   public void storePreKey(int preKeyId, PreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getPreKeyFile(preKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    getDatabase().insertPreKey(preKeyId, record);
+  }
+
+  public void storePreKeys(List<PreKeyRecord> records) {
+    getDatabase().insertPreKeys(records);
   }
 
   @Override
   public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getSignedPreKeyFile(signedPreKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    getDatabase().insertSignedPreKey(signedPreKeyId, record);
   }
 
   @Override
   public boolean containsPreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    return record.exists();
+    return getDatabase().containsPreKey(preKeyId);
   }
 
   @Override
   public boolean containsSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    return record.exists();
+    return getDatabase().containsSignedPreKey(signedPreKeyId);
   }
 
-
   @Override
   public void removePreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    record.delete();
+    getDatabase().removePreKey(preKeyId);
   }
 
   @Override
   public void removeSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    record.delete();
+    getDatabase().removeSignedPreKey(signedPreKeyId);
   }
 
   public void migrateRecords() {
-    synchronized (FILE_LOCK) {
-      File preKeyRecords = getPreKeyDirectory();
-
-      for (File preKeyRecord : preKeyRecords.listFiles()) {
-        try {
-          int          preKeyId = Integer.parseInt(preKeyRecord.getName());
-          PreKeyRecord record   = loadPreKey(preKeyId);
+    synchronized (IMPORT_LOCK) {
+      importLegacyRecords();
+      legacyRecordsImported = true;
+    }
+  }
 
-          storePreKey(preKeyId, record);
-        } catch (InvalidKeyIdException | NumberFormatException e) {
-          Log.w(TAG, e);
+  private PreKeyDatabase getDatabase() {
+    if (!legacyRecordsImported) {
+      synchronized (IMPORT_LOCK) {
+        if (!legacyRecordsImported) {
+          importLegacyRecords();
+          legacyRecordsImported = true;
         }
       }
+    }
 
-      File signedPreKeyRecords = getSignedPreKeyDirectory();
+    return DatabaseFactory.getPreKeyDatabase(context);
+  }
 
-      for (File signedPreKeyRecord : signedPreKeyRecords.listFiles()) {
-        try {
-          int                signedPreKeyId = Integer.parseInt(signedPreKeyRecord.getName());
-          SignedPreKeyRecord record         = loadSignedPreKey(signedPreKeyId);
+  private void importLegacyRecords() {
+    PreKeyDatabase           database            = DatabaseFactory.getPreKeyDatabase(context);
+    List<PreKeyRecord>       preKeyRecords       = new LinkedList<>();
+    List<SignedPreKeyRecord> signedPreKeyRecords = new LinkedList<>();
+    List<File>               importedFiles       = new LinkedList<>();
 
-          storeSignedPreKey(signedPreKeyId, record);
-        } catch (InvalidKeyIdException | NumberFormatException e) {
-          Log.w(TAG, e);
-        }
+    for (File preKeyFile : getRecordFiles(getPreKeyDirectory())) {
+      try {
+        preKeyRecords.add(new PreKeyRecord(loadSerializedRecord(preKeyFile)));
+        importedFiles.add(preKeyFile);
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
       }
     }
+
+    for (File signedPreKeyFile : getRecordFiles(getSignedPreKeyDirectory())) {
+      try {
+        signedPreKeyRecords.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
+        importedFiles.add(signedPreKeyFile);
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    if (importedFiles.isEmpty()) return;
+
+    Log.w(TAG, "Importing " + preKeyRecords.size() + " prekeys and " +
+               signedPreKeyRecords.size() + " signed prekeys");
+
+    database.insertPreKeys(preKeyRecords);
+    database.insertSignedPreKeys(signedPreKeyRecords);
+
+    for (File importedFile : importedFiles) {
+      if (!importedFile.delete()) {
+        Log.w(TAG, "Failed to delete imported record: " + importedFile);
+      }
+    }
+  }
+
+  private List<File> getRecordFiles(File directory) {
+    List<File> results = new LinkedList<>();
+    File[]     files   = directory.listFiles();
+
+    if (files == null) return results;
+
+    for (File file : files) {
+      try {
+        Integer.parseInt(file.getName());
+        results.add(file);
+      } catch (NumberFormatException e) {
+        // Not a record, e.g. PreKeyUtil's index file
+      }
+    }
+
+    return results;
   }
 
   private byte[] loadSerializedRecord(File recordFile)
@@ -182,32 +203,13 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
       MasterCipher masterCipher = new MasterCipher(masterSecret);
       serializedRecord = masterCipher.decryptBytes(serializedRecord);
     } else if (recordVersion < PLAINTEXT_VERSION) {
-      throw new AssertionError("Migration didn't happen!");
+      throw new InvalidMessageException("Record needs migration: " + recordFile);
     }
 
     fin.close();
     return serializedRecord;
   }
 
-  private void storeSerializedRecord(File file, byte[] serialized) throws IOException {
-    RandomAccessFile recordFile = new RandomAccessFile(file, "rw");
-    FileChannel      out        = recordFile.getChannel();
-
-    out.position(0);
-    writeInteger(CURRENT_VERSION_MARKER, out);
-    writeBlob(serialized, out);
-    out.truncate(out.position());
-    recordFile.close();
-  }
-
-  private File getPreKeyFile(int preKeyId) {
-    return new File(getPreKeyDirectory(), String.valueOf(preKeyId));
-  }
-
-  private File getSignedPreKeyFile(int signedPreKeyId) {
-    return new File(getSignedPreKeyDirectory(), String.valueOf(signedPreKeyId));
-  }
-
   private File getPreKeyDirectory() {
     return getRecordsDirectory(PREKEY_DIRECTORY);
   }
@@ -236,22 +238,9 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
-
   private int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
-
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
-  }
-
-
-
 }
@@ -9,6 +9,7 @@ import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.util.ConcurrentLRUCache;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.InvalidMessageException;
@@ -23,22 +24,52 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
 
+/**
+ * Stores one session file per recipient device, fronted by a process-wide cache.
+ *
+ * Serialized records are cached by session file name, so repeated loads cost a
+ * protobuf parse rather than a file read, and writes go straight through to disk
+ * with their fsyncs batched by {@link SessionFileSyncer}. Access is serialized per
+ * session over a fixed set of lock stripes instead of one global lock, and the
+ * devices known for each recipient are indexed in memory after a single scan of
+ * the sessions directory.
+ */
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG                   = TextSecureSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int PLAINTEXT_VERSION      = 3;
   private static final int CURRENT_VERSION        = 3;
 
+  private static final int SESSION_CACHE_SIZE   = 500;
+  private static final int RECIPIENT_CACHE_SIZE = 1000;
+  private static final int LOCK_STRIPES         = 32;
+
+  private static final byte[] NO_SESSION = new byte[0];
+
+  private static final ConcurrentLRUCache<String, byte[]> sessions     = new ConcurrentLRUCache<>(SESSION_CACHE_SIZE);
+  private static final ConcurrentLRUCache<String, Long>   recipientIds = new ConcurrentLRUCache<>(RECIPIENT_CACHE_SIZE);
+  private static final DeviceIndex                        deviceIndex  = new DeviceIndex();
+  private static final Object[]                           locks        = new Object[LOCK_STRIPES];
+
+  static {
+    for (int i=0;i<locks.length;i++) {
+      locks[i] = new Object();
+    }
+  }
+
   @NonNull  private final Context      context;
   @Nullable private final MasterSecret masterSecret;
 
@@ -53,35 +84,19 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        FileInputStream in            = new FileInputStream(getSessionFile(address));
-        int             versionMarker = readInteger(in);
-
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
+    String sessionName = getSessionName(address);
 
-        byte[] serialized = readBlob(in);
-        in.close();
+    synchronized (getLock(sessionName)) {
+      byte[] serialized = getSerializedSession(sessionName, address);
 
-        if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
-          serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
-        } else if (versionMarker < PLAINTEXT_VERSION) {
-          throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
-        }
+      if (serialized == null) {
+        return new SessionRecord();
+      }
 
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-      } catch (InvalidMessageException | IOException e) {
-        Log.w(TAG, "No existing session information found.");
+      try {
+        return new SessionRecord(serialized);
+      } catch (IOException e) {
+        Log.w(TAG, e);
         return new SessionRecord();
       }
     }
@@ -89,32 +104,64 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
+    long   recipientId = getRecipientId(address.getName());
+    String sessionName = getSessionName(recipientId, address.getDeviceId());
+    byte[] serialized  = record.serialize();
+
+    synchronized (getLock(sessionName)) {
+      File sessionFile = getSessionFile(sessionName);
+
       try {
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
+        RandomAccessFile file = new RandomAccessFile(sessionFile, "rw");
+        FileChannel      out  = file.getChannel();
 
         out.position(0);
         writeInteger(CURRENT_VERSION, out);
-        writeBlob(record.serialize(), out);
+        writeBlob(serialized, out);
         out.truncate(out.position());
 
-        sessionFile.close();
+        file.close();
       } catch (IOException e) {
+        sessions.remove(sessionName);
         throw new AssertionError(e);
       }
+
+      sessions.put(sessionName, serialized);
+      deviceIndex.add(recipientId, address.getDeviceId());
+      SessionFileSyncer.getInstance().schedule(sessionFile);
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    String sessionName = getSessionName(address);
+
+    synchronized (getLock(sessionName)) {
+      byte[] serialized = getSerializedSession(sessionName, address);
+
+      if (serialized == null) {
+        return false;
+      }
+
+      try {
+        return new SessionRecord(serialized).getSessionState().hasSenderChain();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        return false;
+      }
+    }
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    getSessionFile(address).delete();
+    long   recipientId = getRecipientId(address.getName());
+    String sessionName = getSessionName(recipientId, address.getDeviceId());
+
+    synchronized (getLock(sessionName)) {
+      getSessionFile(sessionName).delete();
+      sessions.put(sessionName, NO_SESSION);
+      deviceIndex.remove(recipientId, address.getDeviceId());
+    }
   }
 
   @Override
@@ -130,48 +177,76 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
-    List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
+    return deviceIndex.get(getSessionDirectory(), getRecipientId(name));
+  }
 
-    if (children == null) return results;
+  public void migrateSessions() {
+    File directory = getSessionDirectory();
 
-    for (String child : children) {
-      try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
+    for (String sessionName : sessions.keys()) {
+      sessions.remove(sessionName);
+    }
+
+    for (File session : directory.listFiles()) {
+      if (session.isFile()) {
+        SignalProtocolAddress address = getAddressName(session);
 
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
+        if (address != null) {
+          SessionRecord sessionRecord = loadSession(address);
+          storeSession(address, sessionRecord);
         }
-      } catch (NumberFormatException e) {
-        Log.w(TAG, e);
       }
     }
+  }
+
+  private @Nullable byte[] getSerializedSession(@NonNull String sessionName, @NonNull SignalProtocolAddress address) {
+    byte[] serialized = sessions.get(sessionName);
+
+    if (serialized == null) {
+      SessionRecord record = readSession(getSessionFile(sessionName), address);
 
-    return results;
+      serialized = record != null ? record.serialize() : NO_SESSION;
+      sessions.put(sessionName, serialized);
+    }
+
+    return serialized != NO_SESSION ? serialized : null;
   }
 
-  public void migrateSessions() {
-    synchronized (FILE_LOCK) {
-      File directory = getSessionDirectory();
+  private @Nullable SessionRecord readSession(@NonNull File sessionFile, @NonNull SignalProtocolAddress address) {
+    try {
+      FileInputStream in            = new FileInputStream(sessionFile);
+      int             versionMarker = readInteger(in);
 
-      for (File session : directory.listFiles()) {
-        if (session.isFile()) {
-          SignalProtocolAddress address = getAddressName(session);
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
 
-          if (address != null) {
-            SessionRecord sessionRecord = loadSession(address);
-            storeSession(address, sessionRecord);
-          }
-        }
+      byte[] serialized = readBlob(in);
+      in.close();
+
+      if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
+        serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
+      } else if (versionMarker < PLAINTEXT_VERSION) {
+        throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
       }
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState);
+      } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
+        return new SessionRecord(serialized);
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return null;
     }
   }
 
-  private File getSessionFile(SignalProtocolAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  private File getSessionFile(String sessionName) {
+    return new File(getSessionDirectory(), sessionName);
   }
 
   private File getSessionDirectory() {
@@ -187,14 +262,30 @@ public class TextSecureSessionStore implements SessionStore {
   }
 
   private String getSessionName(SignalProtocolAddress axolotlAddress) {
-    Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
-                                          .getPrimaryRecipient();
-    long      recipientId = recipient.getRecipientId();
-    int       deviceId    = axolotlAddress.getDeviceId();
+    return getSessionName(getRecipientId(axolotlAddress.getName()), axolotlAddress.getDeviceId());
+  }
 
+  private static String getSessionName(long recipientId, int deviceId) {
     return recipientId + (deviceId == SignalServiceAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
+  private long getRecipientId(String name) {
+    Long recipientId = recipientIds.get(name);
+
+    if (recipientId == null) {
+      recipientId = RecipientFactory.getRecipientsFromString(context, name, true)
+                                    .getPrimaryRecipient()
+                                    .getRecipientId();
+      recipientIds.put(name, recipientId);
+    }
+
+    return recipientId;
+  }
+
+  private static Object getLock(String sessionName) {
+    return locks[(sessionName.hashCode() & 0x7fffffff) % locks.length];
+  }
+
   private @Nullable SignalProtocolAddress getAddressName(File sessionFile) {
     try {
       String[]  parts     = sessionFile.getName().split("[.]");
@@ -236,4 +327,69 @@ public class TextSecureSessionStore implements SessionStore {
     out.write(ByteBuffer.wrap(valueBytes));
   }
 
+  private static class DeviceIndex {
+
+    private final Map<Long, Set<Integer>> devices = new HashMap<>();
+
+    private boolean loaded;
+
+    synchronized List<Integer> get(File directory, long recipientId) {
+      load(directory);
+
+      Set<Integer> recipientDevices = devices.get(recipientId);
+
+      if (recipientDevices == null) return new LinkedList<>();
+      else                          return new LinkedList<>(recipientDevices);
+    }
+
+    synchronized void add(long recipientId, int deviceId) {
+      if (loaded && deviceId != SignalServiceAddress.DEFAULT_DEVICE_ID) {
+        put(recipientId, deviceId);
+      }
+    }
+
+    synchronized void remove(long recipientId, int deviceId) {
+      if (!loaded) return;
+
+      Set<Integer> recipientDevices = devices.get(recipientId);
+
+      if (recipientDevices != null) {
+        recipientDevices.remove(deviceId);
+        if (recipientDevices.isEmpty()) devices.remove(recipientId);
+      }
+    }
+
+    private void put(long recipientId, int deviceId) {
+      Set<Integer> recipientDevices = devices.get(recipientId);
+
+      if (recipientDevices == null) {
+        recipientDevices = new HashSet<>();
+        devices.put(recipientId, recipientDevices);
+      }
+
+      recipientDevices.add(deviceId);
+    }
+
+    private void load(File directory) {
+      if (loaded) return;
+
+      String[] children = directory.list();
+
+      if (children != null) {
+        for (String child : children) {
+          try {
+            String[] parts = child.split("[.]", 2);
+
+            if (parts.length > 1) {
+              put(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+            }
+          } catch (NumberFormatException e) {
+            Log.w(TAG, e);
+          }
+        }
+      }
+
+      loaded = true;
+    }
+  }
 }
@@ -32,6 +32,8 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.ChunkedDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
@@ -82,6 +84,9 @@ public class AttachmentDatabase extends Database {
 
   private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
 
+  private static final String LEGACY_PART_SUFFIX  = ".mms";
+  private static final String CHUNKED_PART_SUFFIX = ".chunk";
+
   private static final String[] PROJECTION = new String[] {ROW_ID + " AS " + ATTACHMENT_ID_ALIAS,
                                                            MMS_ID, CONTENT_TYPE, NAME, CONTENT_DISPOSITION,
                                                            CONTENT_LOCATION, DATA, TRANSFER_STATE,
@@ -275,17 +280,22 @@ public class AttachmentDatabase extends Database {
   }
 
 
-  void insertAttachmentsForMessage(@NonNull MasterSecretUnion masterSecret,
-                                   long mmsId,
-                                   @NonNull List<Attachment> attachments)
+  @NonNull List<AttachmentId> insertAttachmentsForMessage(@NonNull MasterSecretUnion masterSecret,
+                                                          long mmsId,
+                                                          @NonNull List<Attachment> attachments)
       throws MmsException
   {
     Log.w(TAG, "insertParts(" + attachments.size() + ")");
 
+    List<AttachmentId> attachmentIds = new LinkedList<>();
+
     for (Attachment attachment : attachments) {
       AttachmentId attachmentId = insertAttachment(masterSecret, mmsId, attachment);
       Log.w(TAG, "Inserted attachment at ID: " + attachmentId);
+      attachmentIds.add(attachmentId);
     }
+
+    return attachmentIds;
   }
 
   public @NonNull Attachment updateAttachmentData(@NonNull MasterSecret masterSecret,
@@ -355,7 +365,7 @@ public class AttachmentDatabase extends Database {
     File dataFile = getAttachmentDataFile(attachmentId, dataType);
 
     try {
-      if (dataFile != null) return new DecryptingPartInputStream(dataFile, masterSecret);
+      if (dataFile != null) return newPartInputStream(dataFile, masterSecret);
       else                  return null;
     } catch (FileNotFoundException e) {
       Log.w(TAG, e);
@@ -407,7 +417,7 @@ public class AttachmentDatabase extends Database {
   {
     try {
       File partsDirectory = context.getDir("parts", Context.MODE_PRIVATE);
-      File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
+      File dataFile       = File.createTempFile("part", CHUNKED_PART_SUFFIX, partsDirectory);
 
       return new Pair<>(dataFile, setAttachmentData(masterSecret, dataFile, in));
     } catch (IOException e) {
@@ -421,13 +431,84 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
-      OutputStream out = new EncryptingPartOutputStream(destination, masterSecret);
+      OutputStream out = newPartOutputStream(destination, masterSecret);
       return Util.copy(in, out);
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
+  /**
+   * Re-encrypts any attachment data or thumbnails still stored in the legacy
+   * single-MAC format into the chunked format.
+   */
+  public void migrateLegacyAttachments(@NonNull MasterSecret masterSecret) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ROW_ID, UNIQUE_ID, DATA, THUMBNAIL},
+                              DATA + " LIKE ? OR " + THUMBNAIL + " LIKE ?",
+                              new String[] {"%" + LEGACY_PART_SUFFIX, "%" + LEGACY_PART_SUFFIX},
+                              null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        AttachmentId attachmentId = new AttachmentId(cursor.getLong(0), cursor.getLong(1));
+
+        migrateLegacyFile(masterSecret, attachmentId, DATA, cursor.getString(2));
+        migrateLegacyFile(masterSecret, attachmentId, THUMBNAIL, cursor.getString(3));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private void migrateLegacyFile(@NonNull MasterSecret masterSecret, @NonNull AttachmentId attachmentId,
+                                 @NonNull String dataType, @Nullable String path)
+  {
+    if (path == null || !path.endsWith(LEGACY_PART_SUFFIX)) return;
+
+    File legacyFile = new File(path);
+    File dataFile   = null;
+
+    try {
+      dataFile = File.createTempFile("part", CHUNKED_PART_SUFFIX, context.getDir("parts", Context.MODE_PRIVATE));
+      Util.copy(new DecryptingPartInputStream(legacyFile, masterSecret),
+                new ChunkedEncryptingPartOutputStream(dataFile, masterSecret));
+
+      ContentValues values = new ContentValues();
+      values.put(dataType, dataFile.getAbsolutePath());
+
+      int updated = databaseHelper.getWritableDatabase()
+                                  .update(TABLE_NAME, values, PART_ID_WHERE + " AND " + dataType + " = ?",
+                                          new String[] {String.valueOf(attachmentId.getRowId()),
+                                                        String.valueOf(attachmentId.getUniqueId()),
+                                                        path});
+
+      if (updated > 0) legacyFile.delete();
+      else             dataFile.delete();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      if (dataFile != null) dataFile.delete();
+    }
+  }
+
+  private InputStream newPartInputStream(@NonNull File file, @NonNull MasterSecret masterSecret)
+      throws FileNotFoundException
+  {
+    if (file.getName().endsWith(CHUNKED_PART_SUFFIX)) return new ChunkedDecryptingPartInputStream(file, masterSecret);
+    else                                              return new DecryptingPartInputStream(file, masterSecret);
+  }
+
+  private OutputStream newPartOutputStream(@NonNull File file, @NonNull MasterSecret masterSecret)
+      throws FileNotFoundException
+  {
+    if (file.getName().endsWith(CHUNKED_PART_SUFFIX)) return new ChunkedEncryptingPartOutputStream(file, masterSecret);
+    else                                              return new EncryptingPartOutputStream(file, masterSecret);
+  }
+
   DatabaseAttachment getAttachment(Cursor cursor) {
     return new DatabaseAttachment(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ATTACHMENT_ID_ALIAS)),
                                                    cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))),
@@ -18,6 +18,7 @@ package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 
@@ -43,11 +44,19 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_URI + threadId), null);
+    NotificationCoalescer.getInstance(context).notifyChange(Uri.parse(CONVERSATION_URI + threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(Uri.parse(CONVERSATION_LIST_URI), null);
+    NotificationCoalescer.getInstance(context).notifyChange(Uri.parse(CONVERSATION_LIST_URI));
+  }
+
+  /**
+   * Begins a transaction during which conversation notifications are held back, and
+   * delivered once the outermost transaction ends.
+   */
+  protected void beginTransaction(SQLiteDatabase database) {
+    database.beginTransactionWithListener(NotificationCoalescer.getInstance(context).getTransactionListener());
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
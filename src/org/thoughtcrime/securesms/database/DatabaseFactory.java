@@ -72,7 +72,14 @@ public class DatabaseFactory {
   private static final int INTRODUCED_CONVERSATION_LIST_STATUS_VERSION     = 25;
   private static final int MIGRATED_CONVERSATION_LIST_STATUS_VERSION       = 26;
   private static final int INTRODUCED_SUBSCRIPTION_ID_VERSION              = 27;
-  private static final int DATABASE_VERSION                                = 27;
+  private static final int INTRODUCED_UNREAD_COUNT_VERSION                 = 28;
+  private static final int INTRODUCED_PREKEY_DATABASE_VERSION              = 29;
+  private static final int INTRODUCED_GROUP_SEND_PROGRESS_VERSION          = 30;
+  private static final int INTRODUCED_PENDING_RECEIPTS_VERSION             = 31;
+  private static final int INTRODUCED_PUSH_DISPATCHED_VERSION              = 32;
+  private static final int INTRODUCED_SMS_MIGRATED_THREADS_VERSION         = 33;
+  private static final int INTRODUCED_THREAD_COUNT_REPAIR_VERSION          = 34;
+  private static final int DATABASE_VERSION                                = 34;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -95,6 +102,9 @@ public class DatabaseFactory {
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
+  private final PreKeyDatabase preKeyDatabase;
+  private final GroupSendDatabase groupSendDatabase;
+  private final PendingReceiptDatabase pendingReceiptDatabase;
   private final ContactsDatabase contactsDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
@@ -162,6 +172,18 @@ public class DatabaseFactory {
     return getInstance(context).recipientPreferenceDatabase;
   }
 
+  public static PreKeyDatabase getPreKeyDatabase(Context context) {
+    return getInstance(context).preKeyDatabase;
+  }
+
+  public static GroupSendDatabase getGroupSendDatabase(Context context) {
+    return getInstance(context).groupSendDatabase;
+  }
+
+  public static PendingReceiptDatabase getPendingReceiptDatabase(Context context) {
+    return getInstance(context).pendingReceiptDatabase;
+  }
+
   public static ContactsDatabase getContactsDatabase(Context context) {
     return getInstance(context).contactsDatabase;
   }
@@ -182,6 +204,9 @@ public class DatabaseFactory {
     this.pushDatabase                = new PushDatabase(context, databaseHelper);
     this.groupDatabase               = new GroupDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
+    this.preKeyDatabase              = new PreKeyDatabase(context, databaseHelper);
+    this.groupSendDatabase           = new GroupSendDatabase(context, databaseHelper);
+    this.pendingReceiptDatabase      = new PendingReceiptDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
   }
 
@@ -201,6 +226,9 @@ public class DatabaseFactory {
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.preKeyDatabase.reset(databaseHelper);
+    this.groupSendDatabase.reset(databaseHelper);
+    this.pendingReceiptDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -503,6 +531,7 @@ public class DatabaseFactory {
     @Override
     public void onCreate(SQLiteDatabase db) {
       db.execSQL(SmsDatabase.CREATE_TABLE);
+      db.execSQL(SmsDatabase.CREATE_MIGRATED_THREADS_TABLE);
       db.execSQL(MmsDatabase.CREATE_TABLE);
       db.execSQL(AttachmentDatabase.CREATE_TABLE);
       db.execSQL(ThreadDatabase.CREATE_TABLE);
@@ -512,6 +541,9 @@ public class DatabaseFactory {
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(PreKeyDatabase.CREATE_TABLE);
+      db.execSQL(GroupSendDatabase.CREATE_TABLE);
+      db.execSQL(PendingReceiptDatabase.CREATE_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -820,6 +852,44 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE mms ADD COLUMN subscription_id INTEGER DEFAULT -1");
       }
 
+      if (oldVersion < INTRODUCED_UNREAD_COUNT_VERSION) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN unread_count INTEGER DEFAULT 0");
+        db.execSQL("UPDATE thread SET unread_count = " +
+                   "(SELECT COUNT(*) FROM sms WHERE sms.thread_id = thread._id AND sms.read = 0) + " +
+                   "(SELECT COUNT(*) FROM mms WHERE mms.thread_id = thread._id AND mms.read = 0)");
+      }
+
+      if (oldVersion < INTRODUCED_PREKEY_DATABASE_VERSION) {
+        db.execSQL("CREATE TABLE prekeys (_id INTEGER PRIMARY KEY, type INTEGER, key_id INTEGER, record BLOB, " +
+                   "UNIQUE(type, key_id) ON CONFLICT REPLACE);");
+      }
+
+      if (oldVersion < INTRODUCED_GROUP_SEND_PROGRESS_VERSION) {
+        db.execSQL("CREATE TABLE group_send_progress (_id INTEGER PRIMARY KEY, message_id INTEGER, recipient_id INTEGER, " +
+                   "UNIQUE(message_id, recipient_id) ON CONFLICT IGNORE);");
+      }
+
+      if (oldVersion < INTRODUCED_PENDING_RECEIPTS_VERSION) {
+        db.execSQL("CREATE TABLE pending_receipts (_id INTEGER PRIMARY KEY, address TEXT, timestamp INTEGER);");
+      }
+
+      if (oldVersion < INTRODUCED_PUSH_DISPATCHED_VERSION) {
+        db.execSQL("ALTER TABLE push ADD COLUMN dispatched INTEGER DEFAULT 1");
+      }
+
+      if (oldVersion < INTRODUCED_SMS_MIGRATED_THREADS_VERSION) {
+        db.execSQL("CREATE TABLE sms_migrated_threads (_id INTEGER PRIMARY KEY, their_thread_id INTEGER UNIQUE ON CONFLICT IGNORE);");
+      }
+
+      if (oldVersion < INTRODUCED_THREAD_COUNT_REPAIR_VERSION) {
+        db.execSQL("UPDATE thread SET unread_count = " +
+                   "(SELECT COUNT(*) FROM sms WHERE sms.thread_id = thread._id AND sms.read = 0) + " +
+                   "(SELECT COUNT(*) FROM mms WHERE mms.thread_id = thread._id AND mms.read = 0), " +
+                   "message_count = " +
+                   "(SELECT COUNT(*) FROM sms WHERE sms.thread_id = thread._id) + " +
+                   "(SELECT COUNT(*) FROM mms WHERE mms.thread_id = thread._id)");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects incoming delivery receipts for a short window and applies them to the
+ * message tables as a single batch, so that a burst of receipts (e.g. for a large
+ * group send) costs one transaction and one refresh per affected thread rather
+ * than one of each per receipt.
+ *
+ * Each receipt is written to the {@link PendingReceiptDatabase} before {@link #add}
+ * returns and removed when its batch is applied, so receipts still waiting when the
+ * process dies are applied the next time the batcher is created.
+ */
+public class DeliveryReceiptBatcher {
+
+  private static final String TAG = DeliveryReceiptBatcher.class.getSimpleName();
+
+  private static final long BATCH_DELAY_MILLIS = 200;
+  private static final int  MAX_BATCH_SIZE     = 250;
+
+  private static DeliveryReceiptBatcher instance;
+
+  public static synchronized DeliveryReceiptBatcher getInstance(Context context) {
+    if (instance == null) {
+      instance = new DeliveryReceiptBatcher(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private final Context                  context;
+  private final ScheduledExecutorService executor   = Executors.newSingleThreadScheduledExecutor();
+  private final List<SyncMessageId>      pending    = new LinkedList<>();
+  private final List<Long>               pendingIds = new LinkedList<>();
+
+  private boolean scheduled;
+
+  private DeliveryReceiptBatcher(Context context) {
+    this.context = context;
+
+    List<Pair<Long, SyncMessageId>> stored = DatabaseFactory.getPendingReceiptDatabase(context).getPending();
+
+    if (!stored.isEmpty()) {
+      Log.w(TAG, "Recovering " + stored.size() + " stored delivery receipts...");
+
+      for (Pair<Long, SyncMessageId> receipt : stored) {
+        pendingIds.add(receipt.first);
+        pending.add(receipt.second);
+      }
+
+      scheduled = true;
+      executor.execute(new FlushTask());
+    }
+  }
+
+  /**
+   * Stores a receipt and queues it for the next batch. Once this returns the
+   * receipt is durable.
+   */
+  public void add(@NonNull SyncMessageId syncMessageId) {
+    long id = DatabaseFactory.getPendingReceiptDatabase(context).insert(syncMessageId);
+    add(id, syncMessageId);
+  }
+
+  private synchronized void add(long id, @NonNull SyncMessageId syncMessageId) {
+    pending.add(syncMessageId);
+    pendingIds.add(id);
+
+    if (pending.size() >= MAX_BATCH_SIZE) {
+      scheduled = true;
+      executor.execute(new FlushTask());
+    } else if (!scheduled) {
+      scheduled = true;
+      executor.schedule(new FlushTask(), BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private class FlushTask implements Runnable {
+    @Override
+    public void run() {
+      List<SyncMessageId> batch;
+      List<Long>          batchIds;
+
+      synchronized (DeliveryReceiptBatcher.this) {
+        if (pending.isEmpty()) return;
+
+        batch     = new LinkedList<>(pending);
+        batchIds  = new LinkedList<>(pendingIds);
+        scheduled = false;
+        pending.clear();
+        pendingIds.clear();
+      }
+
+      Log.w(TAG, "Applying " + batch.size() + " delivery receipts...");
+      DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(batch, batchIds);
+    }
+  }
+}
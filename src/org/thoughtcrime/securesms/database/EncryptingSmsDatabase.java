@@ -33,16 +33,11 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.Map;
-
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final PlaintextCache plaintextCache = PlaintextCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -55,27 +50,31 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
     MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecretUnion masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms,
                                   long timestamp)
   {
-    long type = Types.BASE_OUTBOX_TYPE;
+    long   type = Types.BASE_OUTBOX_TYPE;
+    String body = message.getMessageBody();
 
     if (masterSecret.getMasterSecret().isPresent()) {
-      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), body));
       type   |= Types.ENCRYPTION_SYMMETRIC_BIT;
     } else {
-      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body));
       type   |= Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    return insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms, timestamp);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      plaintextCache.put(messageId, message.getMessageBody(), body);
+    }
+
+    return messageId;
   }
 
   public Pair<Long, Long> insertMessageInbox(@NonNull MasterSecretUnion masterSecret,
@@ -91,11 +90,16 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   private Pair<Long, Long> insertMessageInbox(@NonNull MasterSecret masterSecret,
                                               @NonNull IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    long             type       = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    String           body       = message.getMessageBody();
+    String           ciphertext = getEncryptedBody(masterSecret, body);
+    Pair<Long, Long> result     = insertMessageInbox(message.withMessageBody(ciphertext), type);
 
-    message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    if (result != null) {
+      plaintextCache.put(result.first, ciphertext, body);
+    }
 
-    return insertMessageInbox(message, type);
+    return result;
   }
 
   private Pair<Long, Long> insertMessageInbox(@NonNull AsymmetricMasterSecret masterSecret,
@@ -115,6 +119,7 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     if (masterSecret.getMasterSecret().isPresent()) {
       encryptedBody = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
       type         |= Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintextCache.put(messageId, encryptedBody, body);
     } else {
       encryptedBody = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
       type         |= Types.ENCRYPTION_ASYMMETRIC_BIT;
@@ -124,17 +129,19 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   public void updateMessageBody(MasterSecretUnion masterSecret, long messageId, String body) {
-    long type;
+    String encryptedBody;
+    long   type;
 
     if (masterSecret.getMasterSecret().isPresent()) {
-      body = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
-      type = Types.ENCRYPTION_SYMMETRIC_BIT;
+      encryptedBody = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
+      type          = Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintextCache.put(messageId, encryptedBody, body);
     } else {
-      body = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
-      type = Types.ENCRYPTION_ASYMMETRIC_BIT;
+      encryptedBody = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
+      type          = Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
+    updateMessageBodyAndType(messageId, encryptedBody, Types.ENCRYPTION_MASK, type);
   }
 
   public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
@@ -178,7 +185,8 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
-      long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+      long   messageId  = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+      long   type       = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
       if (ciphertext == null) {
@@ -187,14 +195,14 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          String plaintext = plaintextCache.get(messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
           plaintext = masterCipher.decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -205,28 +213,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
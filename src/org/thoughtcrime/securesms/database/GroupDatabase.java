@@ -147,7 +147,7 @@ public class GroupDatabase extends Database {
                                                 GROUP_ID + " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
   }
 
@@ -157,7 +157,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
   }
 
@@ -172,7 +172,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache();
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
   }
 
@@ -239,6 +239,13 @@ public class GroupDatabase extends Database {
     }
   }
 
+  private void clearRecipientCache(byte[] groupId) {
+    long recipientId = CanonicalAddressDatabase.getInstance(context)
+                                               .getCanonicalAddressId(GroupUtil.getEncodedId(groupId));
+
+    RecipientFactory.clearCache(recipientId);
+  }
+
   private void notifyDatabaseListeners() {
     Intent intent = new Intent(DATABASE_UPDATE_ACTION);
     context.sendBroadcast(intent);
@@ -0,0 +1,67 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records which members a group message has already been sent to (or turned out to
+ * be unregistered) while its send is in progress, so that a send interrupted part way
+ * through, or retried after some members failed, only goes out to the members that
+ * are still outstanding when the job runs again. Members whose send failed are not
+ * recorded here; their failure is recorded on the message until a retry reaches them.
+ */
+public class GroupSendDatabase extends Database {
+
+  private static final String TABLE_NAME   = "group_send_progress";
+  private static final String ID           = "_id";
+  private static final String MESSAGE_ID   = "message_id";
+  private static final String RECIPIENT_ID = "recipient_id";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      MESSAGE_ID + " INTEGER, " + RECIPIENT_ID + " INTEGER, " +
+      "UNIQUE(" + MESSAGE_ID + ", " + RECIPIENT_ID + ") ON CONFLICT IGNORE);";
+
+  public GroupSendDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public @NonNull Set<Long> getCompletedRecipients(long messageId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Set<Long>      results  = new HashSet<>();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECIPIENT_ID}, MESSAGE_ID + " = ?",
+                              new String[] {String.valueOf(messageId)}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  public void markCompleted(long messageId, long recipientId) {
+    ContentValues values = new ContentValues(2);
+    values.put(MESSAGE_ID, messageId);
+    values.put(RECIPIENT_ID, recipientId);
+
+    databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  public void clear(long messageId) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, MESSAGE_ID + " = ?",
+                                                new String[] {String.valueOf(messageId)});
+  }
+}
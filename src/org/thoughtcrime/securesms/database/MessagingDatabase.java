@@ -5,6 +5,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -12,18 +14,24 @@ import org.thoughtcrime.securesms.database.documents.Document;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
   private static final String TAG = MessagingDatabase.class.getSimpleName();
 
+  protected static final int MAX_RECEIPT_QUERY_ARGUMENTS = 500;
+
   public MessagingDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -38,7 +46,7 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     IdentityKeyMismatchList document = new IdentityKeyMismatchList(items);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    beginTransaction(database);
 
     try {
       setDocument(database, messageId, MISMATCHED_IDENTITIES, document);
@@ -73,7 +81,7 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected <D extends Document<I>, I> void removeFromDocument(long messageId, String column, I object, Class<D> clazz) throws IOException {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    beginTransaction(database);
 
     try {
       D           document = getDocument(database, messageId, column, clazz);
@@ -105,7 +113,7 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected <T extends Document<I>, I> void addToDocument(long messageId, String column, List<I> objects, Class<T> clazz) throws IOException {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    beginTransaction(database);
 
     try {
       T document = getDocument(database, messageId, column, clazz);
@@ -166,6 +174,67 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     }
   }
 
+  protected static Map<Long, List<SyncMessageId>> groupByTimestamp(@NonNull List<SyncMessageId> messageIds) {
+    Map<Long, List<SyncMessageId>> results = new HashMap<>();
+
+    for (SyncMessageId messageId : messageIds) {
+      List<SyncMessageId> group = results.get(messageId.getTimetamp());
+
+      if (group == null) {
+        group = new LinkedList<>();
+        results.put(messageId.getTimetamp(), group);
+      }
+
+      group.add(messageId);
+    }
+
+    return results;
+  }
+
+  protected static String getPlaceholders(int count) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < count; i++) {
+      if (i > 0) builder.append(',');
+      builder.append('?');
+    }
+
+    return builder.toString();
+  }
+
+  protected static String[] toSelectionArgs(@NonNull List<Long> values) {
+    String[] args = new String[values.size()];
+
+    for (int i = 0; i < args.length; i++) {
+      args[i] = String.valueOf(values.get(i));
+    }
+
+    return args;
+  }
+
+  /**
+   * Canonicalizes an address through a per-batch cache, so that a receipt batch only
+   * pays for number parsing once per distinct address.
+   *
+   * @return The canonical address, or null if it could not be parsed.
+   */
+  protected @Nullable String getCanonicalAddress(@NonNull Map<String, String> cache, @Nullable String address) {
+    if (address == null)            return null;
+    if (cache.containsKey(address)) return cache.get(address);
+
+    String canonical;
+
+    try {
+      canonical = Util.canonicalizeNumberOrGroup(context, address);
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+      canonical = null;
+    }
+
+    cache.put(address, canonical);
+    return canonical;
+  }
+
   public static class SyncMessageId {
 
     private final String address;
@@ -33,6 +33,7 @@ import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.crypto.AsymmetricMasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
@@ -51,6 +52,7 @@ import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingGroupMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingSecureMediaMessage;
+import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
@@ -67,9 +69,13 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ws.com.google.android.mms.MmsException;
@@ -174,6 +180,18 @@ public class MmsDatabase extends MessagingDatabase {
     return 0;
   }
 
+  private boolean isUnread(long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {READ}, ID_WHERE, new String[] {String.valueOf(messageId)}, null, null, null);
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
   public void addFailures(long messageId, List<NetworkFailure> failure) {
     try {
       addToDocument(messageId, NETWORK_FAILURE, failure, NetworkFailureList.class);
@@ -190,55 +208,66 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementDeliveryReceiptCount(SyncMessageId messageId) {
-    MmsAddressDatabase addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
-    SQLiteDatabase     database        = databaseHelper.getWritableDatabase();
-    Cursor             cursor          = null;
-    boolean            found           = false;
+  /*package*/ Set<SyncMessageId> incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> messageIds,
+                                                              @NonNull Map<String, String> canonicalAddresses,
+                                                              @NonNull Set<Long> updatedThreads)
+  {
+    MmsAddressDatabase             addressDatabase = DatabaseFactory.getMmsAddressDatabase(context);
+    SQLiteDatabase                 database        = databaseHelper.getWritableDatabase();
+    Map<Long, List<SyncMessageId>> byTimestamp     = groupByTimestamp(messageIds);
+    Set<SyncMessageId>             matched         = Collections.newSetFromMap(new IdentityHashMap<SyncMessageId, Boolean>());
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+    for (List<Long> timestamps : Util.partition(new ArrayList<>(byTimestamp.keySet()), MAX_RECEIPT_QUERY_ARGUMENTS)) {
+      Cursor cursor = null;
 
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          List<String> addresses = addressDatabase.getAddressesListForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, DATE_SENT},
+                                DATE_SENT + " IN (" + getPlaceholders(timestamps.size()) + ")",
+                                toSelectionArgs(timestamps), null, null, null, null);
 
-          for (String storedAddress : addresses) {
-            try {
-              String ourAddress   = canonicalizeNumber(context, messageId.getAddress());
-              String theirAddress = canonicalizeNumberOrGroup(context, storedAddress);
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
+            continue;
+          }
 
-              if (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress)) {
-                long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-                long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          long         id        = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          List<String> addresses = addressDatabase.getAddressesListForId(id);
+          int          receipts  = 0;
 
-                found = true;
+          for (String storedAddress : addresses) {
+            String theirAddress = getCanonicalAddress(canonicalAddresses, storedAddress);
 
-                database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                                 RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
-                                 new String[] {String.valueOf(id)});
+            if (theirAddress == null) continue;
 
-                DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-                notifyConversationListeners(threadId);
+            for (SyncMessageId messageId : byTimestamp.get(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT)))) {
+              String ourAddress = getCanonicalAddress(canonicalAddresses, messageId.getAddress());
+
+              if (ourAddress != null && (ourAddress.equals(theirAddress) || GroupUtil.isEncodedGroup(theirAddress))) {
+                matched.add(messageId);
+                receipts++;
               }
-            } catch (InvalidNumberException e) {
-              Log.w("MmsDatabase", e);
             }
           }
-        }
-      }
 
-      if (!found) {
-        try {
-          earlyReceiptCache.increment(messageId.getTimetamp(), canonicalizeNumber(context, messageId.getAddress()));
-        } catch (InvalidNumberException e) {
-          Log.w(TAG, e);
+          if (receipts > 0) {
+            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                             RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " + ID + " = ?",
+                             new String[] {String.valueOf(receipts), String.valueOf(id)});
+
+            updatedThreads.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
+          }
         }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
+
+    return matched;
+  }
+
+  /*package*/ void addEarlyReceipt(SyncMessageId messageId, String canonicalAddress) {
+    earlyReceiptCache.increment(messageId.getTimetamp(), canonicalAddress);
   }
 
   public long getThreadIdForMessage(long id) {
@@ -439,7 +468,7 @@ public class MmsDatabase extends MessagingDatabase {
     List<SyncMessageId> result    = new LinkedList<>();
     Cursor              cursor    = null;
 
-    database.beginTransaction();
+    beginTransaction(database);
 
     try {
       cursor = database.query(TABLE_NAME, new String[] {ADDRESS, DATE_SENT, MESSAGE_BOX}, where, selection, null, null, null);
@@ -469,10 +498,11 @@ public class MmsDatabase extends MessagingDatabase {
     Cursor             cursor          = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, READ}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
 
       while (cursor.moveToNext()) {
         List<String> addresses = addressDatabase.getAddressesListForId(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+        boolean      unread    = cursor.getInt(cursor.getColumnIndexOrThrow(READ)) == 0;
 
         for (String storedAddress : addresses) {
           try {
@@ -483,8 +513,17 @@ public class MmsDatabase extends MessagingDatabase {
               long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
               long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
-              database.execSQL("UPDATE " + TABLE_NAME + " SET " + READ + " = 1 WHERE " + ID + " = ?",
-                               new String[] {String.valueOf(id)});
+              beginTransaction(database);
+              try {
+                database.execSQL("UPDATE " + TABLE_NAME + " SET " + READ + " = 1 WHERE " + ID + " = ?",
+                                 new String[] {String.valueOf(id)});
+                if (unread) DatabaseFactory.getThreadDatabase(context).decrementUnreadCount(threadId, 1);
+                database.setTransactionSuccessful();
+              } finally {
+                database.endTransaction();
+              }
+
+              unread = false;
 
               DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
               notifyConversationListeners(threadId);
@@ -689,8 +728,6 @@ public class MmsDatabase extends MessagingDatabase {
                                         contentValues);
 
     DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-    notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return new Pair<>(messageId, threadId);
@@ -770,8 +807,21 @@ public class MmsDatabase extends MessagingDatabase {
     if (!contentValues.containsKey(DATE_SENT))
       contentValues.put(DATE_SENT, contentValues.getAsLong(DATE_RECEIVED));
 
-    long messageId = db.insert(TABLE_NAME, null, contentValues);
-    addressDatabase.insertAddressesForId(messageId, MmsAddresses.forFrom(Util.toIsoString(notification.getFrom().getTextString())));
+    long messageId;
+
+    beginTransaction(db);
+    try {
+      messageId = db.insert(TABLE_NAME, null, contentValues);
+      addressDatabase.insertAddressesForId(messageId, MmsAddresses.forFrom(Util.toIsoString(notification.getFrom().getTextString())));
+
+      if (contentValues.getAsInteger(READ) == 0) {
+        DatabaseFactory.getThreadDatabase(context).incrementUnreadCount(threadId, 1);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     return new Pair<>(messageId, threadId);
   }
@@ -892,21 +942,62 @@ public class MmsDatabase extends MessagingDatabase {
 
     contentValues.put(PART_COUNT, attachments.size());
 
-    db.beginTransaction();
+    long               messageId;
+    List<AttachmentId> attachmentIds;
+
+    beginTransaction(db);
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId     = db.insert(TABLE_NAME, null, contentValues);
 
       addressDatabase.insertAddressesForId(messageId, addresses);
-      partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
+      attachmentIds = partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
+
+      if (contentValues.getAsInteger(READ) == 0) {
+        DatabaseFactory.getThreadDatabase(context).incrementUnreadCount(contentValues.getAsLong(THREAD_ID), 1);
+      }
 
       db.setTransactionSuccessful();
-      return messageId;
     } finally {
       db.endTransaction();
-
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    updateThreadForInsert(messageId, contentValues, attachments, attachmentIds);
+    return messageId;
+  }
+
+  private void updateThreadForInsert(long messageId,
+                                     @NonNull ContentValues contentValues,
+                                     @NonNull List<Attachment> attachments,
+                                     @NonNull List<AttachmentId> attachmentIds)
+  {
+    long    box          = contentValues.getAsLong(MESSAGE_BOX);
+    long    date         = Types.isPushType(box) ? contentValues.getAsLong(DATE_SENT) : contentValues.getAsLong(DATE_RECEIVED);
+    String  body         = contentValues.getAsString(BODY);
+    Integer receiptCount = contentValues.getAsInteger(RECEIPT_COUNT);
+    Uri     thumbnail    = null;
+
+    if (!Types.isGroupUpdate(box) && !Types.isGroupQuit(box) && !attachments.isEmpty()) {
+      // The full update reads the thumbnail from a slide deck of the message's first
+      // attachment, so build the same deck from the row that was just written.
+      Attachment         first      = attachments.get(0);
+      DatabaseAttachment attachment = new DatabaseAttachment(attachmentIds.get(0), messageId,
+                                                             first.getDataUri() != null,
+                                                             first.getContentType(),
+                                                             first.getTransferState(),
+                                                             first.getSize(), first.getLocation(),
+                                                             first.getKey(), first.getRelay());
+      Slide              slide      = new SlideDeck(context, attachment).getThumbnailSlide();
+
+      if (slide != null) thumbnail = slide.getThumbnailUri();
+    }
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(contentValues.getAsLong(THREAD_ID),
+                                                               body == null ? "" : body, thumbnail, date,
+                                                               contentValues.getAsLong(DATE_RECEIVED),
+                                                               SmsDatabase.Status.STATUS_NONE,
+                                                               receiptCount != null ? receiptCount : 0,
+                                                               box, true);
   }
 
   public boolean delete(long messageId) {
@@ -917,7 +1008,17 @@ public class MmsDatabase extends MessagingDatabase {
     addrDatabase.deleteAddressesForId(messageId);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    boolean        unread   = isUnread(messageId);
+
+    beginTransaction(database);
+    try {
+      database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      if (unread) DatabaseFactory.getThreadDatabase(context).decrementUnreadCount(threadId, 1);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
     return threadDeleted;
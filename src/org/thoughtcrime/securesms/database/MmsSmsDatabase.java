@@ -30,7 +30,12 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ws.com.google.android.mms.pdu.PduHeaders;
@@ -73,7 +78,7 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getConversation(long threadId, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
 
     Cursor cursor = queryTables(PROJECTION, selection, order, limit > 0 ? String.valueOf(limit) : null);
@@ -86,6 +91,50 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0);
   }
 
+  /**
+   * Returns up to pageSize messages older than the given key, newest first.
+   */
+  public Cursor getConversationBefore(long threadId, @NonNull PageKey key, int pageSize) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(SMS_TRANSPORT, key, "<");
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(MMS_TRANSPORT, key, "<");
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, order, null, String.valueOf(pageSize), key.getArgs());
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns up to pageSize messages newer than the given key, newest first.
+   */
+  public Cursor getConversationAfter(long threadId, @NonNull PageKey key, int pageSize) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC, " + MmsSmsColumns.UNIQUE_ROW_ID + " ASC";
+    String outerOrder   = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(SMS_TRANSPORT, key, ">");
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(MMS_TRANSPORT, key, ">");
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, order, outerOrder, String.valueOf(pageSize), key.getArgs());
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns every message at or newer than the given key, newest first.  Used to
+   * re-query an already loaded window without touching the rest of the thread.
+   */
+  public Cursor getConversationSince(long threadId, @NonNull PageKey key) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+    String smsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(SMS_TRANSPORT, key, ">=");
+    String mmsSelection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + getKeysetClause(MMS_TRANSPORT, key, ">=");
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, order, null, null, key.getArgs());
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -111,14 +160,7 @@ public class MmsSmsDatabase extends Database {
   }
 
   public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
-
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();;
-    }
+    return DatabaseFactory.getThreadDatabase(context).getUnreadCount(threadId);
   }
 
   public int getConversationCount(long threadId) {
@@ -129,11 +171,83 @@ public class MmsSmsDatabase extends Database {
   }
 
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId) {
-    DatabaseFactory.getSmsDatabase(context).incrementDeliveryReceiptCount(syncMessageId);
-    DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(syncMessageId);
+    incrementDeliveryReceiptCounts(Collections.singletonList(syncMessageId), Collections.<Long>emptyList());
+  }
+
+  /**
+   * Applies a batch of delivery receipts inside a single transaction, then refreshes
+   * and notifies each affected thread once. Receipts which don't match any outgoing
+   * message are held in the early receipt caches, as with single receipts.
+   *
+   * @param pendingReceiptIds The {@link PendingReceiptDatabase} rows of the receipts,
+   *                          removed in the same transaction.
+   */
+  public void incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds,
+                                             @NonNull List<Long> pendingReceiptIds)
+  {
+    SmsDatabase         smsDatabase        = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase         mmsDatabase        = DatabaseFactory.getMmsDatabase(context);
+    ThreadDatabase      threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase      database           = databaseHelper.getWritableDatabase();
+    Map<String, String> canonicalAddresses = new HashMap<>();
+    Set<Long>           updatedThreads     = new HashSet<>();
+    Set<SyncMessageId>  matched            = Collections.newSetFromMap(new IdentityHashMap<SyncMessageId, Boolean>());
+
+    beginTransaction(database);
+    try {
+      matched.addAll(smsDatabase.incrementDeliveryReceiptCounts(syncMessageIds, canonicalAddresses, updatedThreads));
+      matched.addAll(mmsDatabase.incrementDeliveryReceiptCounts(syncMessageIds, canonicalAddresses, updatedThreads));
+
+      for (long threadId : updatedThreads) {
+        threadDatabase.update(threadId, false);
+      }
+
+      DatabaseFactory.getPendingReceiptDatabase(context).delete(pendingReceiptIds);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    for (SyncMessageId syncMessageId : syncMessageIds) {
+      if (matched.contains(syncMessageId)) continue;
+
+      String canonicalAddress = smsDatabase.getCanonicalAddress(canonicalAddresses, syncMessageId.getAddress());
+
+      if (canonicalAddress != null) {
+        smsDatabase.addEarlyReceipt(syncMessageId, canonicalAddress);
+        mmsDatabase.addEarlyReceipt(syncMessageId, canonicalAddress);
+      }
+    }
+
+    for (long threadId : updatedThreads) {
+      notifyConversationListeners(threadId);
+    }
+  }
+
+  private String getKeysetClause(String transport, PageKey key, String operator) {
+    String date;
+    String uniqueRowId;
+
+    if (MMS_TRANSPORT.equals(transport)) {
+      date        = MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED;
+      uniqueRowId = "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " || '::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT;
+    } else {
+      date        = SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED;
+      uniqueRowId = "'SMS::' || " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " || '::' || " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_SENT;
+    }
+
+    String strict = operator.substring(0, 1);
+
+    return "(" + date + " " + strict + " ? OR (" + date + " = ? AND " + uniqueRowId + " " + operator + " ?))";
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, order, null, limit, null);
+  }
+
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection,
+                             String order, String outerOrder, String limit, String[] selectionArgs)
+  {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
@@ -247,9 +361,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.STATUS);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, null, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -258,11 +372,53 @@ public class MmsSmsDatabase extends Database {
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
     @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, outerOrder, null);
 
     Log.w("MmsSmsDatabase", "Executing query: " + query);
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return db.rawQuery(query, getUnionSelectionArgs(selectionArgs));
+  }
+
+  private @Nullable String[] getUnionSelectionArgs(@Nullable String[] selectionArgs) {
+    if (selectionArgs == null) return null;
+
+    String[] unionArgs = new String[selectionArgs.length * 2];
+    System.arraycopy(selectionArgs, 0, unionArgs, 0, selectionArgs.length);
+    System.arraycopy(selectionArgs, 0, unionArgs, selectionArgs.length, selectionArgs.length);
+
+    return unionArgs;
+  }
+
+  /**
+   * A position in a conversation, ordered by received date and then by unique row id.
+   */
+  public static class PageKey {
+
+    private final long   dateReceived;
+    private final String uniqueRowId;
+
+    public PageKey(long dateReceived, @NonNull String uniqueRowId) {
+      this.dateReceived = dateReceived;
+      this.uniqueRowId  = uniqueRowId;
+    }
+
+    public static @NonNull PageKey fromCursor(@NonNull Cursor cursor) {
+      return new PageKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                         cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID)));
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    public @NonNull String getUniqueRowId() {
+      return uniqueRowId;
+    }
+
+    private String[] getArgs() {
+      String date = String.valueOf(dateReceived);
+      return new String[] {date, date, uniqueRowId};
+    }
   }
 
   public Reader readerFor(@NonNull Cursor cursor, @Nullable MasterSecret masterSecret) {
@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteTransactionListener;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces content change notifications for conversation and conversation list URIs.
+ *
+ * Repeated notifications for the same URI are debounced, so that a burst of writes results
+ * in a single requery by any observing loader. Notifications raised inside a transaction
+ * begun through {@link Database#beginTransaction(android.database.sqlite.SQLiteDatabase)}
+ * are held until the outermost transaction ends.
+ */
+public class NotificationCoalescer {
+
+  private static final String TAG = NotificationCoalescer.class.getSimpleName();
+
+  @VisibleForTesting static final long DEBOUNCE_MILLIS  = 75;
+  private static final long            MAX_DELAY_MILLIS = 500;
+  private static final long            STATS_INTERVAL   = 100;
+
+  private static NotificationCoalescer instance;
+
+  public static synchronized NotificationCoalescer getInstance(Context context) {
+    if (instance == null) {
+      instance = new NotificationCoalescer(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private final Context                       context;
+  private final ScheduledExecutorService      executor  = Executors.newSingleThreadScheduledExecutor();
+  private final Map<Uri, PendingNotification> pending   = new HashMap<>();
+  private final AtomicLong                    requested = new AtomicLong();
+  private final AtomicLong                    delivered = new AtomicLong();
+
+  private final ThreadLocal<TransactionScope> transactionScope = new ThreadLocal<TransactionScope>() {
+    @Override
+    protected TransactionScope initialValue() {
+      return new TransactionScope();
+    }
+  };
+
+  private final SQLiteTransactionListener transactionListener = new SQLiteTransactionListener() {
+    @Override
+    public void onBegin() {
+      transactionScope.get().depth++;
+    }
+
+    @Override
+    public void onCommit() {
+      onTransactionEnd();
+    }
+
+    @Override
+    public void onRollback() {
+      onTransactionEnd();
+    }
+  };
+
+  @VisibleForTesting NotificationCoalescer(Context context) {
+    this.context = context;
+  }
+
+  public void notifyChange(@NonNull Uri uri) {
+    TransactionScope scope = transactionScope.get();
+
+    requested.incrementAndGet();
+
+    if (scope.depth > 0) scope.uris.add(uri);
+    else                 schedule(uri);
+  }
+
+  public SQLiteTransactionListener getTransactionListener() {
+    return transactionListener;
+  }
+
+  public long getRequestedCount() {
+    return requested.get();
+  }
+
+  public long getDeliveredCount() {
+    return delivered.get();
+  }
+
+  /**
+   * @return The number of notifications which were folded into another one, and so
+   * didn't trigger a requery of their own.
+   */
+  public synchronized long getCoalescedCount() {
+    return Math.max(0, requested.get() - delivered.get() - pending.size());
+  }
+
+  private void onTransactionEnd() {
+    TransactionScope scope = transactionScope.get();
+
+    if (--scope.depth > 0) return;
+
+    scope.depth = 0;
+
+    Set<Uri> uris = new LinkedHashSet<>(scope.uris);
+    scope.uris.clear();
+
+    for (Uri uri : uris) {
+      schedule(uri);
+    }
+  }
+
+  private synchronized void schedule(@NonNull Uri uri) {
+    long                now      = System.currentTimeMillis();
+    PendingNotification existing = pending.get(uri);
+    long                first    = existing != null ? existing.firstRequested : now;
+
+    if (existing != null) {
+      existing.future.cancel(false);
+    }
+
+    PendingNotification notification = new PendingNotification(uri, first);
+    long                deadline     = Math.min(now + DEBOUNCE_MILLIS, first + MAX_DELAY_MILLIS);
+
+    notification.future = executor.schedule(notification, Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+    pending.put(uri, notification);
+  }
+
+  private synchronized boolean claim(@NonNull PendingNotification notification) {
+    if (pending.get(notification.uri) != notification) return false;
+
+    pending.remove(notification.uri);
+    return true;
+  }
+
+  private class PendingNotification implements Runnable {
+
+    private final Uri  uri;
+    private final long firstRequested;
+
+    private ScheduledFuture<?> future;
+
+    private PendingNotification(Uri uri, long firstRequested) {
+      this.uri            = uri;
+      this.firstRequested = firstRequested;
+    }
+
+    @Override
+    public void run() {
+      if (claim(this)) {
+        long count = delivered.incrementAndGet();
+
+        context.getContentResolver().notifyChange(uri, null);
+
+        if (count % STATS_INTERVAL == 0) {
+          Log.w(TAG, String.format("Delivered %d of %d requested notifications (%d coalesced)",
+                                   count, getRequestedCount(), getCoalescedCount()));
+        }
+      }
+    }
+  }
+
+  private static class TransactionScope {
+    private final Set<Uri> uris  = new LinkedHashSet<>();
+    private       int      depth = 0;
+  }
+}
@@ -0,0 +1,72 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.util.Pair;
+
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Holds incoming delivery receipts from the time they are received until
+ * {@link DeliveryReceiptBatcher} has applied them, so that a receipt the server
+ * has already been told we received isn't lost if the process dies in between.
+ */
+public class PendingReceiptDatabase extends Database {
+
+  private static final String TABLE_NAME = "pending_receipts";
+  private static final String ID         = "_id";
+  private static final String ADDRESS    = "address";
+  private static final String TIMESTAMP  = "timestamp";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      ADDRESS + " TEXT, " + TIMESTAMP + " INTEGER);";
+
+  public PendingReceiptDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public long insert(@NonNull SyncMessageId syncMessageId) {
+    ContentValues values = new ContentValues(2);
+    values.put(ADDRESS, syncMessageId.getAddress());
+    values.put(TIMESTAMP, syncMessageId.getTimetamp());
+
+    return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
+  }
+
+  public @NonNull List<Pair<Long, SyncMessageId>> getPending() {
+    SQLiteDatabase                  database = databaseHelper.getReadableDatabase();
+    List<Pair<Long, SyncMessageId>> results  = new LinkedList<>();
+    Cursor                          cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID, ADDRESS, TIMESTAMP}, null, null, null, null, ID);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(new Pair<>(cursor.getLong(0), new SyncMessageId(cursor.getString(1), cursor.getLong(2))));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  public void delete(@NonNull List<Long> ids) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    for (int i=0;i<ids.size();i+=MessagingDatabase.MAX_RECEIPT_QUERY_ARGUMENTS) {
+      List<Long> chunk = ids.subList(i, Math.min(ids.size(), i + MessagingDatabase.MAX_RECEIPT_QUERY_ARGUMENTS));
+
+      database.delete(TABLE_NAME, ID + " IN (" + MessagingDatabase.getPlaceholders(chunk.size()) + ")",
+                      MessagingDatabase.toSelectionArgs(chunk));
+    }
+  }
+}
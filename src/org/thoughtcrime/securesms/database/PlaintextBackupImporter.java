@@ -86,6 +86,7 @@ public class PlaintextBackupImporter {
       }
 
       for (long threadId : modifiedThreads) {
+        threads.repairCounts(threadId);
         threads.update(threadId, true);
       }
 
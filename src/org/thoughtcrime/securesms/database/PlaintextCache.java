@@ -0,0 +1,143 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of decrypted SMS bodies, keyed by message id.
+ *
+ * Entries are sized by their plaintext length and evicted in LRU order once the
+ * byte budget is exceeded. Each entry remembers the length of the ciphertext it was
+ * decrypted from and the tail of it that encodes the MAC, so a body that is rewritten
+ * in place (or a row id that SQLite reuses after a delete) is treated as a miss rather
+ * than returning stale text. The MAC is keyed and covers the IV and the whole body, so
+ * comparing it exactly identifies the ciphertext without reading all of it.
+ *
+ * The cache only ever holds plaintext while the master secret is available, and
+ * {@link org.thoughtcrime.securesms.service.KeyCachingService} clears it whenever
+ * the secret is set or forgotten.
+ */
+public class PlaintextCache {
+
+  private static final String TAG = PlaintextCache.class.getSimpleName();
+
+  private static final long MIN_BUDGET_BYTES = 256 * 1024;
+  private static final long MAX_BUDGET_BYTES = 2 * 1024 * 1024;
+  private static final int  ENTRY_OVERHEAD   = 64;
+  private static final int  MAC_SUFFIX_CHARS = 32;
+
+  private static final PlaintextCache instance = new PlaintextCache(getDefaultBudget());
+
+  private final LinkedHashMap<Long, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private final long                       budget;
+
+  private long size;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public static PlaintextCache getInstance() {
+    return instance;
+  }
+
+  /*package*/ PlaintextCache(long budget) {
+    this.budget = budget;
+  }
+
+  public synchronized @Nullable String get(long messageId, @NonNull String ciphertext) {
+    Entry entry = cache.get(messageId);
+
+    if (entry != null && entry.matches(ciphertext)) {
+      hits++;
+      return entry.plaintext;
+    }
+
+    misses++;
+    return null;
+  }
+
+  public synchronized void put(long messageId, @NonNull String ciphertext, @NonNull String plaintext) {
+    Entry entry = new Entry(ciphertext, plaintext);
+
+    if (entry.size > budget) {
+      remove(messageId);
+      return;
+    }
+
+    Entry previous = cache.put(messageId, entry);
+
+    if (previous != null) size -= previous.size;
+    size += entry.size;
+
+    trim();
+  }
+
+  public synchronized void remove(long messageId) {
+    Entry entry = cache.remove(messageId);
+    if (entry != null) size -= entry.size;
+  }
+
+  public synchronized void clear() {
+    Log.w(TAG, "Clearing " + cache.size() + " entries (" + size + " bytes), " +
+               "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions);
+
+    cache.clear();
+    size = 0;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<Long, Entry>> iterator = cache.entrySet().iterator();
+
+    while (size > budget && iterator.hasNext()) {
+      size -= iterator.next().getValue().size;
+      iterator.remove();
+      evictions++;
+    }
+  }
+
+  private static long getDefaultBudget() {
+    long budget = Runtime.getRuntime().maxMemory() / 64;
+    return Math.max(MIN_BUDGET_BYTES, Math.min(MAX_BUDGET_BYTES, budget));
+  }
+
+  private static class Entry {
+    private final String plaintext;
+    private final int    ciphertextLength;
+    private final String ciphertextSuffix;
+    private final int    size;
+
+    private Entry(String ciphertext, String plaintext) {
+      this.plaintext        = plaintext;
+      this.ciphertextLength = ciphertext.length();
+      this.ciphertextSuffix = ciphertext.substring(Math.max(0, ciphertextLength - MAC_SUFFIX_CHARS));
+      this.size             = ENTRY_OVERHEAD + 2 * (plaintext.length() + ciphertextSuffix.length());
+    }
+
+    private boolean matches(String ciphertext) {
+      return ciphertext.length() == ciphertextLength &&
+             ciphertext.regionMatches(ciphertextLength - ciphertextSuffix.length(),
+                                      ciphertextSuffix, 0, ciphertextSuffix.length());
+    }
+  }
+}
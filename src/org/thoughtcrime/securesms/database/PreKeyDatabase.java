@@ -0,0 +1,241 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Holds one-time and signed prekey records in a single table, indexed by key type
+ * and key id, so that a refresh stores its whole batch in one transaction.
+ */
+public class PreKeyDatabase extends Database {
+
+  private static final String TAG = PreKeyDatabase.class.getSimpleName();
+
+  private static final String TABLE_NAME = "prekeys";
+  private static final String ID         = "_id";
+  private static final String TYPE       = "type";
+  private static final String KEY_ID     = "key_id";
+  private static final String RECORD     = "record";
+
+  private static final int TYPE_ONE_TIME = 1;
+  private static final int TYPE_SIGNED   = 2;
+
+  private static final String KEY_WHERE = TYPE + " = ? AND " + KEY_ID + " = ?";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+      TYPE + " INTEGER, " + KEY_ID + " INTEGER, " + RECORD + " BLOB, " +
+      "UNIQUE(" + TYPE + ", " + KEY_ID + ") ON CONFLICT REPLACE);";
+
+  public PreKeyDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public @Nullable PreKeyRecord getPreKey(int keyId) {
+    byte[] serialized = getRecord(TYPE_ONE_TIME, keyId);
+
+    try {
+      return serialized != null ? new PreKeyRecord(serialized) : null;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public @Nullable SignedPreKeyRecord getSignedPreKey(int keyId) {
+    byte[] serialized = getRecord(TYPE_SIGNED, keyId);
+
+    try {
+      return serialized != null ? new SignedPreKeyRecord(serialized) : null;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public @NonNull List<SignedPreKeyRecord> getAllSignedPreKeys() {
+    SQLiteDatabase           database = databaseHelper.getReadableDatabase();
+    List<SignedPreKeyRecord> results  = new LinkedList<>();
+    Cursor                   cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, TYPE + " = ?",
+                              new String[] {String.valueOf(TYPE_SIGNED)}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        try {
+          results.add(new SignedPreKeyRecord(cursor.getBlob(0)));
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  public boolean containsPreKey(int keyId) {
+    return containsRecord(TYPE_ONE_TIME, keyId);
+  }
+
+  public boolean containsSignedPreKey(int keyId) {
+    return containsRecord(TYPE_SIGNED, keyId);
+  }
+
+  public void insertPreKeys(@NonNull Collection<PreKeyRecord> records) {
+    SQLiteDatabase  database  = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = database.compileStatement(getInsertStatement());
+
+    database.beginTransaction();
+
+    try {
+      for (PreKeyRecord record : records) {
+        bindRecord(statement, TYPE_ONE_TIME, record.getId(), record.serialize());
+        statement.executeInsert();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+
+  public void insertSignedPreKeys(@NonNull Collection<SignedPreKeyRecord> records) {
+    SQLiteDatabase  database  = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = database.compileStatement(getInsertStatement());
+
+    database.beginTransaction();
+
+    try {
+      for (SignedPreKeyRecord record : records) {
+        bindRecord(statement, TYPE_SIGNED, record.getId(), record.serialize());
+        statement.executeInsert();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+
+  public void insertPreKey(int keyId, @NonNull PreKeyRecord record) {
+    insertRecord(TYPE_ONE_TIME, keyId, record.serialize());
+  }
+
+  public void insertSignedPreKey(int keyId, @NonNull SignedPreKeyRecord record) {
+    insertRecord(TYPE_SIGNED, keyId, record.serialize());
+  }
+
+  public void removePreKeys(@NonNull Collection<Integer> keyIds) {
+    removeRecords(TYPE_ONE_TIME, keyIds);
+  }
+
+  public void removePreKey(int keyId) {
+    removeRecord(TYPE_ONE_TIME, keyId);
+  }
+
+  public void removeSignedPreKey(int keyId) {
+    removeRecord(TYPE_SIGNED, keyId);
+  }
+
+  private @Nullable byte[] getRecord(int type, int keyId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {RECORD}, KEY_WHERE,
+                              new String[] {String.valueOf(type), String.valueOf(keyId)},
+                              null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getBlob(0);
+      }
+
+      return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private boolean containsRecord(int type, int keyId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ID}, KEY_WHERE,
+                              new String[] {String.valueOf(type), String.valueOf(keyId)},
+                              null, null, null);
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  private void insertRecord(int type, int keyId, byte[] serialized) {
+    ContentValues values = new ContentValues(3);
+    values.put(TYPE, type);
+    values.put(KEY_ID, keyId);
+    values.put(RECORD, serialized);
+
+    databaseHelper.getWritableDatabase().replace(TABLE_NAME, null, values);
+  }
+
+  private void removeRecord(int type, int keyId) {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, KEY_WHERE,
+                                                new String[] {String.valueOf(type), String.valueOf(keyId)});
+  }
+
+  private void removeRecords(int type, Collection<Integer> keyIds) {
+    SQLiteDatabase  database  = databaseHelper.getWritableDatabase();
+    SQLiteStatement statement = database.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE " + KEY_WHERE);
+
+    database.beginTransaction();
+
+    try {
+      for (int keyId : keyIds) {
+        statement.clearBindings();
+        statement.bindLong(1, type);
+        statement.bindLong(2, keyId);
+        statement.execute();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      statement.close();
+    }
+  }
+
+  private String getInsertStatement() {
+    return "INSERT INTO " + TABLE_NAME + " (" + TYPE + ", " + KEY_ID + ", " + RECORD + ") VALUES (?, ?, ?)";
+  }
+
+  private void bindRecord(SQLiteStatement statement, int type, int keyId, byte[] serialized) {
+    statement.clearBindings();
+    statement.bindLong(1, type);
+    statement.bindLong(2, keyId);
+    statement.bindBlob(3, serialized);
+  }
+}
@@ -14,6 +14,7 @@ import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.IOException;
+import java.util.List;
 
 public class PushDatabase extends Database {
 
@@ -27,15 +28,26 @@ public class PushDatabase extends Database {
   public  static final String LEGACY_MSG   = "body";
   public  static final String CONTENT      = "content";
   public  static final String TIMESTAMP    = "timestamp";
+  private static final String DISPATCHED   = "dispatched";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
-      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER);";
+      TYPE + " INTEGER, " + SOURCE + " TEXT, " + DEVICE_ID + " INTEGER, " + LEGACY_MSG + " TEXT, " + CONTENT + " TEXT, " + TIMESTAMP + " INTEGER, " +
+      DISPATCHED + " INTEGER DEFAULT 1);";
 
   public PushDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public long insert(@NonNull SignalServiceEnvelope envelope) {
+    return insert(envelope, true);
+  }
+
+  /**
+   * @param dispatched False if no decrypt job has been queued for the envelope yet, in
+   *                   which case it's returned by {@link #getUndispatched()} until it's
+   *                   marked dispatched.
+   */
+  public long insert(@NonNull SignalServiceEnvelope envelope, boolean dispatched) {
     Optional<Long> messageId = find(envelope);
 
     if (messageId.isPresent()) {
@@ -48,6 +60,7 @@ public class PushDatabase extends Database {
       values.put(LEGACY_MSG, envelope.hasLegacyMessage() ? Base64.encodeBytes(envelope.getLegacyMessage()) : "");
       values.put(CONTENT, envelope.hasContent() ? Base64.encodeBytes(envelope.getContent()) : "");
       values.put(TIMESTAMP, envelope.getTimestamp());
+      values.put(DISPATCHED, dispatched ? 1 : 0);
 
       return databaseHelper.getWritableDatabase().insert(TABLE_NAME, null, values);
     }
@@ -88,6 +101,21 @@ public class PushDatabase extends Database {
     return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
   }
 
+  public Cursor getUndispatched() {
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, DISPATCHED + " = 0", null, null, null, null);
+  }
+
+  public void markDispatched(@NonNull List<Long> ids) {
+    if (ids.isEmpty()) return;
+
+    ContentValues values = new ContentValues(1);
+    values.put(DISPATCHED, 1);
+
+    databaseHelper.getWritableDatabase().update(TABLE_NAME, values,
+                                                ID + " IN (" + MessagingDatabase.getPlaceholders(ids.size()) + ")",
+                                                MessagingDatabase.toSelectionArgs(ids));
+  }
+
   public void delete(long id) {
     databaseHelper.getWritableDatabase().delete(TABLE_NAME, ID_WHERE, new String[] {id+""});
   }
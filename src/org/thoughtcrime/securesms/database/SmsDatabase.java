@@ -41,12 +41,18 @@ import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static org.thoughtcrime.securesms.util.Util.canonicalizeNumber;
@@ -88,6 +94,12 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
   };
 
+  private static final String MIGRATED_THREADS_TABLE = "sms_migrated_threads";
+  private static final String THEIR_THREAD_ID        = "their_thread_id";
+
+  public static final String CREATE_MIGRATED_THREADS_TABLE = "CREATE TABLE " + MIGRATED_THREADS_TABLE + " (" +
+    ID + " INTEGER PRIMARY KEY, " + THEIR_THREAD_ID + " INTEGER UNIQUE ON CONFLICT IGNORE);";
+
   private static final String[] MESSAGE_PROJECTION = new String[] {
       ID, THREAD_ID, ADDRESS, ADDRESS_DEVICE_ID, PERSON,
       DATE_RECEIVED + " AS " + NORMALIZED_DATE_RECEIVED,
@@ -142,6 +154,18 @@ public class SmsDatabase extends MessagingDatabase {
     }
   }
 
+  private boolean isUnread(long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {READ}, ID_WHERE, new String[] {String.valueOf(messageId)}, null, null, null);
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
   public int getMessageCount() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -252,52 +276,60 @@ public class SmsDatabase extends MessagingDatabase {
     updateTypeBitmask(id, Types.BASE_TYPE_MASK, Types.BASE_SENT_FAILED_TYPE);
   }
 
-  public void incrementDeliveryReceiptCount(SyncMessageId messageId) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
+  /*package*/ Set<SyncMessageId> incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> messageIds,
+                                                              @NonNull Map<String, String> canonicalAddresses,
+                                                              @NonNull Set<Long> updatedThreads)
+  {
+    SQLiteDatabase                 database    = databaseHelper.getWritableDatabase();
+    Map<Long, List<SyncMessageId>> byTimestamp = groupByTimestamp(messageIds);
+    Set<SyncMessageId>             matched     = Collections.newSetFromMap(new IdentityHashMap<SyncMessageId, Boolean>());
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null);
+    for (List<Long> timestamps : Util.partition(new ArrayList<>(byTimestamp.keySet()), MAX_RECEIPT_QUERY_ARGUMENTS)) {
+      Cursor cursor = null;
 
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          try {
-            String theirAddress = canonicalizeNumber(context, messageId.getAddress());
-            String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-
-            if (ourAddress.equals(theirAddress)) {
-              long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-              database.execSQL("UPDATE " + TABLE_NAME +
-                               " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
-                               ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-              DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-              notifyConversationListeners(threadId);
-              foundMessage = true;
+      try {
+        cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, DATE_SENT},
+                                DATE_SENT + " IN (" + getPlaceholders(timestamps.size()) + ")",
+                                toSelectionArgs(timestamps), null, null, null, null);
+
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
+            continue;
+          }
+
+          String ourAddress = getCanonicalAddress(canonicalAddresses, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          int    receipts   = 0;
+
+          if (ourAddress == null) continue;
+
+          for (SyncMessageId messageId : byTimestamp.get(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT)))) {
+            if (ourAddress.equals(getCanonicalAddress(canonicalAddresses, messageId.getAddress()))) {
+              matched.add(messageId);
+              receipts++;
             }
-          } catch (InvalidNumberException e) {
-            Log.w(TAG, e);
           }
-        }
-      }
 
-      if (!foundMessage) {
-        try {
-          earlyReceiptCache.increment(messageId.getTimetamp(), canonicalizeNumber(context, messageId.getAddress()));
-        } catch (InvalidNumberException e) {
-          Log.w(TAG, e);
+          if (receipts > 0) {
+            database.execSQL("UPDATE " + TABLE_NAME +
+                             " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + ? WHERE " +
+                             ID + " = ?",
+                             new String[] {String.valueOf(receipts),
+                                           String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+
+            updatedThreads.add(cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID)));
+          }
         }
+      } finally {
+        if (cursor != null)
+          cursor.close();
       }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
+
+    return matched;
+  }
+
+  /*package*/ void addEarlyReceipt(SyncMessageId messageId, String canonicalAddress) {
+    earlyReceiptCache.increment(messageId.getTimetamp(), canonicalAddress);
   }
 
   public List<SyncMessageId> setMessagesRead(long threadId) {
@@ -307,7 +339,7 @@ public class SmsDatabase extends MessagingDatabase {
     List<SyncMessageId> results   = new LinkedList<>();
     Cursor              cursor    = null;
 
-    database.beginTransaction();
+    beginTransaction(database);
     try {
       cursor = database.query(TABLE_NAME, new String[] {ADDRESS, DATE_SENT, TYPE}, where, selection, null, null, null);
 
@@ -335,7 +367,7 @@ public class SmsDatabase extends MessagingDatabase {
     Cursor         cursor       = null;
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
+      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE, READ},
                               DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
                               null, null, null, null);
 
@@ -345,12 +377,20 @@ public class SmsDatabase extends MessagingDatabase {
           String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
 
           if (ourAddress.equals(theirAddress)) {
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+            long    threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+            boolean unread   = cursor.getInt(cursor.getColumnIndexOrThrow(READ)) == 0;
 
             ContentValues contentValues = new ContentValues();
             contentValues.put(READ, 1);
 
-            database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {cursor.getLong(cursor.getColumnIndexOrThrow(ID)) + ""});
+            beginTransaction(database);
+            try {
+              database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {cursor.getLong(cursor.getColumnIndexOrThrow(ID)) + ""});
+              if (unread) DatabaseFactory.getThreadDatabase(context).decrementUnreadCount(threadId, 1);
+              database.setTransactionSuccessful();
+            } finally {
+              database.endTransaction();
+            }
 
             DatabaseFactory.getThreadDatabase(context).updateReadState(threadId);
             notifyConversationListeners(threadId);
@@ -403,10 +443,19 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, record.getBody().getBody());
     contentValues.put(THREAD_ID, record.getThreadId());
 
-    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long           newMessageId;
+
+    beginTransaction(db);
+    try {
+      newMessageId = db.insert(TABLE_NAME, null, contentValues);
+      DatabaseFactory.getThreadDatabase(context).incrementUnreadCount(record.getThreadId(), 1);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+    updateThreadForInsert(record.getThreadId(), contentValues);
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -440,10 +489,9 @@ public class SmsDatabase extends MessagingDatabase {
     values.put(TYPE, type);
     values.put(THREAD_ID, threadId);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    long messageId = insertUnreadAware(values, threadId, unread);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    updateThreadForInsert(threadId, values);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -515,20 +563,46 @@ public class SmsDatabase extends MessagingDatabase {
     values.put(TYPE, type);
     values.put(THREAD_ID, threadId);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long messageId    = db.insert(TABLE_NAME, null, values);
+    long messageId = insertUnreadAware(values, threadId, unread);
 
     if (unread) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    updateThreadForInsert(threadId, values);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
     return new Pair<>(messageId, threadId);
   }
 
+  private void updateThreadForInsert(long threadId, ContentValues values) {
+    long    type         = values.getAsLong(TYPE);
+    long    date         = Types.isPushType(type) ? values.getAsLong(DATE_SENT) : values.getAsLong(DATE_RECEIVED);
+    Integer status       = values.getAsInteger(STATUS);
+    Integer receiptCount = values.getAsInteger(RECEIPT_COUNT);
+
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, values.getAsString(BODY), null, date,
+                                                               values.getAsLong(DATE_RECEIVED),
+                                                               status != null ? status : Status.STATUS_NONE,
+                                                               receiptCount != null ? receiptCount : 0,
+                                                               type, true);
+  }
+
+  private long insertUnreadAware(ContentValues values, long threadId, boolean unread) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    beginTransaction(db);
+    try {
+      long messageId = db.insert(TABLE_NAME, null, values);
+      if (unread) DatabaseFactory.getThreadDatabase(context).incrementUnreadCount(threadId, 1);
+      db.setTransactionSuccessful();
+      return messageId;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public Pair<Long, Long> insertMessageInbox(IncomingTextMessage message) {
     return insertMessageInbox(message, Types.BASE_INBOX_TYPE);
   }
@@ -562,7 +636,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    updateThreadForInsert(threadId, contentValues);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -606,7 +680,19 @@ public class SmsDatabase extends MessagingDatabase {
     Log.w("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+    boolean unread    = isUnread(messageId);
+
+    beginTransaction(db);
+    try {
+      db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+      if (unread) DatabaseFactory.getThreadDatabase(context).decrementUnreadCount(threadId, 1);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    PlaintextCache.getInstance().remove(messageId);
+
     boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
     return threadDeleted;
@@ -650,7 +736,7 @@ public class SmsDatabase extends MessagingDatabase {
 
   /*package*/ SQLiteDatabase beginTransaction() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.beginTransaction();
+    beginTransaction(database);
     return database;
   }
 
@@ -676,6 +762,36 @@ public class SmsDatabase extends MessagingDatabase {
                                      " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
   }
 
+  /*package*/ void setThreadMigrated(SQLiteDatabase database, long theirThreadId) {
+    ContentValues values = new ContentValues(1);
+    values.put(THEIR_THREAD_ID, theirThreadId);
+
+    database.insert(MIGRATED_THREADS_TABLE, null, values);
+  }
+
+  /*package*/ Set<Long> getMigratedThreads() {
+    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    Set<Long>      results = new HashSet<>();
+    Cursor         cursor  = null;
+
+    try {
+      cursor = db.query(MIGRATED_THREADS_TABLE, new String[] {THEIR_THREAD_ID}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        results.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return results;
+  }
+
+  /*package*/ void clearMigratedThreads() {
+    databaseHelper.getWritableDatabase().delete(MIGRATED_THREADS_TABLE, null, null);
+  }
+
   public static class Status {
     public static final int STATUS_NONE     = -1;
     public static final int STATUS_COMPLETE  = 0;
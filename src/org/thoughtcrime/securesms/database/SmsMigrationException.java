@@ -0,0 +1,6 @@
+package org.thoughtcrime.securesms.database;
+
+public class SmsMigrationException extends Exception {
+  public SmsMigrationException(String s) {super(s);}
+  public SmsMigrationException(Throwable t) {super(t);}
+}
@@ -27,64 +27,45 @@ import android.util.Log;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Imports the system SMS database.
+ *
+ * The import is pipelined: a reader thread walks the system conversations and
+ * hands each message to a pool that encrypts the body, while the calling thread
+ * writes the encrypted rows in order through a single prepared statement,
+ * committing a transaction whenever a conversation ends with enough rows pending.
+ * Each conversation is checkpointed in the same transaction as its rows, so an
+ * interrupted or failed import resumes with the first conversation that wasn't
+ * committed.
+ */
 public class SmsMigrator {
 
   private static final String TAG = SmsMigrator.class.getSimpleName();
 
-  private static void addEncryptedStringToStatement(Context context, SQLiteStatement statement,
-                                                    Cursor cursor, MasterSecret masterSecret,
-                                                    int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, encrypt(masterSecret, cursor.getString(columnIndex)));
-    }
-  }
-
-  private static void addStringToStatement(SQLiteStatement statement, Cursor cursor,
-                                           int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindString(index, cursor.getString(columnIndex));
-    }
-  }
-
-  private static void addIntToStatement(SQLiteStatement statement, Cursor cursor,
-                                        int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
-
-    if (cursor.isNull(columnIndex)) {
-      statement.bindNull(index);
-    } else {
-      statement.bindLong(index, cursor.getLong(columnIndex));
-    }
-  }
+  private static final String PREFERENCES       = "SecureSMS";
+  private static final String MIGRATED          = "migrated";
 
-  private static void addTranslatedTypeToStatement(SQLiteStatement statement, Cursor cursor,
-                                                   int index, String key)
-  {
-    int columnIndex = cursor.getColumnIndexOrThrow(key);
+  private static final int MAX_TRANSACTION_SIZE = 1000;
+  private static final int MAX_PENDING_ROWS     = 500;
+  private static final int PROGRESS_INTERVAL    = 100;
 
-    if (cursor.isNull(columnIndex)) {
-      statement.bindLong(index, SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    } else {
-      long theirType = cursor.getLong(columnIndex);
-      statement.bindLong(index, SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT);
-    }
-  }
+  private static final PendingRow END_OF_IMPORT = new PendingRow(null, 0, 0, null);
 
   private static boolean isAppropriateTypeForMigration(Cursor cursor, int columnIndex) {
     long systemType = cursor.getLong(columnIndex);
@@ -95,24 +76,25 @@ public class SmsMigrator {
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
 
-  private static void getContentValuesForRow(Context context, MasterSecret masterSecret,
-                                             Cursor cursor, long threadId,
-                                             SQLiteStatement statement)
-  {
-    addStringToStatement(statement, cursor, 1, SmsDatabase.ADDRESS);
-    addIntToStatement(statement, cursor, 2, SmsDatabase.PERSON);
-    addIntToStatement(statement, cursor, 3, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 4, SmsDatabase.DATE_RECEIVED);
-    addIntToStatement(statement, cursor, 5, SmsDatabase.PROTOCOL);
-    addIntToStatement(statement, cursor, 6, SmsDatabase.READ);
-    addIntToStatement(statement, cursor, 7, SmsDatabase.STATUS);
-    addTranslatedTypeToStatement(statement, cursor, 8, SmsDatabase.TYPE);
-    addIntToStatement(statement, cursor, 9, SmsDatabase.REPLY_PATH_PRESENT);
-    addStringToStatement(statement, cursor, 10, SmsDatabase.SUBJECT);
-    addEncryptedStringToStatement(context, statement, cursor, masterSecret, 11, SmsDatabase.BODY);
-    addStringToStatement(statement, cursor, 12, SmsDatabase.SERVICE_CENTER);
-
-    statement.bindLong(13, threadId);
+  private static Map<String, String> getTheirCanonicalAddresses(Context context) {
+    Map<String, String> addresses = new HashMap<>();
+    Uri                 uri       = Uri.parse("content://mms-sms/canonical-addresses");
+    Cursor              cursor    = null;
+
+    try {
+      cursor = context.getContentResolver().query(uri, new String[] {"_id", "address"}, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        addresses.put(cursor.getString(0), cursor.getString(1));
+      }
+    } catch (IllegalStateException | IllegalArgumentException | SQLiteException | SecurityException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return addresses;
   }
 
   private static String getTheirCanonicalAddress(Context context, String theirRecipientId) {
@@ -136,13 +118,20 @@ public class SmsMigrator {
     }
   }
 
-  private static Recipients getOurRecipients(Context context, String theirRecipients) {
+  private static Recipients getOurRecipients(Context context, Map<String, String> canonicalAddresses,
+                                             String theirRecipients)
+  {
     StringTokenizer tokenizer = new StringTokenizer(theirRecipients.trim(), " ");
     StringBuilder sb          = new StringBuilder();
 
     while (tokenizer.hasMoreTokens()) {
       String theirRecipientId = tokenizer.nextToken();
-      String address          = getTheirCanonicalAddress(context, theirRecipientId);
+      String address          = canonicalAddresses.get(theirRecipientId);
+
+      if (address == null) {
+        address = getTheirCanonicalAddress(context, theirRecipientId);
+        if (address != null) canonicalAddresses.put(theirRecipientId, address);
+      }
 
       if (address == null)
         continue;
@@ -157,92 +146,218 @@ public class SmsMigrator {
     else                  return RecipientFactory.getRecipientsFromString(context, sb.toString(), true);
   }
 
-  private static String encrypt(MasterSecret masterSecret, String body)
-  {
-    MasterCipher masterCipher = new MasterCipher(masterSecret);
-    return masterCipher.encryptBody(body);
+  private static List<ThreadMigration> getThreadMigrations(Context context) {
+    ThreadDatabase        threadDatabase     = DatabaseFactory.getThreadDatabase(context);
+    Map<String, String>   canonicalAddresses = getTheirCanonicalAddresses(context);
+    Set<Long>             migratedThreads    = DatabaseFactory.getSmsDatabase(context).getMigratedThreads();
+    List<ThreadMigration> migrations         = new LinkedList<>();
+    Cursor                cursor             = null;
+
+    try {
+      Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
+      cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
+
+      while (cursor != null && cursor.moveToNext()) {
+        long   theirThreadId   = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
+        String theirRecipients = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
+        long   ourThreadId     = -1;
+
+        if (migratedThreads.contains(theirThreadId)) {
+          Log.w(TAG, "Already migrated thread " + theirThreadId + ", skipping...");
+        } else {
+          Recipients ourRecipients = getOurRecipients(context, canonicalAddresses, theirRecipients);
+          if (ourRecipients != null) ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
+        }
+
+        migrations.add(new ThreadMigration(theirThreadId, ourThreadId, cursor.getPosition(), cursor.getCount()));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return migrations;
   }
 
-  private static void migrateConversation(Context context, MasterSecret masterSecret,
-                                          SmsMigrationProgressListener listener,
-                                          ProgressDescription progress,
-                                          long theirThreadId, long ourThreadId)
+  private static void readConversation(Context context, ExecutorService encryptor,
+                                       final MasterCipher masterCipher,
+                                       BlockingQueue<PendingRow> queue,
+                                       ThreadMigration thread)
+      throws InterruptedException
   {
-    SmsDatabase ourSmsDatabase = DatabaseFactory.getSmsDatabase(context);
-    Cursor cursor              = null;
+    Cursor cursor = null;
 
     try {
-      Uri uri = Uri.parse("content://sms/conversations/" + theirThreadId);
+      Uri uri = Uri.parse("content://sms/conversations/" + thread.theirThreadId);
 
       try {
         cursor = context.getContentResolver().query(uri, null, null, null, null);
       } catch (SQLiteException e) {
         /// Work around for weird sony-specific (?) bug: #4309
         Log.w(TAG, e);
-        return;
       }
 
-      SQLiteDatabase transaction = ourSmsDatabase.beginTransaction();
-      SQLiteStatement statement  = ourSmsDatabase.createInsertStatement(transaction);
-
       while (cursor != null && cursor.moveToNext()) {
         int typeColumn = cursor.getColumnIndex(SmsDatabase.TYPE);
 
         if (cursor.isNull(typeColumn) || isAppropriateTypeForMigration(cursor, typeColumn)) {
-          getContentValuesForRow(context, masterSecret, cursor, ourThreadId, statement);
-          statement.execute();
+          final MigrationRow row = new MigrationRow(cursor);
+
+          queue.put(new PendingRow(thread, cursor.getPosition(), cursor.getCount(),
+                                   encryptor.submit(new Callable<MigrationRow>() {
+                                     @Override
+                                     public MigrationRow call() {
+                                       row.encrypt(masterCipher);
+                                       return row;
+                                     }
+                                   })));
         }
-
-        listener.progressUpdate(new ProgressDescription(progress, cursor.getCount(), cursor.getPosition()));
       }
-
-      ourSmsDatabase.endTransaction(transaction);
-      DatabaseFactory.getThreadDatabase(context).update(ourThreadId, true);
-      DatabaseFactory.getThreadDatabase(context).notifyConversationListeners(ourThreadId);
-
     } finally {
       if (cursor != null)
         cursor.close();
     }
+
+    queue.put(new PendingRow(thread, 0, 0, null));
   }
 
-  public static void migrateDatabase(Context context,
+  private static void commit(Context context, SmsDatabase database, SQLiteDatabase transaction,
+                             SQLiteStatement statement, List<ThreadMigration> threads)
+  {
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+
+    for (ThreadMigration thread : threads) {
+      database.setThreadMigrated(transaction, thread.theirThreadId);
+      threadDatabase.repairCounts(thread.ourThreadId);
+    }
+
+    statement.close();
+    database.endTransaction(transaction);
+
+    for (ThreadMigration thread : threads) {
+      threadDatabase.update(thread.ourThreadId, true);
+      threadDatabase.notifyConversationListeners(thread.ourThreadId);
+    }
+
+    threads.clear();
+  }
+
+  public static void migrateDatabase(final Context context,
                                      MasterSecret masterSecret,
                                      SmsMigrationProgressListener listener)
+      throws SmsMigrationException
   {
 //    if (context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).getBoolean("migrated", false))
 //      return;
 
-    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
-    Cursor cursor                 = null;
+    final List<ThreadMigration>     threads      = getThreadMigrations(context);
+    final BlockingQueue<PendingRow> queue        = new LinkedBlockingQueue<>(MAX_PENDING_ROWS);
+    final MasterCipher              masterCipher = new MasterCipher(masterSecret);
+    final ExecutorService           encryptor    = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+    final RuntimeException[]        readerError  = new RuntimeException[1];
+
+    Thread reader = new Thread(TAG) {
+      @Override
+      public void run() {
+        try {
+          try {
+            for (ThreadMigration thread : threads) {
+              if (thread.ourThreadId != -1) readConversation(context, encryptor, masterCipher, queue, thread);
+              else                          queue.put(new PendingRow(thread, 0, 0, null));
+            }
+          } catch (RuntimeException e) {
+            readerError[0] = e;
+          }
+
+          queue.put(END_OF_IMPORT);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Import abandoned by writer", e);
+        }
+      }
+    };
+
+    SmsDatabase           database     = DatabaseFactory.getSmsDatabase(context);
+    SQLiteDatabase        transaction  = null;
+    SQLiteStatement       statement    = null;
+    List<ThreadMigration> uncommitted  = new LinkedList<>();
+    int                   pendingRows  = 0;
+    int                   importedRows = 0;
+    long                  startTime    = System.currentTimeMillis();
+
+    reader.start();
 
     try {
-      Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
-      cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
+      PendingRow pending;
 
-      while (cursor != null && cursor.moveToNext()) {
-        long   theirThreadId         = cursor.getLong(cursor.getColumnIndexOrThrow("_id"));
-        String theirRecipients       = cursor.getString(cursor.getColumnIndexOrThrow("recipient_ids"));
-        Recipients ourRecipients     = getOurRecipients(context, theirRecipients);
-        ProgressDescription progress = new ProgressDescription(cursor.getCount(), cursor.getPosition(), 100, 0);
-
-        if (ourRecipients != null) {
-          long ourThreadId = threadDatabase.getThreadIdFor(ourRecipients);
-          migrateConversation(context, masterSecret,
-                              listener, progress,
-                              theirThreadId, ourThreadId);
+      while ((pending = queue.take()) != END_OF_IMPORT) {
+        if (transaction == null) {
+          transaction = database.beginTransaction();
+          statement   = database.createInsertStatement(transaction);
+        }
+
+        if (pending.row != null) {
+          pending.row.get().bind(statement, pending.thread.ourThreadId);
+          statement.execute();
+          pendingRows++;
+          importedRows++;
+
+          if (importedRows % PROGRESS_INTERVAL == 0) {
+            listener.progressUpdate(getProgress(pending, importedRows, startTime));
+          }
+        } else {
+          if (pending.thread.ourThreadId != -1) uncommitted.add(pending.thread);
+
+          if (pendingRows >= MAX_TRANSACTION_SIZE) {
+            commit(context, database, transaction, statement, uncommitted);
+            transaction = null;
+            pendingRows = 0;
+          }
+
+          ProgressDescription progress = getProgress(pending, importedRows, startTime);
+          progress.incrementPrimaryComplete();
+          listener.progressUpdate(progress);
         }
+      }
+
+      if (readerError[0] != null) {
+        throw new SmsMigrationException(readerError[0]);
+      }
 
-        progress.incrementPrimaryComplete();
-        listener.progressUpdate(progress);
+      if (transaction != null) {
+        commit(context, database, transaction, statement, uncommitted);
+        transaction = null;
       }
+    } catch (InterruptedException e) {
+      throw new SmsMigrationException(e);
+    } catch (ExecutionException e) {
+      throw new SmsMigrationException(e.getCause());
+    } catch (SQLiteException e) {
+      throw new SmsMigrationException(e);
     } finally {
-      if (cursor != null)
-        cursor.close();
+      if (transaction != null) {
+        statement.close();
+        transaction.endTransaction();
+      }
+
+      reader.interrupt();
+      encryptor.shutdownNow();
     }
 
-    context.getSharedPreferences("SecureSMS", Context.MODE_PRIVATE).edit()
-      .putBoolean("migrated", true).apply();
+    Log.w(TAG, "Imported " + importedRows + " messages from " + threads.size() + " threads in " +
+               (System.currentTimeMillis() - startTime) + "ms");
+
+    database.clearMigratedThreads();
+
+    context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE).edit()
+      .putBoolean(MIGRATED, true).apply();
+  }
+
+  private static ProgressDescription getProgress(PendingRow pending, int importedRows, long startTime) {
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+    return new ProgressDescription(pending.thread.threadCount, pending.thread.threadPosition,
+                                   pending.rowCount, pending.rowPosition,
+                                   importedRows, (int)(importedRows * 1000L / elapsed));
   }
 
   public interface SmsMigrationProgressListener {
@@ -254,14 +369,25 @@ public class SmsMigrator {
     public       int primaryComplete;
     public final int secondaryTotal;
     public final int secondaryComplete;
+    public final int messagesImported;
+    public final int messagesPerSecond;
 
     public ProgressDescription(int primaryTotal, int primaryComplete,
                                int secondaryTotal, int secondaryComplete)
+    {
+      this(primaryTotal, primaryComplete, secondaryTotal, secondaryComplete, 0, 0);
+    }
+
+    public ProgressDescription(int primaryTotal, int primaryComplete,
+                               int secondaryTotal, int secondaryComplete,
+                               int messagesImported, int messagesPerSecond)
     {
       this.primaryTotal      = primaryTotal;
       this.primaryComplete   = primaryComplete;
       this.secondaryTotal    = secondaryTotal;
       this.secondaryComplete = secondaryComplete;
+      this.messagesImported  = messagesImported;
+      this.messagesPerSecond = messagesPerSecond;
     }
 
     public ProgressDescription(ProgressDescription that, int secondaryTotal, int secondaryComplete) {
@@ -269,6 +395,8 @@ public class SmsMigrator {
       this.primaryTotal      = that.primaryTotal;
       this.secondaryComplete = secondaryComplete;
       this.secondaryTotal    = secondaryTotal;
+      this.messagesImported  = that.messagesImported;
+      this.messagesPerSecond = that.messagesPerSecond;
     }
 
     public void incrementPrimaryComplete() {
@@ -276,4 +404,112 @@ public class SmsMigrator {
     }
   }
 
+  private static class ThreadMigration {
+    private final long theirThreadId;
+    private final long ourThreadId;
+    private final int  threadPosition;
+    private final int  threadCount;
+
+    private ThreadMigration(long theirThreadId, long ourThreadId, int threadPosition, int threadCount) {
+      this.theirThreadId  = theirThreadId;
+      this.ourThreadId    = ourThreadId;
+      this.threadPosition = threadPosition;
+      this.threadCount    = threadCount;
+    }
+  }
+
+  private static class PendingRow {
+    private final ThreadMigration      thread;
+    private final int                  rowPosition;
+    private final int                  rowCount;
+    private final Future<MigrationRow> row;
+
+    private PendingRow(ThreadMigration thread, int rowPosition, int rowCount, Future<MigrationRow> row) {
+      this.thread      = thread;
+      this.rowPosition = rowPosition;
+      this.rowCount    = rowCount;
+      this.row         = row;
+    }
+  }
+
+  private static class MigrationRow {
+    private final String address;
+    private final Long   person;
+    private final Long   dateReceived;
+    private final Long   protocol;
+    private final Long   read;
+    private final Long   status;
+    private final long   type;
+    private final Long   replyPathPresent;
+    private final String subject;
+    private final String serviceCenter;
+    private       String body;
+
+    private MigrationRow(Cursor cursor) {
+      this.address          = getString(cursor, SmsDatabase.ADDRESS);
+      this.person           = getLong(cursor, SmsDatabase.PERSON);
+      this.dateReceived     = getLong(cursor, SmsDatabase.DATE_RECEIVED);
+      this.protocol         = getLong(cursor, SmsDatabase.PROTOCOL);
+      this.read             = getLong(cursor, SmsDatabase.READ);
+      this.status           = getLong(cursor, SmsDatabase.STATUS);
+      this.type             = getTranslatedType(cursor, SmsDatabase.TYPE);
+      this.replyPathPresent = getLong(cursor, SmsDatabase.REPLY_PATH_PRESENT);
+      this.subject          = getString(cursor, SmsDatabase.SUBJECT);
+      this.body             = getString(cursor, SmsDatabase.BODY);
+      this.serviceCenter    = getString(cursor, SmsDatabase.SERVICE_CENTER);
+    }
+
+    private void encrypt(MasterCipher masterCipher) {
+      if (body != null) body = masterCipher.encryptBody(body);
+    }
+
+    private void bind(SQLiteStatement statement, long threadId) {
+      bindString(statement, 1, address);
+      bindLong(statement, 2, person);
+      bindLong(statement, 3, dateReceived);
+      bindLong(statement, 4, dateReceived);
+      bindLong(statement, 5, protocol);
+      bindLong(statement, 6, read);
+      bindLong(statement, 7, status);
+      statement.bindLong(8, type);
+      bindLong(statement, 9, replyPathPresent);
+      bindString(statement, 10, subject);
+      bindString(statement, 11, body);
+      bindString(statement, 12, serviceCenter);
+
+      statement.bindLong(13, threadId);
+    }
+
+    private static String getString(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getString(columnIndex);
+    }
+
+    private static Long getLong(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+      return cursor.isNull(columnIndex) ? null : cursor.getLong(columnIndex);
+    }
+
+    private static long getTranslatedType(Cursor cursor, String key) {
+      int columnIndex = cursor.getColumnIndexOrThrow(key);
+
+      if (cursor.isNull(columnIndex)) {
+        return SmsDatabase.Types.BASE_INBOX_TYPE | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT;
+      } else {
+        long theirType = cursor.getLong(columnIndex);
+        return SmsDatabase.Types.translateFromSystemBaseType(theirType) | SmsDatabase.Types.ENCRYPTION_SYMMETRIC_BIT;
+      }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindString(index, value);
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Long value) {
+      if (value == null) statement.bindNull(index);
+      else               statement.bindLong(index, value);
+    }
+  }
+
 }
@@ -67,6 +67,7 @@ public class ThreadDatabase extends Database {
   public  static final String ARCHIVED        = "archived";
   public  static final String STATUS          = "status";
   public  static final String RECEIPT_COUNT   = "delivery_receipt_count";
+  public  static final String UNREAD_COUNT    = "unread_count";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("                    +
     ID + " INTEGER PRIMARY KEY, " + DATE + " INTEGER DEFAULT 0, "                                  +
@@ -75,7 +76,7 @@ public class ThreadDatabase extends Database {
     TYPE + " INTEGER DEFAULT 0, " + ERROR + " INTEGER DEFAULT 0, "                                 +
     SNIPPET_TYPE + " INTEGER DEFAULT 0, " + SNIPPET_URI + " TEXT DEFAULT NULL, "                   +
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
-    RECEIPT_COUNT + " INTEGER DEFAULT 0);";
+    RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_IDS + ");",
@@ -153,6 +154,52 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Folds a newly inserted message into the thread summary.  The message count is bumped
+   * and the snippet replaced only if the new message has the latest received date in the
+   * thread, which is the same ordering {@link #update(long, boolean)} picks its snippet by,
+   * so the thread never needs to be recounted or its newest message re-read.
+   */
+  public void updateForInsert(long threadId, @Nullable String body, @Nullable Uri attachment,
+                              long date, long dateReceived, int status, int receiptCount,
+                              long type, boolean unarchive)
+  {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    long           truncated = date - date % 1000;
+    String         thread    = String.valueOf(threadId);
+
+    ContentValues snippetValues = new ContentValues(6);
+    snippetValues.put(DATE, truncated);
+    snippetValues.put(SNIPPET, body);
+    snippetValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
+    snippetValues.put(SNIPPET_TYPE, type);
+    snippetValues.put(STATUS, status);
+    snippetValues.put(RECEIPT_COUNT, receiptCount);
+
+    beginTransaction(db);
+    try {
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1" +
+                 (unarchive ? ", " + ARCHIVED + " = 0" : "") + " WHERE " + ID + " = ?",
+                 new String[] {thread});
+
+      db.update(TABLE_NAME, snippetValues, ID + " = ? AND ? >= MAX(" +
+                    getLatestReceivedQuery(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED) + ", " +
+                    getLatestReceivedQuery(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED) + ")",
+                new String[] {thread, String.valueOf(dateReceived), thread, thread});
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners();
+  }
+
+  private String getLatestReceivedQuery(String table, String dateReceivedColumn) {
+    return "IFNULL((SELECT MAX(" + dateReceivedColumn + ") FROM " + table + " WHERE " +
+           MmsSmsColumns.THREAD_ID + " = ?), 0)";
+  }
+
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
     ContentValues contentValues = new ContentValues(4);
 
@@ -237,6 +284,8 @@ public class ThreadDatabase extends Database {
         DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
         DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
 
+        repairCounts(threadId);
+
         update(threadId, false);
         notifyConversationListeners(threadId);
       }
@@ -248,25 +297,43 @@ public class ThreadDatabase extends Database {
 
   public void setAllThreadsRead() {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
-    ContentValues contentValues = new ContentValues(1);
+    ContentValues contentValues = new ContentValues(2);
     contentValues.put(READ, 1);
+    contentValues.put(UNREAD_COUNT, 0);
+
+    beginTransaction(db);
+    try {
+      db.update(TABLE_NAME, contentValues, null, null);
 
-    db.update(TABLE_NAME, contentValues, null, null);
+      DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
+      DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
-    DatabaseFactory.getSmsDatabase(context).setAllMessagesRead();
-    DatabaseFactory.getMmsDatabase(context).setAllMessagesRead();
     notifyConversationListListeners();
   }
 
   public List<SyncMessageId> setRead(long threadId) {
-    ContentValues contentValues = new ContentValues(1);
+    ContentValues contentValues = new ContentValues(2);
     contentValues.put(READ, 1);
+    contentValues.put(UNREAD_COUNT, 0);
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
+    SQLiteDatabase            db = databaseHelper.getWritableDatabase();
+    final List<SyncMessageId> smsRecords;
+    final List<SyncMessageId> mmsRecords;
+
+    beginTransaction(db);
+    try {
+      db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
 
-    final List<SyncMessageId> smsRecords = DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
-    final List<SyncMessageId> mmsRecords = DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
+      smsRecords = DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
+      mmsRecords = DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     notifyConversationListListeners();
 
@@ -432,7 +499,7 @@ public class ThreadDatabase extends Database {
     return getThreadIdFor(recipients, DistributionTypes.DEFAULT);
   }
 
-  public long getThreadIdFor(Recipients recipients, int distributionType) {
+  public synchronized long getThreadIdFor(Recipients recipients, int distributionType) {
     long[] recipientIds    = getRecipientIds(recipients);
     String recipientsList  = getRecipientsAsString(recipientIds);
     SQLiteDatabase db      = databaseHelper.getReadableDatabase();
@@ -473,7 +540,7 @@ public class ThreadDatabase extends Database {
   }
 
   public void updateReadState(long threadId) {
-    int unreadCount = DatabaseFactory.getMmsSmsDatabase(context).getUnreadCount(threadId);
+    int unreadCount = getUnreadCount(threadId);
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(READ, unreadCount == 0);
@@ -484,13 +551,65 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  public int getUnreadCount(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {UNREAD_COUNT}, ID_WHERE,
+                        new String[] {String.valueOf(threadId)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return 0;
+  }
+
+  /*package*/ void incrementUnreadCount(long threadId, int amount) {
+    if (amount == 0) return;
+
+    databaseHelper.getWritableDatabase()
+                  .execSQL("UPDATE " + TABLE_NAME + " SET " + UNREAD_COUNT + " = MAX(0, " + UNREAD_COUNT + " + ?) WHERE " + ID + " = ?",
+                           new String[] {String.valueOf(amount), String.valueOf(threadId)});
+  }
+
+  /*package*/ void decrementUnreadCount(long threadId, int amount) {
+    incrementUnreadCount(threadId, -amount);
+  }
+
+  /**
+   * Recomputes the stored unread and message counts for a thread from the message tables.
+   * Used after bulk writes that bypass the per-message bookkeeping (imports, trims).
+   */
+  public void repairCounts(long threadId) {
+    databaseHelper.getWritableDatabase().execSQL(getRepairCountsQuery() + " WHERE " + ID + " = ?",
+                                                 new String[] {String.valueOf(threadId)});
+  }
+
+  private String getRepairCountsQuery() {
+    return "UPDATE " + TABLE_NAME + " SET " +
+           UNREAD_COUNT + " = " + getCountQuery(SmsDatabase.TABLE_NAME, true) + " + " +
+                                  getCountQuery(MmsDatabase.TABLE_NAME, true) + ", " +
+           MESSAGE_COUNT + " = " + getCountQuery(SmsDatabase.TABLE_NAME, false) + " + " +
+                                   getCountQuery(MmsDatabase.TABLE_NAME, false);
+  }
+
+  private String getCountQuery(String table, boolean unreadOnly) {
+    return "(SELECT COUNT(*) FROM " + table + " WHERE " +
+           table + "." + MmsSmsColumns.THREAD_ID + " = " + TABLE_NAME + "." + ID +
+           (unreadOnly ? " AND " + table + "." + MmsSmsColumns.READ + " = 0)" : ")");
+  }
+
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
     if (count == 0) {
       deleteThread(threadId);
-      notifyConversationListListeners();
       return true;
     }
 
@@ -504,11 +623,9 @@ public class ThreadDatabase extends Database {
         updateThread(threadId, count, record.getBody().getBody(), getAttachmentUriFor(record),
                      record.getTimestamp(), record.getDeliveryStatus(), record.getReceiptCount(),
                      record.getType(), unarchive);
-        notifyConversationListListeners();
         return false;
       } else {
         deleteThread(threadId);
-        notifyConversationListListeners();
         return true;
       }
     } finally {
@@ -2,26 +2,65 @@ package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.PageKey;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+/**
+ * Loads a conversation one page at a time.  The loaded window always starts at the
+ * newest message and grows towards older messages with {@link #loadOlder(PageKey)},
+ * so the cost of a (re)load is bounded by what has been scrolled through rather than
+ * by the size of the thread.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
   private final long threadId;
-  private       long limit;
+  private final int  pageSize;
 
-  public ConversationLoader(Context context, long threadId, long limit) {
+  private volatile @Nullable PageKey boundary;
+  private volatile           boolean hasMore;
+
+  public ConversationLoader(Context context, long threadId, int pageSize) {
     super(context);
     this.threadId = threadId;
-    this.limit  = limit;
+    this.pageSize = pageSize;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public void loadOlder(@NonNull PageKey lastLoaded) {
+    PageKey current = boundary;
+
+    if (current != null && current.getUniqueRowId().equals(lastLoaded.getUniqueRowId())) {
+      return;
+    }
+
+    this.boundary = lastLoaded;
+    onContentChanged();
   }
 
   @Override
   public Cursor getCursor() {
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    PageKey        key      = boundary;
+
+    if (key == null) {
+      Cursor cursor = database.getConversation(threadId, pageSize);
+      hasMore = cursor != null && cursor.getCount() >= pageSize;
+      return cursor;
+    }
+
+    Cursor window = database.getConversationSince(threadId, key);
+    Cursor older  = database.getConversationBefore(threadId, key, pageSize);
+
+    hasMore = older != null && older.getCount() >= pageSize;
+
+    return new MergeCursor(new Cursor[] {window, older});
   }
 }
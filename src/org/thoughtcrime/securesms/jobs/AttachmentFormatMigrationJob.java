@@ -0,0 +1,42 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+public class AttachmentFormatMigrationJob extends MasterSecretJob {
+
+  private static final String TAG = AttachmentFormatMigrationJob.class.getSimpleName();
+
+  public AttachmentFormatMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(AttachmentFormatMigrationJob.class.getSimpleName())
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withPersistence()
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {
+
+  }
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    DatabaseFactory.getAttachmentDatabase(context).migrateLegacyAttachments(masterSecret);
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment format migration canceled.");
+  }
+}
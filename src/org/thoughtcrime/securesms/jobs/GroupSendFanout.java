@@ -0,0 +1,167 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.whispersystems.signalservice.api.SignalServiceMessageSender;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends one data message to each of a list of recipients individually, several at a
+ * time, reporting the outcome for every recipient as soon as it is known.
+ *
+ * Each send encrypts and uploads the message content on its own, so this is only
+ * suitable for messages without attachments, and each send may be followed by a
+ * sent transcript for linked devices, so callers should only use it when the local
+ * account has none.
+ */
+class GroupSendFanout {
+
+  private static final String TAG = GroupSendFanout.class.getSimpleName();
+
+  static final int MAX_PARALLELISM = 4;
+
+  private static final ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLELISM);
+
+  interface Listener {
+    void onDelivered(@NonNull SignalServiceAddress address);
+    void onNetworkFailure(@NonNull SignalServiceAddress address, @NonNull IOException exception);
+    void onUntrustedIdentity(@NonNull SignalServiceAddress address, @NonNull UntrustedIdentityException exception);
+  }
+
+  private final SignalServiceMessageSender messageSender;
+  private final ExecutorService            sendExecutor;
+
+  GroupSendFanout(@NonNull SignalServiceMessageSender messageSender) {
+    this(messageSender, executor);
+  }
+
+  GroupSendFanout(@NonNull SignalServiceMessageSender messageSender, @NonNull ExecutorService sendExecutor) {
+    this.messageSender = messageSender;
+    this.sendExecutor  = sendExecutor;
+  }
+
+  /**
+   * @throws IOException if a listener threw, once every other send has finished, or if
+   *                     the send was interrupted, after cancelling the sends not started.
+   */
+  Result send(@NonNull List<SignalServiceAddress> addresses,
+              @NonNull final SignalServiceDataMessage message,
+              @NonNull final Listener listener)
+      throws IOException
+  {
+    final Result       result  = new Result();
+    List<Future<Void>> pending = new LinkedList<>();
+    long               start   = System.currentTimeMillis();
+
+    for (final SignalServiceAddress address : addresses) {
+      pending.add(sendExecutor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          send(address, message, listener, result);
+          return null;
+        }
+      }));
+    }
+
+    IOException failure = null;
+
+    for (Future<Void> future : pending) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Log.w(TAG, e);
+        if (failure == null) failure = new IOException(e.getCause());
+      } catch (InterruptedException e) {
+        for (Future<Void> remaining : pending) {
+          remaining.cancel(false);
+        }
+
+        throw new IOException(e);
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+
+    result.elapsedMillis = System.currentTimeMillis() - start;
+
+    Log.w(TAG, "Sent to " + addresses.size() + " recipients in " + result.elapsedMillis + "ms " +
+               "(" + (addresses.size() * 1000L / Math.max(1, result.elapsedMillis)) + "/s), " +
+               result.getDeliveredCount() + " delivered, " +
+               result.getNetworkFailureCount() + " network failures, " +
+               result.getUntrustedIdentityCount() + " untrusted, " +
+               result.getUnregisteredCount() + " unregistered");
+
+    return result;
+  }
+
+  private void send(SignalServiceAddress address, SignalServiceDataMessage message,
+                    Listener listener, Result result)
+  {
+    try {
+      messageSender.sendMessage(address, message);
+      result.delivered.incrementAndGet();
+      listener.onDelivered(address);
+    } catch (UnregisteredUserException e) {
+      Log.w(TAG, e);
+      result.unregistered.incrementAndGet();
+      listener.onDelivered(address);
+    } catch (UntrustedIdentityException e) {
+      Log.w(TAG, e);
+      result.untrustedIdentities.incrementAndGet();
+      listener.onUntrustedIdentity(address, e);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      result.networkFailures.incrementAndGet();
+      listener.onNetworkFailure(address, e);
+    }
+  }
+
+  static class Result {
+    private final AtomicInteger delivered           = new AtomicInteger();
+    private final AtomicInteger unregistered        = new AtomicInteger();
+    private final AtomicInteger untrustedIdentities = new AtomicInteger();
+    private final AtomicInteger networkFailures     = new AtomicInteger();
+
+    private long elapsedMillis;
+
+    int getDeliveredCount() {
+      return delivered.get();
+    }
+
+    int getUnregisteredCount() {
+      return unregistered.get();
+    }
+
+    int getUntrustedIdentityCount() {
+      return untrustedIdentities.get();
+    }
+
+    int getNetworkFailureCount() {
+      return networkFailures.get();
+    }
+
+    long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    boolean isSuccess() {
+      return getNetworkFailureCount() == 0 && getUntrustedIdentityCount() == 0;
+    }
+  }
+}
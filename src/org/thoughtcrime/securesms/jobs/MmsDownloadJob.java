@@ -16,6 +16,7 @@ import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.mms.ApnUnavailableException;
 import org.thoughtcrime.securesms.mms.CompatMmsConnection;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
+import org.thoughtcrime.securesms.mms.MediaPartSink;
 import org.thoughtcrime.securesms.mms.MmsRadioException;
 import org.thoughtcrime.securesms.mms.PartParser;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
@@ -82,6 +83,8 @@ public class MmsDownloadJob extends MasterSecretJob {
       return;
     }
 
+    MediaPartSink partSink = new MediaPartSink(context, masterSecret);
+
     try {
       if (notification.get().first.getContentLocation() == null) {
         throw new MmsException("Notification content location was null.");
@@ -94,13 +97,13 @@ public class MmsDownloadJob extends MasterSecretJob {
 
       Log.w(TAG, "Downloading mms at " + Uri.parse(contentLocation).getHost());
 
-      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.get().second);
+      RetrieveConf retrieveConf = new CompatMmsConnection(context).retrieve(contentLocation, transactionId, notification.get().second, partSink);
 
       if (retrieveConf == null) {
         throw new MmsException("RetrieveConf was null");
       }
 
-      storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, notification.get().second);
+      storeRetrievedMms(masterSecret, contentLocation, messageId, threadId, retrieveConf, notification.get().second, partSink);
     } catch (ApnUnavailableException e) {
       Log.w(TAG, e);
       handleDownloadError(masterSecret, messageId, threadId, MmsDatabase.Status.DOWNLOAD_APN_UNAVAILABLE,
@@ -127,6 +130,8 @@ public class MmsDownloadJob extends MasterSecretJob {
     } catch (InvalidMessageException e) {
       Log.w(TAG, e);
       database.markAsDecryptFailed(messageId, threadId);
+    } finally {
+      partSink.delete();
     }
   }
 
@@ -148,7 +153,7 @@ public class MmsDownloadJob extends MasterSecretJob {
 
   private void storeRetrievedMms(MasterSecret masterSecret, String contentLocation,
                                  long messageId, long threadId, RetrieveConf retrieved,
-                                 int subscriptionId)
+                                 int subscriptionId, MediaPartSink partSink)
       throws MmsException, NoSessionException, DuplicateMessageException, InvalidMessageException,
              LegacyMessageException
   {
@@ -183,17 +188,20 @@ public class MmsDownloadJob extends MasterSecretJob {
       for (int i=0;i<media.getPartsNum();i++) {
         PduPart part = media.getPart(i);
 
-        if (part.getData() != null) {
-          Uri uri = provider.createUri(part.getData());
+        if (part.getDataUri() != null) {
+          attachments.add(new UriAttachment(part.getDataUri(), Util.toIsoString(part.getContentType()),
+                                            AttachmentDatabase.TRANSFER_PROGRESS_DONE,
+                                            partSink.getSize(part.getDataUri())));
+        } else if (part.getData() != null) {
+          byte[] data = part.getData();
+          Uri    uri  = provider.createUri(data);
           attachments.add(new UriAttachment(uri, Util.toIsoString(part.getContentType()),
                                             AttachmentDatabase.TRANSFER_PROGRESS_DONE,
-                                            part.getData().length));
+                                            data.length));
         }
       }
     }
 
-
-
     IncomingMediaMessage message  = new IncomingMediaMessage(from, to, cc, body, retrieved.getDate() * 1000L, attachments, subscriptionId);
 
     Pair<Long, Long> messageAndThreadId  = database.insertMessageInbox(new MasterSecretUnion(masterSecret),
@@ -27,6 +27,7 @@ import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingSecureMediaMessage;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
+import org.thoughtcrime.securesms.notifications.NotificationBatcher;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
@@ -74,6 +75,12 @@ public class PushDecryptJob extends ContextJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final String GROUP_PREFIX = "__PUSH_DECRYPT_JOB__";
+
+  private static final Object GROUP_UPDATE_LOCK = new Object();
+
+  private static SignalProtocolStore protocolStore;
+
   private final long messageId;
   private final long smsMessageId;
 
@@ -84,7 +91,7 @@ public class PushDecryptJob extends ContextJob {
   public PushDecryptJob(Context context, long pushMessageId, long smsMessageId, String sender) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
-                                .withGroupId("__PUSH_DECRYPT_JOB__")
+                                .withGroupId(GROUP_PREFIX + sender)
                                 .withWakeLock(true, 5, TimeUnit.SECONDS)
                                 .create());
     this.messageId    = pushMessageId;
@@ -130,7 +137,7 @@ public class PushDecryptJob extends ContextJob {
 
   private void handleMessage(MasterSecretUnion masterSecret, SignalServiceEnvelope envelope, Optional<Long> smsMessageId) {
     try {
-      SignalProtocolStore  axolotlStore = new SignalProtocolStoreImpl(context);
+      SignalProtocolStore  axolotlStore = getProtocolStore(context);
       SignalServiceAddress localAddress = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
       SignalServiceCipher  cipher       = new SignalServiceCipher(localAddress, axolotlStore);
 
@@ -211,7 +218,9 @@ public class PushDecryptJob extends ContextJob {
                                   @NonNull SignalServiceDataMessage message,
                                   @NonNull Optional<Long> smsMessageId)
   {
-    GroupMessageProcessor.process(context, masterSecret, envelope, message, false);
+    synchronized (GROUP_UPDATE_LOCK) {
+      GroupMessageProcessor.process(context, masterSecret, envelope, message, false);
+    }
 
     if (smsMessageId.isPresent()) {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
@@ -227,7 +236,9 @@ public class PushDecryptJob extends ContextJob {
     Long threadId;
 
     if (message.getMessage().isGroupUpdate()) {
-      threadId = GroupMessageProcessor.process(context, masterSecret, envelope, message.getMessage(), true);
+      synchronized (GROUP_UPDATE_LOCK) {
+        threadId = GroupMessageProcessor.process(context, masterSecret, envelope, message.getMessage(), true);
+      }
     } else if (message.getMessage().getAttachments().isPresent()) {
       threadId = handleSynchronizeSentMediaMessage(masterSecret, message, smsMessageId);
     } else {
@@ -296,7 +307,7 @@ public class PushDecryptJob extends ContextJob {
       DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentMediaMessage(@NonNull MasterSecretUnion masterSecret,
@@ -355,7 +366,7 @@ public class PushDecryptJob extends ContextJob {
       if (smsMessageId.isPresent()) database.deleteMessage(smsMessageId.get());
     }
 
-    MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+    NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
   }
 
   private long handleSynchronizeSentTextMessage(@NonNull MasterSecretUnion masterSecret,
@@ -390,7 +401,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsInvalidVersionKeyExchange(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
     }
@@ -405,7 +416,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsDecryptFailed(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
     }
@@ -420,7 +431,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsNoSession(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
     }
@@ -435,7 +446,7 @@ public class PushDecryptJob extends ContextJob {
     if (!smsMessageId.isPresent()) {
       Pair<Long, Long> messageAndThreadId = insertPlaceholder(envelope);
       smsDatabase.markAsLegacyVersion(messageAndThreadId.first);
-      MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+      NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
     }
@@ -477,7 +488,7 @@ public class PushDecryptJob extends ContextJob {
         Pair<Long, Long>            messageAndThreadId = database.insertMessageInbox(masterSecret, bundleMessage);
 
         database.setMismatchedIdentity(messageAndThreadId.first, recipientId, identityKey);
-        MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
+        NotificationBatcher.getInstance(context).add(masterSecret.getMasterSecret().orNull(), messageAndThreadId.second);
       } else {
         database.updateMessageBody(masterSecret, smsMessageId.get(), encoded);
         database.markAsPreKeyBundle(smsMessageId.get());
@@ -488,6 +499,14 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
+  private static synchronized SignalProtocolStore getProtocolStore(Context context) {
+    if (protocolStore == null) {
+      protocolStore = new SignalProtocolStoreImpl(context.getApplicationContext());
+    }
+
+    return protocolStore;
+  }
+
   private Pair<Long, Long> insertPlaceholder(@NonNull SignalServiceEnvelope envelope) {
     EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
     IncomingTextMessage   textMessage = new IncomingTextMessage(envelope.getSource(), envelope.getSourceDevice(),
@@ -5,9 +5,12 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.GroupSendDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
+import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.NetworkFailure;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.thoughtcrime.securesms.mms.OutgoingGroupMediaMessage;
@@ -18,6 +21,7 @@ import org.thoughtcrime.securesms.recipients.RecipientFormattingException;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
@@ -32,8 +36,13 @@ import org.whispersystems.signalservice.api.util.InvalidNumberException;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.GroupContext;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 
@@ -79,12 +88,28 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     OutgoingMediaMessage message  = database.getOutgoingMessage(masterSecret, messageId);
 
     try {
-      deliver(masterSecret, message, filterRecipientId);
+      if (isFanoutEligible(message)) {
+        GroupSendFanout.Result result = deliverFanout(masterSecret, message, filterRecipientId);
 
-      database.markAsPush(messageId);
-      database.markAsSecure(messageId);
-      database.markAsSent(messageId);
-      markAttachmentsUploaded(messageId, message.getAttachments());
+        database.markAsPush(messageId);
+
+        if (result.isSuccess()) {
+          database.markAsSecure(messageId);
+          database.markAsSent(messageId);
+        } else {
+          database.markAsSentFailed(messageId);
+          notifyMediaMessageDeliveryFailed(context, messageId);
+        }
+
+        DatabaseFactory.getGroupSendDatabase(context).clear(messageId);
+      } else {
+        deliver(masterSecret, message, filterRecipientId);
+
+        database.markAsPush(messageId);
+        database.markAsSecure(messageId);
+        database.markAsSent(messageId);
+        markAttachmentsUploaded(messageId, message.getAttachments());
+      }
     } catch (InvalidNumberException | RecipientFormattingException | UndeliverableMessageException e) {
       Log.w(TAG, e);
       database.markAsSentFailed(messageId);
@@ -126,6 +151,142 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
   @Override
   public void onCanceled() {
     DatabaseFactory.getMmsDatabase(context).markAsSentFailed(messageId);
+    DatabaseFactory.getGroupSendDatabase(context).clear(messageId);
+  }
+
+  /**
+   * Members can be sent to individually, and concurrently, only when doing so doesn't
+   * upload the attachments once per member or send linked devices one sent transcript
+   * per member.
+   */
+  private boolean isFanoutEligible(OutgoingMediaMessage message) {
+    return message.getAttachments().isEmpty() && !TextSecurePreferences.isMultiDevice(context);
+  }
+
+  /**
+   * Only members that were sent to (or turned out to be unregistered) are recorded as
+   * done, so a resumed send retries the ones that failed and the result covers every
+   * member that hasn't been sent to yet. Failures recorded by an earlier attempt are
+   * cleared once that member is sent to, and not recorded twice.
+   */
+  private GroupSendFanout.Result deliverFanout(MasterSecret masterSecret, OutgoingMediaMessage message,
+                                               long filterRecipientId)
+      throws InvalidNumberException, IOException
+  {
+    final MmsDatabase       database          = DatabaseFactory.getMmsDatabase(context);
+    final GroupSendDatabase groupSendDatabase = DatabaseFactory.getGroupSendDatabase(context);
+
+    byte[]                               groupId      = GroupUtil.getDecodedId(message.getRecipients().getPrimaryRecipient().getNumber());
+    List<Recipient>                      members      = getMembers(groupId, filterRecipientId);
+    Set<Long>                            completed    = groupSendDatabase.getCompletedRecipients(messageId);
+    List<SignalServiceAddress>           addresses    = new LinkedList<>();
+    final Map<String, Long>              recipientIds = new HashMap<>();
+    final Set<Long>                      failures     = new HashSet<>();
+    final Map<Long, IdentityKeyMismatch> mismatches   = new HashMap<>();
+
+    for (Recipient member : members) {
+      if (completed.contains(member.getRecipientId())) continue;
+
+      SignalServiceAddress address = getPushAddress(member.getNumber());
+      addresses.add(address);
+      recipientIds.put(address.getNumber(), member.getRecipientId());
+    }
+
+    if (!completed.isEmpty()) {
+      Log.w(TAG, "Resuming send, skipping " + completed.size() + " members already sent to");
+    }
+
+    getStoredFailures(masterSecret, failures, mismatches);
+
+    GroupSendFanout          fanout      = new GroupSendFanout(messageSenderFactory.create());
+    SignalServiceDataMessage dataMessage = getDataMessage(message, groupId, null);
+
+    return fanout.send(addresses, dataMessage, new GroupSendFanout.Listener() {
+      @Override
+      public void onDelivered(SignalServiceAddress address) {
+        long                recipientId = recipientIds.get(address.getNumber());
+        IdentityKeyMismatch mismatch    = mismatches.get(recipientId);
+
+        if (failures.contains(recipientId)) {
+          database.removeFailure(messageId, new NetworkFailure(recipientId));
+        }
+
+        if (mismatch != null) {
+          database.removeMismatchedIdentity(messageId, recipientId, mismatch.getIdentityKey());
+        }
+
+        groupSendDatabase.markCompleted(messageId, recipientId);
+      }
+
+      @Override
+      public void onNetworkFailure(SignalServiceAddress address, IOException exception) {
+        long recipientId = recipientIds.get(address.getNumber());
+
+        if (!failures.contains(recipientId)) {
+          database.addFailures(messageId, Collections.singletonList(new NetworkFailure(recipientId)));
+        }
+      }
+
+      @Override
+      public void onUntrustedIdentity(SignalServiceAddress address, UntrustedIdentityException exception) {
+        long                recipientId = recipientIds.get(address.getNumber());
+        IdentityKeyMismatch mismatch    = mismatches.get(recipientId);
+
+        if (mismatch == null || !mismatch.getIdentityKey().equals(exception.getIdentityKey())) {
+          database.addMismatchedIdentity(messageId, recipientId, exception.getIdentityKey());
+        }
+      }
+    });
+  }
+
+  private void getStoredFailures(MasterSecret masterSecret, Set<Long> failures,
+                                 Map<Long, IdentityKeyMismatch> mismatches)
+  {
+    MmsDatabase        database = DatabaseFactory.getMmsDatabase(context);
+    MmsDatabase.Reader reader   = database.readerFor(masterSecret, database.getMessage(messageId));
+
+    try {
+      MessageRecord record = reader.getNext();
+
+      if (record == null) return;
+
+      for (NetworkFailure failure : record.getNetworkFailures()) {
+        failures.add(failure.getRecipientId());
+      }
+
+      for (IdentityKeyMismatch mismatch : record.getIdentityKeyMismatches()) {
+        mismatches.put(mismatch.getRecipientId(), mismatch);
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private List<Recipient> getMembers(byte[] groupId, long filterRecipientId) {
+    if (filterRecipientId >= 0) {
+      List<Recipient> members = new LinkedList<>();
+      members.add(RecipientFactory.getRecipientForId(context, filterRecipientId, false));
+      return members;
+    } else {
+      return DatabaseFactory.getGroupDatabase(context).getGroupMembers(groupId, false).getRecipientsList();
+    }
+  }
+
+  private SignalServiceDataMessage getDataMessage(OutgoingMediaMessage message, byte[] groupId,
+                                                  List<SignalServiceAttachment> attachments)
+  {
+    if (message.isGroup()) {
+      OutgoingGroupMediaMessage groupMessage = (OutgoingGroupMediaMessage) message;
+      GroupContext              groupContext = groupMessage.getGroupContext();
+      SignalServiceAttachment   avatar       = attachments == null || attachments.isEmpty() ? null : attachments.get(0);
+      SignalServiceGroup.Type   type         = groupMessage.isGroupQuit() ? SignalServiceGroup.Type.QUIT : SignalServiceGroup.Type.UPDATE;
+      SignalServiceGroup        group        = new SignalServiceGroup(type, groupId, groupContext.getName(), groupContext.getMembersList(), avatar);
+
+      return new SignalServiceDataMessage(message.getSentTimeMillis(), group, null, null);
+    } else {
+      SignalServiceGroup group = new SignalServiceGroup(groupId);
+      return new SignalServiceDataMessage(message.getSentTimeMillis(), group, attachments, message.getBody());
+    }
   }
 
   private void deliver(MasterSecret masterSecret, OutgoingMediaMessage message, long filterRecipientId)
@@ -141,21 +302,7 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     if (filterRecipientId >= 0) addresses = getPushAddresses(filterRecipientId);
     else                        addresses = getPushAddresses(recipients);
 
-    if (message.isGroup()) {
-      OutgoingGroupMediaMessage groupMessage     = (OutgoingGroupMediaMessage) message;
-      GroupContext              groupContext     = groupMessage.getGroupContext();
-      SignalServiceAttachment   avatar           = attachments.isEmpty() ? null : attachments.get(0);
-      SignalServiceGroup.Type   type             = groupMessage.isGroupQuit() ? SignalServiceGroup.Type.QUIT : SignalServiceGroup.Type.UPDATE;
-      SignalServiceGroup        group            = new SignalServiceGroup(type, groupId, groupContext.getName(), groupContext.getMembersList(), avatar);
-      SignalServiceDataMessage  groupDataMessage = new SignalServiceDataMessage(message.getSentTimeMillis(), group, null, null);
-
-      messageSender.sendMessage(addresses, groupDataMessage);
-    } else {
-      SignalServiceGroup       group        = new SignalServiceGroup(groupId);
-      SignalServiceDataMessage groupMessage = new SignalServiceDataMessage(message.getSentTimeMillis(), group, attachments, message.getBody());
-
-      messageSender.sendMessage(addresses, groupMessage);
-    }
+    messageSender.sendMessage(addresses, getDataMessage(message, groupId, attachments));
   }
 
   private List<SignalServiceAddress> getPushAddresses(Recipients recipients) throws InvalidNumberException {
@@ -1,6 +1,8 @@
 package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
@@ -54,6 +56,11 @@ public abstract class PushSendJob extends SendJob {
     return new SignalServiceAddress(e164number, Optional.fromNullable(relay));
   }
 
+  /**
+   * Every send attempt streams the parts again, so a retried or resent media message
+   * re-uploads them. The message sender doesn't hand back the pointers it uploads, or
+   * take pointer attachments on the send path, so there's no upload to reuse yet.
+   */
   protected List<SignalServiceAttachment> getAttachmentsFor(MasterSecret masterSecret, List<Attachment> parts) {
     List<SignalServiceAttachment> attachments = new LinkedList<>();
 
@@ -64,7 +71,7 @@ public abstract class PushSendJob extends SendJob {
       {
         try {
           if (attachment.getDataUri() == null) throw new IOException("Assertion failed, outgoing attachment has no data!");
-          InputStream is = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
+          InputStream is = new AttachmentInputStream(context, masterSecret, attachment.getDataUri());
           attachments.add(SignalServiceAttachment.newStreamBuilder()
                                                  .withStream(is)
                                                  .withContentType(attachment.getContentType())
@@ -85,6 +92,71 @@ public abstract class PushSendJob extends SendJob {
     return attachments;
   }
 
+  /**
+   * Opens the underlying part only once the sender starts uploading it, and releases
+   * it as soon as it has been read to the end, so that a send that fails before the
+   * upload (or is retried) doesn't decrypt the part or leave it open.
+   */
+  private static class AttachmentInputStream extends InputStream {
+
+    private final Context      context;
+    private final MasterSecret masterSecret;
+    private final Uri          uri;
+
+    private InputStream stream;
+    private boolean     finished;
+
+    private AttachmentInputStream(@NonNull Context context, @NonNull MasterSecret masterSecret, @NonNull Uri uri) {
+      this.context      = context;
+      this.masterSecret = masterSecret;
+      this.uri          = uri;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read;
+
+      while ((read = read(buffer, 0, 1)) == 0);
+
+      return read == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (finished) return -1;
+
+      int read = getStream().read(buffer, offset, length);
+
+      if (read == -1) close();
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      if (finished) return 0;
+      return getStream().skip(byteCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+      finished = true;
+
+      if (stream != null) {
+        stream.close();
+        stream = null;
+      }
+    }
+
+    private InputStream getStream() throws IOException {
+      if (stream == null) {
+        stream = PartAuthority.getAttachmentStream(context, masterSecret, uri);
+      }
+
+      return stream;
+    }
+  }
+
   protected void notifyMediaMessageDeliveryFailed(Context context, long messageId) {
     long       threadId   = DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(messageId);
     Recipients recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
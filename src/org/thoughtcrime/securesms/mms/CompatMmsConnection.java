@@ -14,6 +14,7 @@ import java.io.IOException;
 
 import ws.com.google.android.mms.MmsException;
 import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduParser;
 import ws.com.google.android.mms.pdu.RetrieveConf;
 import ws.com.google.android.mms.pdu.SendConf;
 
@@ -57,13 +58,14 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
   @Override
   public RetrieveConf retrieve(@NonNull String contentLocation,
                                byte[] transactionId,
-                               int subscriptionId)
+                               int subscriptionId,
+                               @Nullable PduParser.PartDataSink partDataSink)
       throws MmsException, MmsRadioException, ApnUnavailableException, IOException
   {
     if (VERSION.SDK_INT < 22 || subscriptionId == -1) {
       Log.w(TAG, "Receiving via legacy connection");
       try {
-        return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+        return new IncomingLegacyMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
       } catch (MmsRadioException | ApnUnavailableException | IOException e) {
         Log.w(TAG, e);
       }
@@ -71,7 +73,7 @@ public class CompatMmsConnection implements OutgoingMmsConnection, IncomingMmsCo
 
     if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP) {
       Log.w(TAG, "Falling back to try receiving via Lollipop API");
-      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId);
+      return new IncomingLollipopMmsConnection(context).retrieve(contentLocation, transactionId, subscriptionId, partDataSink);
     } else {
       throw new IOException("Not able to use Lollipop APIs, giving up...");
     }
@@ -60,7 +60,8 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
 
   @Override
   public @Nullable RetrieveConf retrieve(@NonNull String contentLocation,
-                                         byte[] transactionId, int subscriptionId)
+                                         byte[] transactionId, int subscriptionId,
+                                         @Nullable PduParser.PartDataSink partDataSink)
       throws MmsRadioException, ApnUnavailableException, IOException
   {
     MmsRadio radio = MmsRadio.getInstance(context);
@@ -69,7 +70,7 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
     if (isDirectConnect()) {
       Log.w(TAG, "Connecting directly...");
       try {
-        return retrieve(contentApn, transactionId, false, false);
+        return retrieve(contentApn, transactionId, false, false, partDataSink);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
@@ -82,21 +83,22 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
       Log.w(TAG, "Downloading in MMS mode with proxy...");
 
       try {
-        return retrieve(contentApn, transactionId, true, true);
+        return retrieve(contentApn, transactionId, true, true, partDataSink);
       } catch (IOException | ApnUnavailableException e) {
         Log.w(TAG, e);
       }
 
       Log.w(TAG, "Downloading in MMS mode without proxy...");
 
-      return retrieve(contentApn, transactionId, true, false);
+      return retrieve(contentApn, transactionId, true, false, partDataSink);
 
     } finally {
       radio.disconnect();
     }
   }
 
-  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, boolean usingMmsRadio, boolean useProxyIfAvailable)
+  public RetrieveConf retrieve(Apn contentApn, byte[] transactionId, boolean usingMmsRadio, boolean useProxyIfAvailable,
+                               @Nullable PduParser.PartDataSink partDataSink)
       throws IOException, ApnUnavailableException
   {
     byte[] pdu = null;
@@ -114,7 +116,7 @@ public class IncomingLegacyMmsConnection extends LegacyMmsConnection implements
       throw new IOException("Connection manager could not obtain route to host.");
     }
 
-    RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu).parse();
+    RetrieveConf retrieved = (RetrieveConf)new PduParser(pdu, partDataSink).parse();
 
     if (retrieved == null) {
       Log.w(TAG, "Couldn't parse PDU, byte response: " + Arrays.toString(pdu));
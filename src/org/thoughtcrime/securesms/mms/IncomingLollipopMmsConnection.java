@@ -27,11 +27,9 @@ import android.telephony.SmsManager;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.providers.MmsBodyProvider;
-import org.thoughtcrime.securesms.util.Hex;
-import org.thoughtcrime.securesms.util.Util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeoutException;
 
 import ws.com.google.android.mms.MmsException;
@@ -60,13 +58,15 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
   @TargetApi(VERSION_CODES.LOLLIPOP)
   public synchronized @Nullable RetrieveConf retrieve(@NonNull String contentLocation,
                                                       byte[] transactionId,
-                                                      int subscriptionId) throws MmsException
+                                                      int subscriptionId,
+                                                      @Nullable PduParser.PartDataSink partDataSink)
+      throws MmsException
   {
     beginTransaction();
 
-    try {
-      MmsBodyProvider.Pointer pointer = MmsBodyProvider.makeTemporaryPointer(getContext());
+    MmsBodyProvider.Pointer pointer = MmsBodyProvider.makeTemporaryPointer(getContext());
 
+    try {
       Log.w(TAG, "downloading multimedia from " + contentLocation + " to " + pointer.getUri());
 
       SmsManager smsManager;
@@ -85,17 +85,26 @@ public class IncomingLollipopMmsConnection extends LollipopMmsConnection impleme
 
       waitForResult();
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      Util.copy(pointer.getInputStream(), baos);
-      pointer.close();
+      long length = pointer.getLength();
+
+      Log.w(TAG, length + "-byte response");
 
-      Log.w(TAG, baos.size() + "-byte response: " + Hex.dump(baos.toByteArray()));
+      if (length > Integer.MAX_VALUE) {
+        throw new MmsException("Response too large: " + length);
+      }
+
+      InputStream in = pointer.getInputStream();
 
-      return (RetrieveConf) new PduParser(baos.toByteArray()).parse();
+      try {
+        return (RetrieveConf) new PduParser(in, (int)length, partDataSink).parse();
+      } finally {
+        in.close();
+      }
     } catch (IOException | TimeoutException e) {
       Log.w(TAG, e);
       throw new MmsException(e);
     } finally {
+      pointer.close();
       endTransaction();
     }
   }
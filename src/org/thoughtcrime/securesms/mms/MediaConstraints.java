@@ -16,7 +16,6 @@ import org.thoughtcrime.securesms.util.MediaUtil;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 import ws.com.google.android.mms.ContentType;
 
@@ -51,8 +50,7 @@ public abstract class MediaConstraints {
 
   public boolean isWithinBounds(Context context, MasterSecret masterSecret, Uri uri) throws IOException {
     try {
-      InputStream is = PartAuthority.getAttachmentStream(context, masterSecret, uri);
-      Pair<Integer, Integer> dimensions = BitmapUtil.getDimensions(is);
+      Pair<Integer, Integer> dimensions = BitmapUtil.getDimensions(context, new DecryptableUri(masterSecret, uri));
       return dimensions.first  > 0 && dimensions.first  <= getImageMaxWidth(context) &&
              dimensions.second > 0 && dimensions.second <= getImageMaxHeight(context);
     } catch (BitmapDecodingException e) {
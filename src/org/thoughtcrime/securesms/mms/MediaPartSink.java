@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.providers.PersistentBlobProvider;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+
+/**
+ * Encrypts the media parts of a retrieved MMS to disk while its PDU is being parsed,
+ * so that large attachments are never held in memory. The blobs are only needed
+ * until the attachments have been stored, after which they should be deleted.
+ */
+public class MediaPartSink implements PduParser.PartDataSink {
+
+  private final Context        context;
+  private final MasterSecret   masterSecret;
+  private final Map<Uri, Long> sizes = new HashMap<>();
+
+  public MediaPartSink(@NonNull Context context, @NonNull MasterSecret masterSecret) {
+    this.context      = context;
+    this.masterSecret = masterSecret;
+  }
+
+  @Override
+  public boolean accepts(PduPart part) {
+    return PartParser.isDisplayableMedia(part);
+  }
+
+  @Override
+  public synchronized Uri write(PduPart part, InputStream data, int length) throws IOException {
+    Uri uri = PersistentBlobProvider.getInstance(context)
+                                    .createSynchronously(masterSecret, data,
+                                                         Util.toIsoString(part.getContentType()));
+    sizes.put(uri, (long)length);
+    return uri;
+  }
+
+  public synchronized long getSize(@NonNull Uri uri) {
+    Long size = sizes.get(uri);
+    return size != null ? size : 0;
+  }
+
+  public synchronized void delete() {
+    for (Uri uri : sizes.keySet()) {
+      PersistentBlobProvider.getInstance(context).delete(uri);
+    }
+
+    sizes.clear();
+  }
+}
@@ -93,6 +93,6 @@ public class RoundedCorners extends BitmapTransformation {
   }
 
   @Override public String getId() {
-    return RoundedCorners.class.getCanonicalName();
+    return RoundedCorners.class.getCanonicalName() + ":" + crop + ":" + radius + ":" + colorHint;
   }
 }
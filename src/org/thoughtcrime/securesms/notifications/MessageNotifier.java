@@ -89,6 +89,10 @@ public class MessageNotifier {
     visibleThread = threadId;
   }
 
+  public static long getVisibleThread() {
+    return visibleThread;
+  }
+
   public static void notifyMessageDeliveryFailed(Context context, Recipients recipients, long threadId) {
     if (visibleThread == threadId) {
       sendInThreadNotification(context, recipients);
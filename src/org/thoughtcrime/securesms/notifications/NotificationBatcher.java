@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the threads that incoming messages land in for a short window and then
+ * updates the notification once for the whole batch, so that draining a backlog of
+ * incoming messages rebuilds the notification a handful of times rather than once
+ * per message.
+ */
+public class NotificationBatcher {
+
+  private static final String TAG = NotificationBatcher.class.getSimpleName();
+
+  private static final long BATCH_DELAY_MILLIS = 250;
+  private static final int  MAX_BATCH_SIZE     = 100;
+
+  private static NotificationBatcher instance;
+
+  public static synchronized NotificationBatcher getInstance(Context context) {
+    if (instance == null) {
+      instance = new NotificationBatcher(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private final Context                  context;
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Set<Long>                pending  = new LinkedHashSet<>();
+
+  private MasterSecret masterSecret;
+  private int          messageCount;
+  private boolean      scheduled;
+
+  private NotificationBatcher(Context context) {
+    this.context = context;
+  }
+
+  public synchronized void add(@Nullable MasterSecret masterSecret, long threadId) {
+    if (masterSecret != null) this.masterSecret = masterSecret;
+
+    pending.add(threadId);
+    messageCount++;
+
+    if (messageCount >= MAX_BATCH_SIZE) {
+      scheduled = true;
+      executor.execute(new FlushTask());
+    } else if (!scheduled) {
+      scheduled = true;
+      executor.schedule(new FlushTask(), BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private class FlushTask implements Runnable {
+    @Override
+    public void run() {
+      Set<Long>    threadIds;
+      MasterSecret masterSecret;
+      int          messageCount;
+
+      synchronized (NotificationBatcher.this) {
+        if (pending.isEmpty()) return;
+
+        threadIds    = new LinkedHashSet<>(pending);
+        masterSecret = NotificationBatcher.this.masterSecret;
+        messageCount = NotificationBatcher.this.messageCount;
+
+        NotificationBatcher.this.masterSecret = null;
+        NotificationBatcher.this.messageCount = 0;
+        scheduled = false;
+        pending.clear();
+      }
+
+      Log.w(TAG, "Updating notification for " + messageCount + " messages in " + threadIds.size() + " threads...");
+
+      boolean updated = false;
+
+      for (long threadId : threadIds) {
+        if (threadId == MessageNotifier.getVisibleThread()) {
+          MessageNotifier.updateNotification(context, masterSecret, threadId);
+        } else if (!updated && !isMuted(threadId)) {
+          MessageNotifier.updateNotification(context, masterSecret, threadId);
+          updated = true;
+        }
+      }
+    }
+
+    private boolean isMuted(long threadId) {
+      Recipients recipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId);
+      return recipients != null && recipients.isMuted();
+    }
+  }
+}
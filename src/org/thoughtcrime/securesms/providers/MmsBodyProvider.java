@@ -28,6 +28,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -133,6 +134,16 @@ public class MmsBodyProvider extends ContentProvider {
       return context.getContentResolver().openInputStream(uri);
     }
 
+    public long getLength() throws IOException {
+      ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+
+      try {
+        return descriptor.getStatSize();
+      } finally {
+        descriptor.close();
+      }
+    }
+
     public void close() {
       context.getContentResolver().delete(uri, null, null);
     }
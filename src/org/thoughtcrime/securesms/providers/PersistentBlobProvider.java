@@ -59,6 +59,8 @@ public class PersistentBlobProvider {
   private final Map<Long, byte[]> cache    = Collections.synchronizedMap(new HashMap<Long, byte[]>());
   private final ExecutorService   executor = Executors.newCachedThreadPool();
 
+  private long lastId;
+
   private PersistentBlobProvider(Context context) {
     this.context = context.getApplicationContext();
   }
@@ -67,7 +69,7 @@ public class PersistentBlobProvider {
                     @NonNull byte[] blobBytes,
                     @NonNull String mimeType)
   {
-    final long id = System.currentTimeMillis();
+    final long id = generateId();
     cache.put(id, blobBytes);
     return create(masterSecret, new ByteArrayInputStream(blobBytes), id, mimeType);
   }
@@ -76,11 +78,36 @@ public class PersistentBlobProvider {
                     @NonNull InputStream input,
                     @NonNull String mimeType)
   {
-    return create(masterSecret, input, System.currentTimeMillis(), mimeType);
+    return create(masterSecret, input, generateId(), mimeType);
+  }
+
+  /**
+   * Like {@link #create(MasterSecret, InputStream, String)}, but the input has been
+   * read and written to disk by the time this returns.
+   */
+  public Uri createSynchronously(@NonNull MasterSecret masterSecret,
+                                 @NonNull InputStream input,
+                                 @NonNull String mimeType)
+      throws IOException
+  {
+    final long id = generateId();
+
+    try {
+      writeToDisk(masterSecret, id, input);
+    } catch (IOException e) {
+      getFile(id).delete();
+      throw e;
+    }
+
+    return createUri(id, mimeType);
   }
 
   private Uri create(MasterSecret masterSecret, InputStream input, long id, String mimeType) {
     persistToDisk(masterSecret, id, input);
+    return createUri(id, mimeType);
+  }
+
+  private Uri createUri(long id, String mimeType) {
     final Uri uniqueUri = CONTENT_URI.buildUpon()
                                      .appendPath(mimeType)
                                      .appendEncodedPath(String.valueOf(System.currentTimeMillis()))
@@ -93,10 +120,7 @@ public class PersistentBlobProvider {
       @Override
       public void run() {
         try {
-          OutputStream output = new EncryptingPartOutputStream(getFile(id), masterSecret);
-          Log.w(TAG, "Starting stream copy....");
-          Util.copy(input, output);
-          Log.w(TAG, "Stream copy finished...");
+          writeToDisk(masterSecret, id, input);
         } catch (IOException e) {
           Log.w(TAG, e);
         }
@@ -106,6 +130,18 @@ public class PersistentBlobProvider {
     });
   }
 
+  private void writeToDisk(MasterSecret masterSecret, long id, InputStream input) throws IOException {
+    OutputStream output = new EncryptingPartOutputStream(getFile(id), masterSecret);
+    Log.w(TAG, "Starting stream copy....");
+    Util.copy(input, output);
+    Log.w(TAG, "Stream copy finished...");
+  }
+
+  private synchronized long generateId() {
+    lastId = Math.max(System.currentTimeMillis(), lastId + 1);
+    return lastId;
+  }
+
   public Uri createForExternal(@NonNull String mimeType) throws IOException {
     return Uri.fromFile(new File(getExternalDir(context),
                         String.valueOf(System.currentTimeMillis()) + "." + getExtensionFromMimeType(mimeType)));
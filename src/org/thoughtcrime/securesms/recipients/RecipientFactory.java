@@ -137,4 +137,8 @@ public class RecipientFactory {
     provider.clearCache();
   }
 
+  public static void clearCache(long recipientId) {
+    provider.clearCache(recipientId);
+  }
+
 }
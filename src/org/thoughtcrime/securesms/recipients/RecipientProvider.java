@@ -35,7 +35,8 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientPreferenceDatabase.RecipientsPreferences;
 import org.thoughtcrime.securesms.util.GroupUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ConcurrentLRUCache;
+import org.thoughtcrime.securesms.util.FutureTaskListener;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -47,15 +48,20 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 public class RecipientProvider {
 
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
+  private static final int RESOLVER_THREADS = 3;
+
   private static final RecipientCache  recipientCache         = new RecipientCache();
   private static final RecipientsCache recipientsCache        = new RecipientsCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService asyncRecipientResolver = Util.newFixedLifoExecutor(RESOLVER_THREADS);
+
+  private static final Map<Long, ListenableFutureTask<RecipientDetails>> pendingDetails = new ConcurrentHashMap<>();
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
     PhoneLookup.DISPLAY_NAME,
@@ -104,10 +110,21 @@ public class RecipientProvider {
   }
 
   void clearCache() {
+    Log.w(TAG, String.format("Clearing recipient cache (recipient hits: %d, misses: %d; recipients hits: %d, misses: %d)",
+                             recipientCache.getHitCount(), recipientCache.getMissCount(),
+                             recipientsCache.getHitCount(), recipientsCache.getMissCount()));
+
+    pendingDetails.clear();
     recipientCache.reset();
     recipientsCache.reset();
   }
 
+  void clearCache(long recipientId) {
+    pendingDetails.remove(recipientId);
+    recipientCache.invalidate(recipientId);
+    recipientsCache.invalidate(recipientId);
+  }
+
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context,
                                                                                    final long recipientId,
                                                                                    final @NonNull String number)
@@ -119,7 +136,25 @@ public class RecipientProvider {
       }
     };
 
-    ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
+    final ListenableFutureTask<RecipientDetails> future  = new ListenableFutureTask<>(task);
+    final ListenableFutureTask<RecipientDetails> pending = pendingDetails.putIfAbsent(recipientId, future);
+
+    if (pending != null) {
+      return pending;
+    }
+
+    future.addListener(new FutureTaskListener<RecipientDetails>() {
+      @Override
+      public void onSuccess(RecipientDetails result) {
+        pendingDetails.remove(recipientId, future);
+      }
+
+      @Override
+      public void onFailure(Throwable error) {
+        pendingDetails.remove(recipientId, future);
+      }
+    });
+
     asyncRecipientResolver.submit(future);
     return future;
   }
@@ -222,6 +257,14 @@ public class RecipientProvider {
       this.ids = ids;
     }
 
+    private boolean contains(long recipientId) {
+      for (long id : ids) {
+        if (id == recipientId) return true;
+      }
+
+      return false;
+    }
+
     public boolean equals(Object other) {
       if (other == null || !(other instanceof RecipientIds)) return false;
       return Arrays.equals(this.ids, ((RecipientIds) other).ids);
@@ -234,44 +277,72 @@ public class RecipientProvider {
 
   private static class RecipientCache {
 
-    private final Map<Long,Recipient> cache = new LRUCache<>(1000);
+    private final ConcurrentLRUCache<Long,Recipient> cache = new ConcurrentLRUCache<>(1000);
 
-    public synchronized Recipient get(long recipientId) {
+    public Recipient get(long recipientId) {
       return cache.get(recipientId);
     }
 
-    public synchronized void set(long recipientId, Recipient recipient) {
+    public void set(long recipientId, Recipient recipient) {
       cache.put(recipientId, recipient);
     }
 
-    public synchronized void reset() {
+    public void invalidate(long recipientId) {
+      Recipient recipient = cache.peek(recipientId);
+      if (recipient != null) recipient.setStale();
+    }
+
+    public void reset() {
       for (Recipient recipient : cache.values()) {
         recipient.setStale();
       }
     }
 
+    public long getHitCount() {
+      return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+      return cache.getMissCount();
+    }
+
   }
 
   private static class RecipientsCache {
 
-    private final Map<RecipientIds,Recipients> cache = new LRUCache<>(1000);
+    private final ConcurrentLRUCache<RecipientIds,Recipients> cache = new ConcurrentLRUCache<>(1000);
 
-    public synchronized Recipients get(RecipientIds ids) {
+    public Recipients get(RecipientIds ids) {
       return cache.get(ids);
     }
 
-    public synchronized void set(RecipientIds ids, Recipients recipients) {
+    public void set(RecipientIds ids, Recipients recipients) {
       cache.put(ids, recipients);
     }
 
-    public synchronized void reset() {
+    public void invalidate(long recipientId) {
+      for (RecipientIds ids : cache.keys()) {
+        if (ids.contains(recipientId)) {
+          Recipients recipients = cache.peek(ids);
+          if (recipients != null) recipients.setStale();
+        }
+      }
+    }
+
+    public void reset() {
       for (Recipients recipients : cache.values()) {
         recipients.setStale();
       }
     }
 
-  }
+    public long getHitCount() {
+      return cache.getHitCount();
+    }
 
+    public long getMissCount() {
+      return cache.getMissCount();
+    }
 
+  }
 
-}
\ No newline at end of file
+}
@@ -20,6 +20,7 @@ import android.util.Log;
 import org.thoughtcrime.securesms.ConversationListActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.SmsMigrationException;
 import org.thoughtcrime.securesms.database.SmsMigrator;
 import org.thoughtcrime.securesms.database.SmsMigrator.ProgressDescription;
 
@@ -93,6 +94,18 @@ public class ApplicationMigrationService extends Service
     sendOrderedBroadcast(intent, null);
   }
 
+  private void notifyImportFailed() {
+    NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+    builder.setSmallIcon(R.drawable.icon_notification);
+    builder.setContentTitle(getString(R.string.ApplicationMigrationService_import_interrupted));
+    builder.setContentText(getString(R.string.ApplicationMigrationService_the_import_stopped_before_it_finished));
+    builder.setContentIntent(PendingIntent.getActivity(this, 0, new Intent(this, ConversationListActivity.class), 0));
+    builder.setWhen(System.currentTimeMillis());
+    builder.setAutoCancel(true);
+
+    ((NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE)).notify(31337, builder.build());
+  }
+
   @Override
   public void progressUpdate(ProgressDescription progress) {
     setState(new ImportState(ImportState.STATE_MIGRATING_IN_PROGRESS, progress));
@@ -114,12 +127,17 @@ public class ApplicationMigrationService extends Service
     }
 
     if (state.progress != null && state.progress.secondaryComplete == 0) {
-      updateBackgroundNotification(state.progress.primaryTotal, state.progress.primaryComplete);
+      updateBackgroundNotification(state.progress);
     }
   }
 
-  private void updateBackgroundNotification(int total, int complete) {
-    notification.setProgress(total, complete, false);
+  private void updateBackgroundNotification(ProgressDescription progress) {
+    notification.setProgress(progress.primaryTotal, progress.primaryComplete, false);
+
+    if (progress.messagesImported > 0) {
+      notification.setContentText(getString(R.string.ApplicationMigrationService_d_messages_imported_d_per_second,
+                                             progress.messagesImported, progress.messagesPerSecond));
+    }
 
     ((NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE))
       .notify(4242, notification.build());
@@ -171,6 +189,12 @@ public class ApplicationMigrationService extends Service
         stopForeground(true);
         notifyImportComplete();
         stopSelf();
+      } catch (SmsMigrationException e) {
+        Log.w(TAG, e);
+        setState(new ImportState(ImportState.STATE_MIGRATING_FAILED, null));
+        stopForeground(true);
+        notifyImportFailed();
+        stopSelf();
       } finally {
         wakeLock.release();
       }
@@ -205,6 +229,7 @@ public class ApplicationMigrationService extends Service
     public static final int STATE_MIGRATING_BEGIN       = 1;
     public static final int STATE_MIGRATING_IN_PROGRESS = 2;
     public static final int STATE_MIGRATING_COMPLETE    = 3;
+    public static final int STATE_MIGRATING_FAILED      = 4;
 
     public int                 state;
     public ProgressDescription progress;
@@ -0,0 +1,232 @@
+package org.thoughtcrime.securesms.service;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.DeliveryReceiptBatcher;
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.NotInDirectoryException;
+import org.thoughtcrime.securesms.database.PushDatabase;
+import org.thoughtcrime.securesms.database.TextSecureDirectory;
+import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
+import org.thoughtcrime.securesms.jobs.PushDecryptJob;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.ContactTokenDetails;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Takes envelopes off the websocket read loop and hands them to a background
+ * stage that dispatches them in batches.
+ *
+ * The read loop only stores each message envelope in the push database (and each
+ * receipt with the receipt batcher), since the server is told the envelope was
+ * received as soon as the read callback returns, and then queues it. The
+ * background stage resolves each sender once per batch and queues the decrypt
+ * jobs for the whole batch. The queue is bounded, so if dispatch falls behind the
+ * read loop blocks rather than buffering a whole backlog in memory. Stored
+ * envelopes stay marked undispatched until their decrypt job is queued, and any
+ * still marked when the process died are dispatched when the processor starts.
+ */
+public class IncomingEnvelopeProcessor implements Runnable {
+
+  private static final String TAG = IncomingEnvelopeProcessor.class.getSimpleName();
+
+  private static final int MAX_QUEUE_SIZE = 250;
+  private static final int MAX_BATCH_SIZE = 50;
+
+  private static IncomingEnvelopeProcessor instance;
+
+  public static synchronized IncomingEnvelopeProcessor getInstance(Context context) {
+    if (instance == null) {
+      instance = new IncomingEnvelopeProcessor(context.getApplicationContext());
+      new Thread(instance, TAG).start();
+    }
+
+    return instance;
+  }
+
+  private final Context                        context;
+  private final BlockingQueue<PendingEnvelope> queue     = new LinkedBlockingQueue<>(MAX_QUEUE_SIZE);
+  private final CountDownLatch                 recovered = new CountDownLatch(1);
+
+  private int  maxQueueDepth;
+  private long dispatchedCount;
+  private long totalLatencyMillis;
+
+  private IncomingEnvelopeProcessor(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * Stores a message envelope and queues it for dispatch, blocking while the
+   * queue is full. Once this returns the envelope is durable.
+   */
+  public void add(@NonNull SignalServiceEnvelope envelope) throws InterruptedException {
+    recovered.await();
+
+    long pushId = -1;
+
+    if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage()) {
+      pushId = DatabaseFactory.getPushDatabase(context).insert(envelope, false);
+    } else if (envelope.isReceipt()) {
+      Log.w(TAG, String.format("Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
+      DeliveryReceiptBatcher.getInstance(context).add(new SyncMessageId(envelope.getSource(),
+                                                                        envelope.getTimestamp()));
+    }
+
+    queue.put(new PendingEnvelope(envelope, pushId, System.currentTimeMillis()));
+
+    synchronized (this) {
+      maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+    }
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public synchronized int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  public synchronized long getAverageLatencyMillis() {
+    return dispatchedCount == 0 ? 0 : totalLatencyMillis / dispatchedCount;
+  }
+
+  @Override
+  public void run() {
+    List<PendingEnvelope> batch = new LinkedList<>();
+
+    try {
+      dispatchStored();
+    } finally {
+      recovered.countDown();
+    }
+
+    while (true) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+        dispatch(batch);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      } catch (Throwable t) {
+        Log.w(TAG, t);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void dispatch(List<PendingEnvelope> batch) {
+    JobManager              jobManager   = ApplicationContext.getInstance(context).getJobManager();
+    PushDatabase            pushDatabase = DatabaseFactory.getPushDatabase(context);
+    Map<String, Recipients> senders      = new HashMap<>();
+    List<Long>              dispatched   = new LinkedList<>();
+    long                    start        = System.currentTimeMillis();
+    long                    latency      = 0;
+
+    for (PendingEnvelope pending : batch) {
+      SignalServiceEnvelope envelope   = pending.envelope;
+      Recipients            recipients = senders.get(envelope.getSource());
+
+      if (recipients == null) {
+        recipients = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
+        senders.put(envelope.getSource(), recipients);
+        refreshDirectoryIfInactive(jobManager, envelope.getSource(), recipients);
+      }
+
+      if (pending.pushId == -1) {
+        if (!envelope.isReceipt()) Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+      } else if (recipients.isBlocked()) {
+        Log.w(TAG, "*** Received blocked push message, ignoring...");
+        pushDatabase.delete(pending.pushId);
+      } else {
+        jobManager.add(new PushDecryptJob(context, pending.pushId, envelope.getSource()));
+        dispatched.add(pending.pushId);
+      }
+
+      latency += start - pending.queuedAt;
+    }
+
+    pushDatabase.markDispatched(dispatched);
+
+    synchronized (this) {
+      dispatchedCount    += batch.size();
+      totalLatencyMillis += latency;
+    }
+
+    Log.w(TAG, "Dispatched " + batch.size() + " envelopes from " + senders.size() + " senders in " +
+               (System.currentTimeMillis() - start) + "ms, queue depth: " + queue.size() +
+               " (max " + getMaxQueueDepth() + "), average wait: " + getAverageLatencyMillis() + "ms");
+  }
+
+  private void dispatchStored() {
+    JobManager   jobManager   = ApplicationContext.getInstance(context).getJobManager();
+    PushDatabase pushDatabase = DatabaseFactory.getPushDatabase(context);
+    List<Long>   dispatched   = new LinkedList<>();
+    Cursor       cursor       = null;
+
+    try {
+      cursor = pushDatabase.getUndispatched();
+
+      while (cursor != null && cursor.moveToNext()) {
+        long id = cursor.getLong(cursor.getColumnIndexOrThrow(PushDatabase.ID));
+
+        jobManager.add(new PushDecryptJob(context, id, cursor.getString(cursor.getColumnIndexOrThrow(PushDatabase.SOURCE))));
+        dispatched.add(id);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    if (!dispatched.isEmpty()) {
+      Log.w(TAG, "Dispatched " + dispatched.size() + " envelopes stored before a restart");
+      pushDatabase.markDispatched(dispatched);
+    }
+  }
+
+  private void refreshDirectoryIfInactive(JobManager jobManager, String number, Recipients recipients) {
+    TextSecureDirectory directory = TextSecureDirectory.getInstance(context);
+
+    try {
+      if (directory.isSecureTextSupported(number)) return;
+    } catch (NotInDirectoryException e) {
+      // Fall through and mark them active
+    }
+
+    ContactTokenDetails contactTokenDetails = new ContactTokenDetails();
+    contactTokenDetails.setNumber(number);
+
+    directory.setNumber(contactTokenDetails, true);
+    jobManager.add(new DirectoryRefreshJob(context, KeyCachingService.getMasterSecret(context), recipients));
+  }
+
+  private static class PendingEnvelope {
+    private final SignalServiceEnvelope envelope;
+    private final long                  pushId;
+    private final long                  queuedAt;
+
+    private PendingEnvelope(SignalServiceEnvelope envelope, long pushId, long queuedAt) {
+      this.envelope = envelope;
+      this.pushId   = pushId;
+      this.queuedAt = queuedAt;
+    }
+  }
+}
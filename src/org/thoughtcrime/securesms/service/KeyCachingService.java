@@ -39,8 +39,10 @@ import org.thoughtcrime.securesms.DatabaseUpgradeActivity;
 import org.thoughtcrime.securesms.DummyActivity;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.InvalidPassphraseException;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUtil;
+import org.thoughtcrime.securesms.database.PlaintextCache;
 import org.thoughtcrime.securesms.jobs.MasterSecretDecryptJob;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.DynamicLanguage;
@@ -98,6 +100,7 @@ public class KeyCachingService extends Service {
   public void setMasterSecret(final MasterSecret masterSecret) {
     synchronized (KeyCachingService.class) {
       KeyCachingService.masterSecret = masterSecret;
+      PlaintextCache.getInstance().clear();
 
       foregroundService();
       broadcastNewSecret();
@@ -191,6 +194,8 @@ public class KeyCachingService extends Service {
   private void handleClearKey() {
     Log.w("KeyCachingService", "handleClearKey()");
     KeyCachingService.masterSecret = null;
+    PlaintextCache.getInstance().clear();
+    MasterCipher.clearCachedState();
     stopForeground(true);
 
     Intent intent = new Intent(CLEAR_KEY_EVENT);
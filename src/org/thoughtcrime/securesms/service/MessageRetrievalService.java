@@ -9,7 +9,6 @@ import android.util.Log;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.gcm.GcmBroadcastReceiver;
-import org.thoughtcrime.securesms.jobs.PushContentReceiveJob;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.whispersystems.jobqueue.requirements.NetworkRequirement;
 import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
@@ -37,6 +36,7 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
 
   private NetworkRequirement         networkRequirement;
   private NetworkRequirementProvider networkRequirementProvider;
+  private IncomingEnvelopeProcessor  processor;
 
   @Inject
   public SignalServiceMessageReceiver receiver;
@@ -51,6 +51,7 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
 
     networkRequirement         = new NetworkRequirement(this);
     networkRequirementProvider = new NetworkRequirementProvider(this);
+    processor                  = IncomingEnvelopeProcessor.getInstance(this);
 
     networkRequirementProvider.setListener(this);
     new Thread(this, "MessageRetrievalService").start();
@@ -85,8 +86,11 @@ public class MessageRetrievalService extends Service implements Runnable, Inject
                         public void onMessage(SignalServiceEnvelope envelope) {
                           Log.w(TAG, "Retrieved envelope! " + envelope.getSource());
 
-                          PushContentReceiveJob receiveJob = new PushContentReceiveJob(MessageRetrievalService.this);
-                          receiveJob.handle(envelope, false);
+                          try {
+                            processor.add(envelope);
+                          } catch (InterruptedException e) {
+                            throw new AssertionError(e);
+                          }
 
                           decrementPushReceived();
                         }
@@ -23,6 +23,7 @@ import com.bumptech.glide.load.resource.bitmap.BitmapResource;
 import com.bumptech.glide.load.resource.bitmap.Downsampler;
 import com.bumptech.glide.load.resource.bitmap.FitCenter;
 
+import org.thoughtcrime.securesms.mms.DecryptableStreamUriLoader.DecryptableUri;
 import org.thoughtcrime.securesms.mms.MediaConstraints;
 
 import java.io.BufferedInputStream;
@@ -39,42 +40,178 @@ public class BitmapUtil {
   private static final int MAX_COMPRESSION_QUALITY  = 80;
   private static final int MIN_COMPRESSION_QUALITY  = 45;
   private static final int MAX_COMPRESSION_ATTEMPTS = 4;
+  private static final int TRIAL_SCALE              = 4;
+
+  private static final float MIN_SIZE_CORRECTION = 0.25f;
+  private static final float MAX_SIZE_CORRECTION = 2.0f;
+
+  private static volatile float sizeCorrection = 1.0f;
+
+  private static final ConcurrentLRUCache<DecryptableUri, Pair<Integer, Integer>> dimensionsCache = new ConcurrentLRUCache<>(50);
 
   public static <T> byte[] createScaledBytes(Context context, T model, MediaConstraints constraints)
       throws BitmapDecodingException
   {
-    int    quality  = MAX_COMPRESSION_QUALITY;
-    int    attempts = 0;
-    byte[] bytes;
+    int    maxSize      = constraints.getImageMaxSize();
     Bitmap scaledBitmap = createScaledBitmap(context,
                                              model,
                                              constraints.getImageMaxWidth(context),
                                              constraints.getImageMaxHeight(context));
     try {
-      do {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        scaledBitmap.compress(CompressFormat.JPEG, quality, baos);
-        bytes = baos.toByteArray();
-
-        Log.w(TAG, "iteration with quality " + quality + " size " + (bytes.length / 1024) + "kb");
-        if (quality == MIN_COMPRESSION_QUALITY) break;
-        quality = Math.max((quality * constraints.getImageMaxSize()) / bytes.length, MIN_COMPRESSION_QUALITY);
+      CompressedImage image = compressToFit(scaledBitmap, maxSize);
+
+      Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + image.quality + ", " + image.attempts + " attempt(s)");
+      return image.data;
+    } finally {
+      if (scaledBitmap != null) scaledBitmap.recycle();
+    }
+  }
+
+  /**
+   * Compresses the bitmap at the highest quality predicted to fit in maxSize. The
+   * prediction is corrected by how far the last full size compression strayed from it,
+   * so the first full compression is usually the last. If it still overshoots, quality
+   * is stepped down in proportion to the overshoot. If it undershoots, the corrected
+   * prediction gets a single retry at the higher quality.
+   */
+  @VisibleForTesting static CompressedImage compressToFit(@NonNull Bitmap bitmap, int maxSize)
+      throws BitmapDecodingException
+  {
+    QualityEstimator      estimator = new QualityEstimator(bitmap, maxSize);
+    ByteArrayOutputStream output    = new ByteArrayOutputStream(maxSize);
+
+    try {
+      int quality  = estimator.predict(sizeCorrection);
+      int attempts = 1;
+
+      compress(bitmap, quality, output);
+
+      float correction = estimator.getCorrection(quality, output.size());
+      sizeCorrection   = correction;
+
+      if (output.size() <= maxSize) {
+        int corrected = estimator.predict(correction);
+
+        if (corrected > quality) {
+          ByteArrayOutputStream candidate = new ByteArrayOutputStream(maxSize);
+
+          compress(bitmap, corrected, candidate);
+          attempts++;
+
+          if (candidate.size() <= maxSize) {
+            output  = candidate;
+            quality = corrected;
+          }
+        }
+      } else {
+        while (output.size() > maxSize && quality > MIN_COMPRESSION_QUALITY && attempts <= MAX_COMPRESSION_ATTEMPTS) {
+          quality = Math.max(Math.min((quality * maxSize) / output.size(), quality - 1), MIN_COMPRESSION_QUALITY);
+          compress(bitmap, quality, output);
+          attempts++;
+        }
       }
-      while (bytes.length > constraints.getImageMaxSize() && attempts++ < MAX_COMPRESSION_ATTEMPTS);
-      if (bytes.length > constraints.getImageMaxSize()) {
-        throw new BitmapDecodingException("Unable to scale image below: " + bytes.length);
+
+      if (output.size() > maxSize) {
+        throw new BitmapDecodingException("Unable to scale image below: " + output.size());
       }
-      Log.w(TAG, "createScaledBytes(" + model.toString() + ") -> quality " + Math.min(quality, MAX_COMPRESSION_QUALITY) + ", " + attempts + " attempt(s)");
-      return bytes;
+
+      return new CompressedImage(output.toByteArray(), quality, attempts);
     } finally {
-      if (scaledBitmap != null) scaledBitmap.recycle();
+      estimator.recycle();
+    }
+  }
+
+  private static void compress(@NonNull Bitmap bitmap, int quality, @NonNull ByteArrayOutputStream output) {
+    output.reset();
+    bitmap.compress(CompressFormat.JPEG, quality, output);
+
+    Log.w(TAG, "iteration with quality " + quality + " size " + (output.size() / 1024) + "kb");
+  }
+
+  @VisibleForTesting static class CompressedImage {
+    final byte[] data;
+    final int    quality;
+    final int    attempts;
+
+    private CompressedImage(byte[] data, int quality, int attempts) {
+      this.data     = data;
+      this.quality  = quality;
+      this.attempts = attempts;
+    }
+  }
+
+  /**
+   * Predicts the highest JPEG quality that fits a bitmap in maxSize, by binary searching
+   * over compressions of a copy downsampled by TRIAL_SCALE on each side. A downsampled
+   * image carries more detail per pixel than the original, so its scaled up size
+   * overestimates the full size; predictions take a correction factor for that, which
+   * {@link #getCorrection(int, int)} measures from a full size compression.
+   */
+  private static class QualityEstimator {
+    private final Bitmap source;
+    private final Bitmap trial;
+    private final int    maxSize;
+    private final long   ratio;
+    private final int[]  trialSizes = new int[MAX_COMPRESSION_QUALITY + 1];
+
+    private QualityEstimator(@NonNull Bitmap bitmap, int maxSize) {
+      int width  = bitmap.getWidth()  / TRIAL_SCALE;
+      int height = bitmap.getHeight() / TRIAL_SCALE;
+
+      this.source  = bitmap;
+      this.maxSize = maxSize;
+
+      if (width > 0 && height > 0) {
+        this.trial = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        this.ratio = ((long)bitmap.getWidth() * bitmap.getHeight()) / ((long)width * height);
+      } else {
+        this.trial = null;
+        this.ratio = 1;
+      }
+    }
+
+    private int predict(float correction) {
+      if (trial == null) return MAX_COMPRESSION_QUALITY;
+
+      int low  = MIN_COMPRESSION_QUALITY;
+      int high = MAX_COMPRESSION_QUALITY;
+
+      while (low < high) {
+        int quality = (low + high + 1) / 2;
+
+        if (getTrialSize(quality) * ratio * correction <= maxSize) low  = quality;
+        else                                                       high = quality - 1;
+      }
+
+      return low;
+    }
+
+    private float getCorrection(int quality, int fullSize) {
+      if (trial == null) return 1;
+
+      float correction = (float)fullSize / (getTrialSize(quality) * ratio);
+      return Math.max(MIN_SIZE_CORRECTION, Math.min(MAX_SIZE_CORRECTION, correction));
+    }
+
+    private int getTrialSize(int quality) {
+      if (trialSizes[quality] == 0) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(maxSize / (TRIAL_SCALE * TRIAL_SCALE));
+        trial.compress(CompressFormat.JPEG, quality, output);
+        trialSizes[quality] = Math.max(1, output.size());
+      }
+
+      return trialSizes[quality];
+    }
+
+    private void recycle() {
+      if (trial != null && trial != source) trial.recycle();
     }
   }
 
   public static <T> Bitmap createScaledBitmap(Context context, T model, int maxWidth, int maxHeight)
       throws BitmapDecodingException
   {
-    final Pair<Integer, Integer> dimensions = getDimensions(getInputStreamForModel(context, model));
+    final Pair<Integer, Integer> dimensions = getDimensions(context, model);
     final Pair<Integer, Integer> clamped    = clampDimensions(dimensions.first, dimensions.second,
                                                               maxWidth, maxHeight);
     return createScaledBitmapInto(context, model, clamped.first, clamped.second);
@@ -112,7 +249,7 @@ public class BitmapUtil {
   public static <T> Bitmap createScaledBitmap(Context context, T model, float scale)
       throws BitmapDecodingException
   {
-    Pair<Integer, Integer> dimens = getDimensions(getInputStreamForModel(context, model));
+    Pair<Integer, Integer> dimens = getDimensions(context, model);
     return createScaledBitmapInto(context, model,
                                   (int)(dimens.first * scale), (int)(dimens.second * scale));
   }
@@ -137,6 +274,28 @@ public class BitmapUtil {
     return options;
   }
 
+  /**
+   * Like {@link #getDimensions(InputStream)}, but remembers the result for recently
+   * seen attachment URIs, so that checking an attachment and then scaling it only
+   * decrypts its header once.
+   */
+  public static <T> Pair<Integer, Integer> getDimensions(Context context, T model)
+      throws BitmapDecodingException
+  {
+    if (!(model instanceof DecryptableUri)) {
+      return getDimensions(getInputStreamForModel(context, model));
+    }
+
+    Pair<Integer, Integer> dimensions = dimensionsCache.get((DecryptableUri)model);
+
+    if (dimensions == null) {
+      dimensions = getDimensions(getInputStreamForModel(context, model));
+      dimensionsCache.put((DecryptableUri)model, dimensions);
+    }
+
+    return dimensions;
+  }
+
   public static Pair<Integer, Integer> getDimensions(InputStream inputStream) throws BitmapDecodingException {
     BitmapFactory.Options options = getImageDimensions(inputStream);
     return new Pair<>(options.outWidth, options.outHeight);
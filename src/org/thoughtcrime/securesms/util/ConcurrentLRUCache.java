@@ -0,0 +1,146 @@
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An approximately least-recently-used cache which is safe for concurrent use.
+ *
+ * Reads never block: they go straight to a {@link ConcurrentHashMap} and only stamp
+ * the entry with an access tick. Once the cache grows past its bound, a single writer
+ * trims it back down by evicting the entries with the oldest ticks.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+  private final ConcurrentHashMap<K, Entry<V>> cache;
+  private final ReentrantLock                  trimLock = new ReentrantLock();
+  private final AtomicLong                     clock    = new AtomicLong();
+  private final int                            maxSize;
+  private final int                            trimThreshold;
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ConcurrentLRUCache(int maxSize) {
+    this.maxSize       = maxSize;
+    this.trimThreshold = maxSize + Math.max(1, maxSize / 10);
+    this.cache         = new ConcurrentHashMap<>(trimThreshold, 0.75f, 4);
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    Entry<V> entry = cache.get(key);
+
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    entry.lastAccess = clock.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Returns the cached value without counting towards the hit and miss statistics
+   * or refreshing its recency.
+   */
+  public @Nullable V peek(@NonNull K key) {
+    Entry<V> entry = cache.get(key);
+    return entry != null ? entry.value : null;
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    cache.put(key, new Entry<>(value, clock.incrementAndGet()));
+
+    if (cache.size() > trimThreshold) {
+      trim();
+    }
+  }
+
+  public @Nullable V remove(@NonNull K key) {
+    Entry<V> entry = cache.remove(key);
+    return entry != null ? entry.value : null;
+  }
+
+  public @NonNull Collection<K> keys() {
+    return Collections.unmodifiableSet(cache.keySet());
+  }
+
+  public @NonNull Collection<V> values() {
+    List<V> values = new LinkedList<>();
+
+    for (Entry<V> entry : cache.values()) {
+      values.add(entry.value);
+    }
+
+    return values;
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  private void trim() {
+    if (!trimLock.tryLock()) return;
+
+    try {
+      int excess = cache.size() - maxSize;
+      if (excess <= 0) return;
+
+      List<Map.Entry<K, Entry<V>>> entries = new ArrayList<>(cache.entrySet());
+
+      Collections.sort(entries, new Comparator<Map.Entry<K, Entry<V>>>() {
+        @Override
+        public int compare(Map.Entry<K, Entry<V>> lhs, Map.Entry<K, Entry<V>> rhs) {
+          long left  = lhs.getValue().lastAccess;
+          long right = rhs.getValue().lastAccess;
+          return left < right ? -1 : (left == right ? 0 : 1);
+        }
+      });
+
+      for (int i = 0; i < excess && i < entries.size(); i++) {
+        Map.Entry<K, Entry<V>> eldest = entries.get(i);
+
+        if (cache.remove(eldest.getKey(), eldest.getValue())) {
+          evictions.incrementAndGet();
+        }
+      }
+    } finally {
+      trimLock.unlock();
+    }
+  }
+
+  private static class Entry<V> {
+    private final    V    value;
+    private volatile long lastAccess;
+
+    private Entry(V value, long lastAccess) {
+      this.value      = value;
+      this.lastAccess = lastAccess;
+    }
+  }
+}
@@ -59,6 +59,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -113,6 +114,17 @@ public class Util {
     return executor;
   }
 
+  public static ExecutorService newFixedLifoExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(@NonNull Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+  }
+
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
@@ -26,6 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -83,9 +85,19 @@ public class PduComposer {
     static private final int PDU_COMPOSER_BLOCK_SIZE = 1024;
 
     /**
-     * The output message.
+     * The output message, when making it into a buffer.
      */
-    protected ByteArrayOutputStream mMessage = null;
+    protected byte[] mMessage = null;
+
+    /**
+     * The output message, when making it into a stream.
+     */
+    private OutputStream mOutput = null;
+
+    /**
+     * The error that stopped the message being written, if any.
+     */
+    private IOException mException = null;
 
     /**
      * The PDU.
@@ -93,7 +105,7 @@ public class PduComposer {
     private GenericPdu mPdu = null;
 
     /**
-     * Current visiting position of the mMessage.
+     * Current visiting position of the message.
      */
     protected int mPosition = 0;
 
@@ -137,7 +149,6 @@ public class PduComposer {
         mResolver = context.getContentResolver();
         mPduHeader = pdu.getPduHeaders();
         mStack = new BufferStack();
-        mMessage = new ByteArrayOutputStream();
         mPosition = 0;
     }
 
@@ -145,10 +156,72 @@ public class PduComposer {
      * Make the message. No need to check whether mandatory fields are set,
      * because the constructors of outgoing pdus are taking care of this.
      *
+     * The message is sized first, and then written once into a buffer
+     * of exactly that size.
+     *
      * @return OutputStream of maked message. Return null if
      *         the PDU is invalid.
      */
     public byte[] make() {
+        int size = compose();
+        if (size < 0) {
+            return null;
+        }
+
+        mMessage = new byte[size];
+        int written = compose();
+        byte[] message = mMessage;
+        mMessage = null;
+
+        if ((written != size) || (mException != null)) {
+            Log.w("PduComposer", "Message changed while being made", mException);
+            return null;
+        }
+
+        Log.w("PduComposer", "Returning: " + size + " bytes...");
+
+        return message;
+    }
+
+    /**
+     * Make the message into a stream, without holding all of it in memory.
+     *
+     * @param out the stream to write the message to
+     * @return false if the PDU is invalid.
+     * @throws IOException if the message couldn't be written
+     */
+    public boolean make(OutputStream out) throws IOException {
+        int size = compose();
+        if (size < 0) {
+            return false;
+        }
+
+        mOutput = out;
+        int written = compose();
+        mOutput = null;
+
+        if (mException != null) {
+            throw mException;
+        } else if (written != size) {
+            throw new IOException("Message changed while being made");
+        }
+
+        Log.w("PduComposer", "Wrote: " + size + " bytes...");
+
+        return true;
+    }
+
+    /**
+     * Make the message into mMessage or mOutput, or just size it
+     * if neither is set.
+     *
+     * @return the length of the message, -1 if the PDU is invalid.
+     */
+    private int compose() {
+        mPosition = 0;
+        mException = null;
+        mStack.reset((mMessage == null) && (mOutput == null));
+
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -156,49 +229,87 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return -1;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return -1;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
                 if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return -1;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
                 if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return -1;
                 }
                 break;
             default:
-                return null;
+                return -1;
         }
 
-        Log.w("PduComposer", "Returning: " + mMessage.size() + " bytes...");
-
-        return mMessage.toByteArray();
+        return mPosition;
     }
 
     /**
-     *  Copy buf to mMessage.
+     *  Copy buf to the message.
      */
     protected void arraycopy(byte[] buf, int pos, int length) {
-        mMessage.write(buf, pos, length);
+        if (mMessage != null) {
+            if (mPosition + length <= mMessage.length) {
+                System.arraycopy(buf, pos, mMessage, mPosition, length);
+            } else {
+                fail(new IOException("Message longer than sized"));
+            }
+        } else if ((mOutput != null) && (mException == null)) {
+            try {
+                mOutput.write(buf, pos, length);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
         mPosition = mPosition + length;
     }
 
     /**
-     * Append a byte to mMessage.
+     * Append a byte to the message.
      */
     protected void append(int value) {
-        mMessage.write(value);
+        if (mStack.recordLength(value)) {
+            // Already written ahead of the buffer it's the length of.
+            return;
+        }
+
+        if (mMessage != null) {
+            if (mPosition < mMessage.length) {
+                mMessage[mPosition] = (byte) value;
+            } else {
+                fail(new IOException("Message longer than sized"));
+            }
+        } else if ((mOutput != null) && (mException == null)) {
+            try {
+                mOutput.write(value);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
         mPosition ++;
     }
 
+    /**
+     * Record the first error writing the message.
+     */
+    private void fail(IOException e) {
+        if (mException == null) {
+            mException = e;
+        }
+    }
+
     /**
      * Append short integer value to mMessage.
      * This implementation doesn't check the validity of parameter, since it
@@ -651,11 +762,6 @@ public class PduComposer {
      * Make ReadRec.Ind.
      */
     private int makeReadRecInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_READ_REC_IND);
@@ -699,11 +805,6 @@ public class PduComposer {
      * Make NotifyResp.Ind.
      */
     private int makeNotifyResp() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND);
@@ -731,11 +832,6 @@ public class PduComposer {
      * Make Acknowledge.Ind.
      */
     private int makeAckInd() {
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         //    X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND);
@@ -762,11 +858,6 @@ public class PduComposer {
     private int makeSendReqPdu() {
     	Log.w("PduComposer", "Making send request...");
 
-        if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
-        }
-
         // X-Mms-Message-Type
         appendOctet(PduHeaders.MESSAGE_TYPE);
         appendOctet(PduHeaders.MESSAGE_TYPE_SEND_REQ);
@@ -996,10 +1087,10 @@ public class PduComposer {
                     cr = mResolver.openInputStream(part.getDataUri());
                     int len = 0;
                     while ((len = cr.read(buffer)) != -1) {
-                        mMessage.write(buffer, 0, len);
-                        mPosition += len;
+                        arraycopy(buffer, 0, len);
                         dataLength += len;
                     }
+                    cr.close();
                 } catch (FileNotFoundException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
                 } catch (IOException e) {
@@ -1023,11 +1114,12 @@ public class PduComposer {
     }
 
     /**
-     *  Record current message informations.
+     *  Record the length of a length-prefixed part of the message.
      */
     static private class LengthRecordNode {
-        ByteArrayOutputStream currentMessage = null;
-        public int currentPosition = 0;
+        public int contentPosition = 0;
+        public int contentLength = 0;
+        public ByteArrayOutputStream length = null;
 
         public LengthRecordNode next = null;
     }
@@ -1052,16 +1144,41 @@ public class PduComposer {
     }
 
     /**
-     * This implementation can be OPTIMIZED to use only
-     * 2 buffers. This optimization involves changing BufferStack
-     * only... Its usage (interface) will not change.
+     * Lengths in the message are written ahead of what they measure,
+     * but are only known after it has been made.  So the message is
+     * made twice: the first time, nothing is written, and the bytes
+     * appended between pop() and copy() are recorded for each buffer.
+     * The second time, they're written when the buffer is created,
+     * and dropped when they're appended.  Its usage (interface) is the
+     * same as a stack of buffers that are copied into each other.
      */
     private class BufferStack {
+        private final ArrayList<LengthRecordNode> records = new ArrayList<LengthRecordNode>();
+
         private LengthRecordNode stack = null;
         private LengthRecordNode toCopy = null;
 
+        private boolean sizing = true;
+        private int created = 0;
+
         int stackSize = 0;
 
+        /**
+         *  Start making the message, recording lengths if sizing it.
+         */
+        void reset(boolean sizing) {
+            this.sizing = sizing;
+
+            if (sizing) {
+                records.clear();
+            }
+
+            stack = null;
+            toCopy = null;
+            created = 0;
+            stackSize = 0;
+        }
+
         /**
          *  Create a new message buffer and push it into the stack.
          */
@@ -1073,50 +1190,73 @@ public class PduComposer {
                 throw new RuntimeException("BUG: Invalid newbuf() before copy()");
             }
 
-            LengthRecordNode temp = new LengthRecordNode();
+            LengthRecordNode temp;
+
+            if (sizing) {
+                temp = new LengthRecordNode();
+                records.add(temp);
+            } else {
+                temp = records.get(created);
+
+                byte[] length = temp.length.toByteArray();
+                arraycopy(length, 0, length.length);
+            }
 
-            temp.currentMessage = mMessage;
-            temp.currentPosition = mPosition;
+            created = created + 1;
+
+            temp.contentPosition = mPosition;
 
             temp.next = stack;
             stack = temp;
 
             stackSize = stackSize + 1;
-
-            mMessage = new ByteArrayOutputStream();
-            mPosition = 0;
         }
 
         /**
-         *  Pop the message before and record current message in the stack.
+         *  Pop the message buffer, so that its length can be appended.
          */
         void pop() {
-            ByteArrayOutputStream currentMessage = mMessage;
-            int currentPosition = mPosition;
-
-            mMessage = stack.currentMessage;
-            mPosition = stack.currentPosition;
-
             toCopy = stack;
-            // Re using the top element of the stack to avoid memory allocation
 
             stack = stack.next;
             stackSize = stackSize - 1;
 
-            toCopy.currentMessage = currentMessage;
-            toCopy.currentPosition = currentPosition;
+            int contentLength = mPosition - toCopy.contentPosition;
+
+            if (sizing) {
+                toCopy.contentLength = contentLength;
+                toCopy.length = new ByteArrayOutputStream();
+            } else if (contentLength != toCopy.contentLength) {
+                fail(new IOException("Buffer length changed from " +
+                        toCopy.contentLength + " to " + contentLength));
+            }
         }
 
         /**
-         *  Append current message to the message before.
+         *  Finish appending the length of the popped buffer.
          */
         void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
-
             toCopy = null;
         }
 
+        /**
+         *  Record a byte of the length being appended after pop().
+         *
+         *  @return true if the byte was already written, and should be dropped.
+         */
+        boolean recordLength(int value) {
+            if (toCopy == null) {
+                return false;
+            }
+
+            if (sizing) {
+                toCopy.length.write(value);
+                return false;
+            }
+
+            return true;
+        }
+
         /**
          *  Mark current message position
          */
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 Open Whisper Systems
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ws.com.google.android.mms.pdu;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The stream {@link PduParser} reads from.  It behaves like the
+ * ByteArrayInputStream the parser was written against: available() is the
+ * number of bytes left in the pdu, mark() and reset() work at any point,
+ * and reads never throw.  The data itself may come from any InputStream of
+ * known length, so a pdu doesn't have to be held in memory to be parsed.
+ *
+ * An IOException from the underlying stream, or the stream ending before
+ * the length it was given, ends the stream and is kept for
+ * {@link #getException()}.
+ */
+class PduInputStream extends InputStream {
+
+    private static final String LOG_TAG = "PduInputStream";
+
+    /**
+     * How far the parser may read past a mark and still reset to it.
+     * Marks only ever span header values.
+     */
+    private static final int MARK_LIMIT = 64 * 1024;
+
+    private final InputStream    mInput;
+    private final PduInputStream mParent;
+    private final int            mLength;
+
+    private int         mPosition     = 0;
+    private int         mMarkPosition = 0;
+    private IOException mException    = null;
+
+    PduInputStream(byte[] pdu) {
+        this(new ByteArrayInputStream(pdu), pdu.length);
+    }
+
+    PduInputStream(InputStream input, int length) {
+        mInput  = input.markSupported() ? input : new BufferedInputStream(input);
+        mParent = null;
+        mLength = length;
+    }
+
+    private PduInputStream(PduInputStream parent, int length) {
+        mInput  = parent;
+        mParent = parent;
+        mLength = Math.min(length, parent.available());
+    }
+
+    /**
+     * @return a stream over the next length bytes of this one.  This
+     *         stream must not be read again until the slice is done with.
+     */
+    PduInputStream slice(int length) {
+        return new PduInputStream(this, length);
+    }
+
+    /**
+     * Skip whatever hasn't been read of this stream, so that a parent
+     * stream carries on after the end of this slice.
+     */
+    void skipRemaining() {
+        while (available() > 0 && skip(available()) > 0);
+    }
+
+    /**
+     * @return the IOException that ended the underlying stream, or null.
+     */
+    IOException getException() {
+        return mParent != null ? mParent.getException() : mException;
+    }
+
+    @Override
+    public int read() {
+        if (mPosition >= mLength) {
+            return -1;
+        }
+
+        try {
+            int value = mInput.read();
+            if (value == -1) return fail(new EOFException("Pdu ended early"));
+
+            mPosition++;
+            return value;
+        } catch (IOException e) {
+            return fail(e);
+        }
+    }
+
+    /**
+     * Unlike most streams, this only reads fewer than len bytes at the end
+     * of the pdu.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int len) {
+        if (len == 0)              return 0;
+        if (mPosition >= mLength)  return -1;
+
+        len = Math.min(len, mLength - mPosition);
+
+        int total = 0;
+
+        try {
+            while (total < len) {
+                int read = mInput.read(buffer, offset + total, len - total);
+                if (read == -1) throw new EOFException("Pdu ended early");
+
+                total     += read;
+                mPosition += read;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        return total > 0 ? total : -1;
+    }
+
+    @Override
+    public long skip(long count) {
+        count = Math.min(count, mLength - mPosition);
+
+        if (count <= 0) {
+            return 0;
+        }
+
+        try {
+            long skipped = mInput.skip(count);
+
+            if (skipped <= 0) {
+                skipped = read() == -1 ? 0 : 1;
+            } else {
+                mPosition += skipped;
+            }
+
+            return skipped;
+        } catch (IOException e) {
+            fail(e);
+            return 0;
+        }
+    }
+
+    @Override
+    public int available() {
+        return mLength - mPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        mInput.mark(MARK_LIMIT);
+        mMarkPosition = mPosition;
+    }
+
+    @Override
+    public void reset() {
+        try {
+            mInput.reset();
+            mPosition = mMarkPosition;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private int fail(IOException e) {
+        Log.w(LOG_TAG, e);
+
+        if (mParent == null) mException = e;
+        mPosition = mLength;
+
+        return -1;
+    }
+}
@@ -18,13 +18,15 @@
 package ws.com.google.android.mms.pdu;
 
 import android.content.res.Resources;
+import android.net.Uri;
 import android.util.Log;
 
 import ws.com.google.android.mms.ContentType;
 import ws.com.google.android.mms.InvalidHeaderValueException;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -57,7 +59,12 @@ public class PduParser {
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private PduInputStream mPduDataStream = null;
+
+    /**
+     * Where part data is written instead of being kept in memory.
+     */
+    private PartDataSink mPartDataSink = null;
 
     /**
      * Store pdu headers
@@ -91,7 +98,32 @@ public class PduParser {
      * @param pduDataStream pdu data to be parsed
      */
     public PduParser(byte[] pduDataStream) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new PduInputStream(pduDataStream);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param pduDataStream pdu data to be parsed
+     * @param partDataSink receives the data of the parts it accepts
+     */
+    public PduParser(byte[] pduDataStream, PartDataSink partDataSink) {
+        mPduDataStream = new PduInputStream(pduDataStream);
+        mPartDataSink = partDataSink;
+    }
+
+    /**
+     * Constructor for parsing a pdu as it is read, without holding
+     * all of it in memory.  Headers are read a value at a time, and
+     * the data of parts accepted by the sink is passed straight to it.
+     *
+     * @param pduDataStream stream of pdu data to be parsed
+     * @param length the length of the pdu
+     * @param partDataSink receives the data of the parts it accepts
+     */
+    public PduParser(InputStream pduDataStream, int length, PartDataSink partDataSink) {
+        mPduDataStream = new PduInputStream(pduDataStream, length);
+        mPartDataSink = partDataSink;
     }
 
     /**
@@ -108,7 +140,7 @@ public class PduParser {
 
         /* parse headers */
         mHeaders = parseHeaders(mPduDataStream);
-        if (null == mHeaders) {
+        if ((null == mHeaders) || (null != mPduDataStream.getException())) {
             // Parse headers failed.
             return null;
         }
@@ -127,8 +159,8 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType)) {
             /* need to parse the parts */
             Log.w("PduParser", "Parsing parts...");
-            mBody = parseParts(mPduDataStream);
-            if (null == mBody) {
+            mBody = parseParts(mPduDataStream, mPartDataSink);
+            if ((null == mBody) || (null != mPduDataStream.getException())) {
                 // Parse parts failed.
                 return null;
             }
@@ -202,7 +234,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    protected PduHeaders parseHeaders(PduInputStream pduDataStream){
         if (pduDataStream == null) {
             return null;
         }
@@ -732,9 +764,11 @@ public class PduParser {
      * Parse pdu parts.
      *
      * @param pduDataStream pdu data input stream
+     * @param partDataSink receives the data of the parts it accepts, may be null
      * @return parts in PduBody structure
      */
-    protected static PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected static PduBody parseParts(PduInputStream pduDataStream,
+            PartDataSink partDataSink) {
         if (pduDataStream == null) {
             return null;
         }
@@ -799,15 +833,31 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduInputStream childStream = pduDataStream.slice(dataLength);
+                    PduBody childBody = parseParts(childStream, partDataSink);
+                    childStream.skipRemaining();
+                    if ((null == childBody) || (0 == childBody.getPartsNum())) {
+                        return null;
+                    }
                     // take the first part of children.
                     part = childBody.getPart(0);
+                } else if ((null != partDataSink) && isBinaryPart(part)
+                        && partDataSink.accepts(part)) {
+                    // Pass the data on as it is read.
+                    PduInputStream partStream = pduDataStream.slice(dataLength);
+                    try {
+                        part.setDataUri(partDataSink.write(part, partStream, dataLength));
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, e);
+                        return null;
+                    }
+                    partStream.skipRemaining();
                 } else {
+                    byte[] partData = new byte[dataLength];
+                    pduDataStream.read(partData, 0, dataLength);
                     // Check Content-Transfer-Encoding.
                     byte[] partDataEncoding = part.getContentTransferEncoding();
                     if (null != partDataEncoding) {
@@ -843,6 +893,23 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Check whether a part's data can be used as it is, without decoding.
+     *
+     * @param part the part
+     * @return true if the part has no transfer encoding or is "binary"
+     */
+    private static boolean isBinaryPart(PduPart part) {
+        byte[] encoding = part.getContentTransferEncoding();
+        if (null == encoding) {
+            return true;
+        }
+
+        String encodingStr = new String(encoding);
+        return !encodingStr.equalsIgnoreCase(PduPart.P_BASE64)
+                && !encodingStr.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE);
+    }
+
     /**
      * Log status.
      *
@@ -860,7 +927,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -894,7 +961,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -923,7 +990,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(PduInputStream pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -968,7 +1035,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1090,7 +1157,7 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(PduInputStream pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -1125,7 +1192,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(PduInputStream pduDataStream) {
         assert(null != pduDataStream);
         int temp = pduDataStream.read();
         assert(-1 != temp);
@@ -1138,7 +1205,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1158,7 +1225,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1196,7 +1263,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(PduInputStream pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1220,7 +1287,7 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(PduInputStream pduDataStream, int length) {
         assert(null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1239,7 +1306,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(PduInputStream pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1422,7 +1489,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(PduInputStream pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1493,7 +1560,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected static boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected static boolean parsePartHeaders(PduInputStream pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -1916,4 +1983,26 @@ public class PduParser {
 
         return true;
     }
+
+    /**
+     * Takes the data of parts during parsing, so that it doesn't have
+     * to be held in memory.
+     */
+    public interface PartDataSink {
+        /**
+         * @param part a part whose headers have been parsed
+         * @return true if the data of this part should be written to the sink
+         */
+        boolean accepts(PduPart part);
+
+        /**
+         * Store the data of a part.
+         *
+         * @param part the part the data belongs to
+         * @param data the part data, which ends after length bytes
+         * @param length the length of the part data
+         * @return the uri the data can be read back from
+         */
+        Uri write(PduPart part, InputStream data, int length) throws IOException;
+    }
 }
@@ -0,0 +1,89 @@
+package org.thoughtcrime.redphone.network;
+
+import android.os.Debug;
+import android.util.Log;
+
+import org.thoughtcrime.redphone.crypto.zrtp.HandshakePacket;
+import org.thoughtcrime.redphone.crypto.zrtp.HelloPacket;
+import org.thoughtcrime.securesms.TextSecureTestCase;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * Bounces handshake-sized packets between two RtpSockets over loopback and reports
+ * packets per second and bytes allocated per packet, for the pooled send/receive
+ * path and for the previous path that allocated a DatagramPacket and RtpPacket
+ * for every datagram.
+ */
+public class RtpSocketBenchmark extends TextSecureTestCase {
+  private static final String TAG = RtpSocketBenchmark.class.getSimpleName();
+
+  private static final int PACKETS     = 10000;
+  private static final int PACKET_SIZE = 400;
+  private static final int PORT_ONE    = 42181;
+  private static final int PORT_TWO    = 42182;
+
+  private RtpSocket sender;
+  private RtpSocket receiver;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    sender   = new RtpSocket(PORT_ONE, new InetSocketAddress("127.0.0.1", PORT_TWO));
+    receiver = new RtpSocket(PORT_TWO, new InetSocketAddress("127.0.0.1", PORT_ONE));
+
+    receiver.setTimeout(1000);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    sender.close();
+    receiver.close();
+    super.tearDown();
+  }
+
+  public void testSendReceive() throws Exception {
+    HandshakePacket packet = new HandshakePacket(HelloPacket.TYPE, PACKET_SIZE, false);
+    DatagramSocket  socket = receiver.getDatagramSocket();
+    byte[]          buffer = new byte[4096];
+
+    packet.setCRC();
+
+    Debug.startAllocCounting();
+
+    Debug.resetThreadAllocSize();
+    long pooledStart = System.nanoTime();
+
+    for (int i=0;i<PACKETS;i++) {
+      sender.send(packet);
+      assertNotNull(receiver.receive());
+    }
+
+    long pooledEnd   = System.nanoTime();
+    long pooledBytes = Debug.getThreadAllocSize();
+
+    Debug.resetThreadAllocSize();
+    long legacyStart = System.nanoTime();
+
+    for (int i=0;i<PACKETS;i++) {
+      sender.getDatagramSocket().send(new DatagramPacket(packet.getPacket(), packet.getPacketLength()));
+
+      DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+      socket.receive(datagram);
+      assertNotNull(new RtpPacket(datagram.getData(), datagram.getLength()));
+    }
+
+    long legacyEnd   = System.nanoTime();
+    long legacyBytes = Debug.getThreadAllocSize();
+
+    Debug.stopAllocCounting();
+
+    Log.w(TAG, "Pooled: " + (PACKETS * 1000000000L / (pooledEnd - pooledStart)) + " packets/s, " +
+               (pooledBytes / PACKETS) + " bytes/packet, " +
+               "per-packet allocation: " + (PACKETS * 1000000000L / (legacyEnd - legacyStart)) + " packets/s, " +
+               (legacyBytes / PACKETS) + " bytes/packet");
+  }
+}
@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures the per-message cost of MasterCipher.decryptBody for typical message
+ * body sizes, including constructing a MasterCipher per message as readers do.
+ */
+public class MasterCipherBenchmark extends TextSecureTestCase {
+  private static final String TAG = MasterCipherBenchmark.class.getSimpleName();
+
+  private static final int[] BODY_SIZES = {32, 160, 1024, 4096};
+  private static final int   WARMUP     = 500;
+  private static final int   ITERATIONS = 5000;
+
+  private MasterSecret masterSecret;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+  }
+
+  public void testDecryptBody() throws InvalidMessageException {
+    for (int size : BODY_SIZES) {
+      String body      = getBody(size);
+      String encrypted = new MasterCipher(masterSecret).encryptBody(body);
+
+      for (int i=0;i<WARMUP;i++) {
+        new MasterCipher(masterSecret).decryptBody(encrypted);
+      }
+
+      long start = System.nanoTime();
+
+      for (int i=0;i<ITERATIONS;i++) {
+        assertEquals(size, new MasterCipher(masterSecret).decryptBody(encrypted).length());
+      }
+
+      long elapsed = System.nanoTime() - start;
+
+      Log.w(TAG, "decryptBody(" + size + " chars): " + (elapsed / ITERATIONS / 1000) + "us/message");
+    }
+  }
+
+  private String getBody(int size) {
+    Random        random = new Random(size);
+    StringBuilder body   = new StringBuilder(size);
+
+    for (int i=0;i<size;i++) {
+      body.append((char)('a' + random.nextInt(26)));
+    }
+
+    return body.toString();
+  }
+}
@@ -0,0 +1,79 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares the legacy single-MAC part streams against the chunked part streams
+ * on an attachment the size of a short video.
+ */
+public class PartStreamBenchmark extends TextSecureTestCase {
+  private static final String TAG = PartStreamBenchmark.class.getSimpleName();
+
+  private static final int PART_SIZE  = 16 * 1024 * 1024;
+  private static final int ITERATIONS = 3;
+
+  private MasterSecret masterSecret;
+  private byte[]       data;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+    data         = new byte[PART_SIZE];
+
+    new Random(1).nextBytes(data);
+  }
+
+  public void testCompareFormats() throws IOException {
+    File cacheDir    = getInstrumentation().getTargetContext().getCacheDir();
+    File legacyFile  = File.createTempFile("part", ".mms", cacheDir);
+    File chunkedFile = File.createTempFile("part", ".chunk", cacheDir);
+
+    long legacyWrite = 0, legacyRead = 0, chunkedWrite = 0, chunkedRead = 0;
+
+    for (int i=0;i<ITERATIONS;i++) {
+      legacyWrite  += time(new EncryptingPartOutputStream(legacyFile, masterSecret));
+      legacyRead   += time(new DecryptingPartInputStream(legacyFile, masterSecret));
+      chunkedWrite += time(new ChunkedEncryptingPartOutputStream(chunkedFile, masterSecret));
+      chunkedRead  += time(new ChunkedDecryptingPartInputStream(chunkedFile, masterSecret));
+    }
+
+    Log.w(TAG, "Legacy: " + (legacyWrite / ITERATIONS / 1000000) + "ms write, " +
+               (legacyRead / ITERATIONS / 1000000) + "ms read; " +
+               "chunked: " + (chunkedWrite / ITERATIONS / 1000000) + "ms write, " +
+               (chunkedRead / ITERATIONS / 1000000) + "ms read");
+
+    legacyFile.delete();
+    chunkedFile.delete();
+  }
+
+  private long time(OutputStream out) throws IOException {
+    long start = System.nanoTime();
+    Util.copy(new ByteArrayInputStream(data), out);
+    return System.nanoTime() - start;
+  }
+
+  private long time(InputStream in) throws IOException {
+    long   start  = System.nanoTime();
+    byte[] buffer = new byte[64 * 1024];
+
+    while (in.read(buffer) != -1);
+    in.close();
+
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,74 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Times a prekey refresh (generate, then store a batch) and prekey lookups
+ * against the database-backed prekey store.
+ */
+public class PreKeyStoreBenchmark extends TextSecureTestCase {
+  private static final String TAG = PreKeyStoreBenchmark.class.getSimpleName();
+
+  private static final int BATCH_SIZE    = 100;
+  private static final int FIRST_KEY_ID  = 0xF00000;
+  private static final int LOOKUP_ROUNDS = 10;
+
+  private TextSecurePreKeyStore preKeyStore;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    preKeyStore = new TextSecurePreKeyStore(getInstrumentation().getTargetContext());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (int i=0;i<BATCH_SIZE;i++) {
+      preKeyStore.removePreKey(FIRST_KEY_ID + i);
+    }
+
+    super.tearDown();
+  }
+
+  public void testGenerateStoreAndLookup() throws InvalidKeyIdException {
+    long               generateStart = System.nanoTime();
+    List<PreKeyRecord> records       = new LinkedList<>();
+
+    for (int i=0;i<BATCH_SIZE;i++) {
+      records.add(new PreKeyRecord(FIRST_KEY_ID + i, Curve.generateKeyPair()));
+    }
+
+    long singleStart = System.nanoTime();
+
+    for (PreKeyRecord record : records) {
+      preKeyStore.storePreKey(record.getId(), record);
+    }
+
+    long batchStart = System.nanoTime();
+
+    preKeyStore.storePreKeys(records);
+
+    long lookupStart = System.nanoTime();
+
+    for (int round=0;round<LOOKUP_ROUNDS;round++) {
+      for (PreKeyRecord record : records) {
+        assertEquals(record.getId(), preKeyStore.loadPreKey(record.getId()).getId());
+      }
+    }
+
+    long end = System.nanoTime();
+
+    Log.w(TAG, "Generate " + BATCH_SIZE + ": " + ((singleStart - generateStart) / 1000000) + "ms, " +
+               "store one at a time: " + ((batchStart - singleStart) / 1000000) + "ms, " +
+               "store as batch: " + ((lookupStart - batchStart) / 1000000) + "ms, " +
+               "lookup: " + ((end - lookupStart) / (BATCH_SIZE * LOOKUP_ROUNDS) / 1000) + "us/key");
+  }
+}
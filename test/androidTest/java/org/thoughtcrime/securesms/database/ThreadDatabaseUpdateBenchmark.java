@@ -0,0 +1,104 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.recipients.RecipientFactory;
+import org.thoughtcrime.securesms.recipients.Recipients;
+
+/**
+ * Compares the full thread summary recompute against the incremental insert path
+ * on a thread with a realistic amount of history.
+ */
+public class ThreadDatabaseUpdateBenchmark extends TextSecureTestCase {
+  private static final String TAG = ThreadDatabaseUpdateBenchmark.class.getSimpleName();
+
+  private static final int HISTORY_SIZE = 5000;
+  private static final int ITERATIONS   = 200;
+
+  private ThreadDatabase threadDatabase;
+  private long           threadId;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    Context    context    = getInstrumentation().getTargetContext();
+    Recipients recipients = RecipientFactory.getRecipientsFromString(context, "+15555550123", false);
+
+    threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    threadId       = threadDatabase.getThreadIdFor(recipients);
+
+    SmsDatabase     smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    SQLiteDatabase  transaction = smsDatabase.beginTransaction();
+    SQLiteStatement statement   = smsDatabase.createInsertStatement(transaction);
+    long            now         = System.currentTimeMillis();
+
+    for (int i=0;i<HISTORY_SIZE;i++) {
+      statement.clearBindings();
+      statement.bindString(1, "+15555550123");
+      statement.bindLong(3, now - (HISTORY_SIZE - i) * 1000L);
+      statement.bindLong(4, now - (HISTORY_SIZE - i) * 1000L);
+      statement.bindLong(6, 1);
+      statement.bindLong(8, MmsSmsColumns.Types.BASE_INBOX_TYPE);
+      statement.bindString(11, "message " + i);
+      statement.bindLong(13, threadId);
+      statement.execute();
+    }
+
+    smsDatabase.endTransaction(transaction);
+    threadDatabase.update(threadId, false);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    threadDatabase.deleteConversation(threadId);
+    super.tearDown();
+  }
+
+  public void testCompareUpdatePaths() {
+    long start = System.nanoTime();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      threadDatabase.update(threadId, false);
+    }
+
+    long fullNanos = System.nanoTime() - start;
+    long now       = System.currentTimeMillis();
+
+    start = System.nanoTime();
+
+    for (int i=0;i<ITERATIONS;i++) {
+      threadDatabase.updateForInsert(threadId, "message", null, now + i * 1000L, now + i * 1000L,
+                                     SmsDatabase.Status.STATUS_NONE, 0, MmsSmsColumns.Types.BASE_INBOX_TYPE, false);
+    }
+
+    long incrementalNanos = System.nanoTime() - start;
+    long lastDate         = now + (ITERATIONS - 1) * 1000L;
+
+    Log.w(TAG, "Full recompute: " + (fullNanos / ITERATIONS / 1000) + "us/update, " +
+               "incremental: " + (incrementalNanos / ITERATIONS / 1000) + "us/update");
+
+    Cursor cursor = threadDatabase.databaseHelper.getReadableDatabase()
+                                                 .query(ThreadDatabase.TABLE_NAME,
+                                                        new String[] {ThreadDatabase.MESSAGE_COUNT,
+                                                                      ThreadDatabase.SNIPPET,
+                                                                      ThreadDatabase.DATE},
+                                                        ThreadDatabase.ID + " = ?",
+                                                        new String[] {String.valueOf(threadId)},
+                                                        null, null, null);
+
+    try {
+      assertTrue(cursor.moveToFirst());
+      assertEquals(HISTORY_SIZE + ITERATIONS, cursor.getLong(0));
+      assertEquals("message", cursor.getString(1));
+      assertEquals(lastDate - lastDate % 1000, cursor.getLong(2));
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
+import org.thoughtcrime.securesms.crypto.PreKeyUtil;
+import org.thoughtcrime.securesms.crypto.storage.SignalProtocolStoreImpl;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays a backlog of incoming messages from many senders against the local
+ * protocol store, once strictly in arrival order (as a single decrypt job group
+ * does) and once with one ordered queue per sender running side by side (as the
+ * per-sender decrypt job groups do).
+ */
+public class DecryptBacklogBenchmark extends TextSecureTestCase {
+  private static final String TAG = DecryptBacklogBenchmark.class.getSimpleName();
+
+  private static final int SENDERS             = 20;
+  private static final int MESSAGES_PER_SENDER = 50;
+  private static final int CONSUMER_THREADS    = 5;
+
+  private Context             context;
+  private SignalProtocolStore localStore;
+  private List<PreKeyRecord>  preKeys;
+  private SignedPreKeyRecord  signedPreKey;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context = getInstrumentation().getTargetContext();
+
+    if (!IdentityKeyUtil.hasIdentityKey(context)) {
+      IdentityKeyUtil.generateIdentityKeys(context);
+    }
+
+    localStore   = new SignalProtocolStoreImpl(context);
+    preKeys      = PreKeyUtil.generatePreKeys(context);
+    signedPreKey = PreKeyUtil.generateSignedPreKey(context, IdentityKeyUtil.getIdentityKeyPair(context));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    TextSecureSessionStore sessionStore = new TextSecureSessionStore(context);
+
+    for (int i=0;i<SENDERS * 2;i++) {
+      sessionStore.deleteAllSessions(getSender(i));
+    }
+
+    for (PreKeyRecord preKey : preKeys) {
+      localStore.removePreKey(preKey.getId());
+    }
+
+    localStore.removeSignedPreKey(signedPreKey.getId());
+    super.tearDown();
+  }
+
+  public void testDecryptBacklog() throws Exception {
+    List<List<CiphertextMessage>> sequentialBacklog = getBacklog(0);
+    List<List<CiphertextMessage>> perSenderBacklog  = getBacklog(SENDERS);
+
+    long sequentialStart = System.nanoTime();
+
+    for (int message=0;message<MESSAGES_PER_SENDER;message++) {
+      for (int sender=0;sender<SENDERS;sender++) {
+        decrypt(sender, sequentialBacklog.get(sender).get(message));
+      }
+    }
+
+    long               perSenderStart = System.nanoTime();
+    ExecutorService    executor       = Executors.newFixedThreadPool(CONSUMER_THREADS);
+    List<Future<Void>> pending        = new LinkedList<>();
+
+    for (int i=0;i<SENDERS;i++) {
+      final int                     sender   = SENDERS + i;
+      final List<CiphertextMessage> messages = perSenderBacklog.get(i);
+
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (CiphertextMessage message : messages) {
+            decrypt(sender, message);
+          }
+          return null;
+        }
+      }));
+    }
+
+    for (Future<Void> future : pending) {
+      future.get();
+    }
+
+    long end   = System.nanoTime();
+    int  total = SENDERS * MESSAGES_PER_SENDER;
+
+    executor.shutdown();
+
+    Log.w(TAG, "Decrypted " + total + " messages from " + SENDERS + " senders, " +
+               "in arrival order: " + ((perSenderStart - sequentialStart) / 1000000) + "ms, " +
+               "per sender with " + CONSUMER_THREADS + " threads: " + ((end - perSenderStart) / 1000000) + "ms");
+  }
+
+  private List<List<CiphertextMessage>> getBacklog(int firstSender) throws Exception {
+    List<List<CiphertextMessage>> backlog      = new LinkedList<>();
+    SignalProtocolAddress         localAddress = new SignalProtocolAddress("+15555550000", 1);
+
+    for (int i=0;i<SENDERS;i++) {
+      IdentityKeyPair             identityKey = KeyHelper.generateIdentityKeyPair();
+      InMemorySignalProtocolStore senderStore = new InMemorySignalProtocolStore(identityKey, KeyHelper.generateRegistrationId(false));
+      PreKeyRecord                preKey      = preKeys.get(firstSender + i);
+      List<CiphertextMessage>     messages    = new LinkedList<>();
+
+      new SessionBuilder(senderStore, localAddress).process(new PreKeyBundle(localStore.getLocalRegistrationId(), 1,
+                                                                             preKey.getId(), preKey.getKeyPair().getPublicKey(),
+                                                                             signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(),
+                                                                             signedPreKey.getSignature(),
+                                                                             localStore.getIdentityKeyPair().getPublicKey()));
+
+      SessionCipher cipher = new SessionCipher(senderStore, localAddress);
+
+      for (int j=0;j<MESSAGES_PER_SENDER;j++) {
+        messages.add(cipher.encrypt(("message " + j + " from sender " + i).getBytes()));
+      }
+
+      backlog.add(messages);
+    }
+
+    return backlog;
+  }
+
+  private void decrypt(int sender, CiphertextMessage message) throws Exception {
+    SessionCipher cipher = new SessionCipher(localStore, new SignalProtocolAddress(getSender(sender), 1));
+    cipher.decrypt(new PreKeySignalMessage(message.serialize()));
+  }
+
+  private String getSender(int index) {
+    return String.format("+1555556%04d", index);
+  }
+}
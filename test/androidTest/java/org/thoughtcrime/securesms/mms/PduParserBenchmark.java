@@ -0,0 +1,207 @@
+package org.thoughtcrime.securesms.mms;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import ws.com.google.android.mms.pdu.EncodedStringValue;
+import ws.com.google.android.mms.pdu.PduBody;
+import ws.com.google.android.mms.pdu.PduComposer;
+import ws.com.google.android.mms.pdu.PduHeaders;
+import ws.com.google.android.mms.pdu.PduParser;
+import ws.com.google.android.mms.pdu.PduPart;
+import ws.com.google.android.mms.pdu.RetrieveConf;
+import ws.com.google.android.mms.pdu.SendReq;
+
+/**
+ * Parses retrieve-conf PDUs of a range of sizes from disk, the way a downloaded MMS
+ * is parsed, and reports time, bytes allocated and peak heap growth both for reading
+ * the whole PDU into memory and for the streaming parse that writes media parts
+ * straight to encrypted blobs.
+ */
+public class PduParserBenchmark extends TextSecureTestCase {
+  private static final String TAG = PduParserBenchmark.class.getSimpleName();
+
+  private static final int[] MEDIA_SIZES = {10 * 1024, 300 * 1024, 1024 * 1024, 3 * 1024 * 1024};
+  private static final int   ITERATIONS  = 3;
+
+  private Context      context;
+  private MasterSecret masterSecret;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context      = getInstrumentation().getTargetContext();
+    masterSecret = new MasterSecret(new SecretKeySpec(new byte[16], "AES"),
+                                    new SecretKeySpec(new byte[16], "HmacSHA1"));
+  }
+
+  public void testParse() throws Exception {
+    for (int mediaSize : MEDIA_SIZES) {
+      File pduFile = File.createTempFile("retrieve", ".pdu", context.getCacheDir());
+      Util.copy(new ByteArrayInputStream(createRetrieveConf(mediaSize)), new FileOutputStream(pduFile));
+
+      Result inMemory  = new Result();
+      Result streaming = new Result();
+
+      for (int i=0;i<ITERATIONS;i++) {
+        inMemory.add(measure(pduFile, false));
+        streaming.add(measure(pduFile, true));
+      }
+
+      Log.w(TAG, pduFile.length() + "-byte pdu: " +
+                 "in memory " + inMemory + "; streaming " + streaming);
+
+      pduFile.delete();
+    }
+  }
+
+  private Result measure(File pduFile, boolean streaming) throws Exception {
+    MediaPartSink sink = new MediaPartSink(context, masterSecret);
+
+    System.gc();
+
+    HeapSampler sampler = new HeapSampler();
+
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocSize();
+    sampler.start();
+
+    long         start = System.nanoTime();
+    RetrieveConf retrieveConf;
+
+    if (streaming) {
+      FileInputStream in = new FileInputStream(pduFile);
+      retrieveConf = (RetrieveConf)new PduParser(in, (int)pduFile.length(), sink).parse();
+      in.close();
+    } else {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Util.copy(new FileInputStream(pduFile), out);
+      retrieveConf = (RetrieveConf)new PduParser(out.toByteArray()).parse();
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long peak    = sampler.finish();
+    long alloc   = Debug.getThreadAllocSize();
+
+    Debug.stopAllocCounting();
+
+    assertNotNull(retrieveConf);
+    assertEquals(2, retrieveConf.getBody().getPartsNum());
+
+    sink.delete();
+
+    return new Result(elapsed, alloc, peak);
+  }
+
+  private byte[] createRetrieveConf(int mediaSize) {
+    SendReq request = new SendReq();
+    PduBody body    = new PduBody();
+    Random  random  = new Random(1);
+
+    request.setFrom(new EncodedStringValue("+15555550100"));
+    request.addTo(new EncodedStringValue("+15555550101"));
+    request.setDate(System.currentTimeMillis() / 1000);
+
+    PduPart text = new PduPart();
+    text.setContentType("text/plain".getBytes());
+    text.setContentLocation("text.txt".getBytes());
+    text.setData("Hello world".getBytes());
+    body.addPart(text);
+
+    byte[]  mediaData = new byte[mediaSize];
+    PduPart media     = new PduPart();
+
+    random.nextBytes(mediaData);
+    media.setContentType("video/mp4".getBytes());
+    media.setContentLocation("video.mp4".getBytes());
+    media.setData(mediaData);
+    body.addPart(media);
+
+    request.setBody(body);
+
+    byte[] pdu = new PduComposer(context, request).make();
+
+    // The composer only writes outgoing pdus, but a send-req carries every header
+    // a retrieve-conf needs, and its message type is the first header.
+    assertEquals(PduHeaders.MESSAGE_TYPE, pdu[0] & 0xff);
+    pdu[1] = (byte)PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF;
+
+    return pdu;
+  }
+
+  private static class Result {
+    private long elapsed;
+    private long allocated;
+    private long peak;
+    private int  count;
+
+    private Result() {}
+
+    private Result(long elapsed, long allocated, long peak) {
+      this.elapsed   = elapsed;
+      this.allocated = allocated;
+      this.peak      = peak;
+      this.count     = 1;
+    }
+
+    private void add(Result result) {
+      elapsed   += result.elapsed;
+      allocated += result.allocated;
+      peak       = Math.max(peak, result.peak);
+      count     += result.count;
+    }
+
+    @Override
+    public String toString() {
+      return (elapsed / count / 1000000) + "ms, " +
+             (allocated / count / 1024) + "KB allocated, " +
+             (peak / 1024) + "KB peak heap growth";
+    }
+  }
+
+  private static class HeapSampler extends Thread {
+    private final long baseline = getUsedHeap();
+
+    private volatile boolean running = true;
+    private volatile long    peak    = 0;
+
+    @Override
+    public void run() {
+      while (running) {
+        peak = Math.max(peak, getUsedHeap() - baseline);
+
+        try {
+          Thread.sleep(2);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    }
+
+    public long finish() throws InterruptedException {
+      running = false;
+      join();
+      return Math.max(peak, getUsedHeap() - baseline);
+    }
+
+    private static long getUsedHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+    }
+  }
+}
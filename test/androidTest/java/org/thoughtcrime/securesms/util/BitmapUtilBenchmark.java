@@ -0,0 +1,173 @@
+package org.thoughtcrime.securesms.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.net.Uri;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.TextSecureTestCase;
+import org.thoughtcrime.securesms.mms.MediaConstraints;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times createScaledBytes() against the previous compress-and-retry loop over a
+ * corpus of camera-sized images ranging from smooth to noisy, and counts the full
+ * size compressions it needs once its size prediction has been calibrated.
+ */
+public class BitmapUtilBenchmark extends TextSecureTestCase {
+  private static final String TAG = BitmapUtilBenchmark.class.getSimpleName();
+
+  private static final int   WIDTH  = 3264;
+  private static final int   HEIGHT = 2448;
+  private static final int[] NOISE  = {0, 8, 32, 96};
+
+  private Context    context;
+  private List<File> corpus;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    context = getInstrumentation().getTargetContext();
+    corpus  = new LinkedList<>();
+
+    for (int noise : NOISE) {
+      File             file   = new File(context.getCacheDir(), "benchmark-" + noise + ".jpg");
+      Bitmap           bitmap = createSampleImage(noise);
+      FileOutputStream out    = new FileOutputStream(file);
+
+      bitmap.compress(CompressFormat.JPEG, 95, out);
+      out.close();
+      bitmap.recycle();
+
+      corpus.add(file);
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    for (File file : corpus) {
+      file.delete();
+    }
+
+    super.tearDown();
+  }
+
+  public void testCreateScaledBytes() throws Exception {
+    MediaConstraints constraints = MediaConstraints.PUSH_CONSTRAINTS;
+
+    for (int i=0;i<corpus.size();i++) {
+      Uri uri = Uri.fromFile(corpus.get(i));
+
+      long   start  = System.currentTimeMillis();
+      byte[] bytes  = BitmapUtil.createScaledBytes(context, uri, constraints);
+      long   middle = System.currentTimeMillis();
+      byte[] legacy = createScaledBytesLegacy(uri, constraints);
+      long   end    = System.currentTimeMillis();
+
+      assertTrue(bytes.length <= constraints.getImageMaxSize());
+
+      Log.w(TAG, "Noise " + NOISE[i] + ": " +
+                 "adaptive " + (middle - start) + "ms, " + (bytes.length / 1024) + "kb, " +
+                 "legacy " + (end - middle) + "ms, " + (legacy.length / 1024) + "kb");
+    }
+  }
+
+  public void testCompressionAttempts() throws Exception {
+    MediaConstraints constraints = MediaConstraints.PUSH_CONSTRAINTS;
+    int              maxSize     = constraints.getImageMaxSize();
+
+    for (int i=0;i<corpus.size();i++) {
+      Bitmap bitmap = BitmapUtil.createScaledBitmap(context, Uri.fromFile(corpus.get(i)),
+                                                    constraints.getImageMaxWidth(context),
+                                                    constraints.getImageMaxHeight(context));
+
+      try {
+        ByteArrayOutputStream baseline = new ByteArrayOutputStream();
+        bitmap.compress(CompressFormat.JPEG, 80, baseline);
+
+        BitmapUtil.CompressedImage first  = BitmapUtil.compressToFit(bitmap, maxSize);
+        BitmapUtil.CompressedImage second = BitmapUtil.compressToFit(bitmap, maxSize);
+
+        Log.w(TAG, "Noise " + NOISE[i] + ": first " + first.attempts + " attempt(s) at quality " + first.quality +
+                   ", second " + second.attempts + " attempt(s) at quality " + second.quality);
+
+        assertTrue(first.data.length <= maxSize);
+        assertTrue(second.data.length <= maxSize);
+        assertTrue(first.attempts <= 2 || baseline.size() > maxSize);
+
+        if (baseline.size() <= maxSize * 0.9) {
+          assertEquals(1, second.attempts);
+        }
+      } finally {
+        bitmap.recycle();
+      }
+    }
+  }
+
+  private byte[] createScaledBytesLegacy(Uri uri, MediaConstraints constraints) throws Exception {
+    Bitmap bitmap   = BitmapUtil.createScaledBitmap(context, uri,
+                                                    constraints.getImageMaxWidth(context),
+                                                    constraints.getImageMaxHeight(context));
+    int    quality  = 80;
+    int    attempts = 0;
+    byte[] bytes;
+
+    do {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      bitmap.compress(CompressFormat.JPEG, quality, baos);
+      bytes = baos.toByteArray();
+
+      if (quality == 45) break;
+      quality = Math.max((quality * constraints.getImageMaxSize()) / bytes.length, 45);
+    } while (bytes.length > constraints.getImageMaxSize() && attempts++ < 4);
+
+    bitmap.recycle();
+    return bytes;
+  }
+
+  private Bitmap createSampleImage(int noise) {
+    Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    Canvas canvas = new Canvas(bitmap);
+    Paint  paint  = new Paint();
+    Random random = new Random(noise);
+
+    paint.setShader(new LinearGradient(0, 0, WIDTH, HEIGHT, Color.BLUE, Color.YELLOW, Shader.TileMode.CLAMP));
+    canvas.drawRect(0, 0, WIDTH, HEIGHT, paint);
+
+    if (noise > 0) {
+      int[] row = new int[WIDTH];
+
+      for (int y=0;y<HEIGHT;y++) {
+        bitmap.getPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+
+        for (int x=0;x<WIDTH;x++) {
+          int offset = random.nextInt(noise * 2 + 1) - noise;
+          row[x] = Color.rgb(clamp(Color.red(row[x]) + offset),
+                             clamp(Color.green(row[x]) + offset),
+                             clamp(Color.blue(row[x]) + offset));
+        }
+
+        bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1);
+      }
+    }
+
+    return bitmap;
+  }
+
+  private int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+}
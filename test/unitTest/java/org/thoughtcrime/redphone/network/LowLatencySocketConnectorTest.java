@@ -0,0 +1,118 @@
+package org.thoughtcrime.redphone.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LowLatencySocketConnectorTest extends BaseUnitTest {
+
+  private ServerSocket      slowRelay;
+  private ServerSocket      fastRelay;
+  private InetSocketAddress slowAddress;
+  private InetSocketAddress fastAddress;
+  private InetSocketAddress deadAddress;
+  private RelayLatencyTable latencyTable;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+    slowRelay    = new ServerSocket(0, 50, loopback);
+    fastRelay    = new ServerSocket(0, 50, loopback);
+    slowAddress  = new InetSocketAddress(loopback, slowRelay.getLocalPort());
+    fastAddress  = new InetSocketAddress(loopback, fastRelay.getLocalPort());
+    deadAddress  = new InetSocketAddress(loopback, getUnusedPort(loopback));
+    latencyTable = new RelayLatencyTable();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    slowRelay.close();
+    fastRelay.close();
+  }
+
+  @Test public void testConnectsToBestRankedRelay() throws Exception {
+    latencyTable.recordSuccess(slowAddress, 200);
+    latencyTable.recordSuccess(fastAddress, 20);
+
+    Socket socket = LowLatencySocketConnector.connect(new InetSocketAddress[] {slowAddress, fastAddress},
+                                                      latencyTable, 250);
+
+    assertEquals(fastRelay.getLocalPort(), socket.getPort());
+    assertTrue(socket.getChannel().isBlocking());
+    socket.close();
+  }
+
+  @Test public void testFallsBackFromRefusedRelay() throws Exception {
+    latencyTable.recordSuccess(deadAddress, 1);
+
+    Socket socket = LowLatencySocketConnector.connect(new InetSocketAddress[] {deadAddress, slowAddress},
+                                                      latencyTable, 5000);
+
+    assertEquals(slowRelay.getLocalPort(), socket.getPort());
+    assertTrue(latencyTable.isBackingOff(deadAddress));
+    assertEquals(Arrays.asList(slowAddress, deadAddress),
+                 latencyTable.rank(new InetSocketAddress[] {deadAddress, slowAddress}));
+    socket.close();
+  }
+
+  @Test(expected = IOException.class)
+  public void testAllRelaysRefused() throws Exception {
+    LowLatencySocketConnector.connect(new InetSocketAddress[] {deadAddress}, latencyTable, 250);
+  }
+
+  @Test public void testLatencyAverage() {
+    latencyTable.recordSuccess(slowAddress, 100);
+    latencyTable.recordSuccess(slowAddress, 200);
+
+    assertEquals(125, latencyTable.getAverageMillis(slowAddress), 0.001);
+    assertEquals(-1, latencyTable.getAverageMillis(fastAddress), 0.001);
+  }
+
+  @Test public void testRankingPrefersMeasuredRelays() {
+    latencyTable.recordSuccess(slowAddress, 900);
+
+    assertEquals(Arrays.asList(slowAddress, fastAddress),
+                 latencyTable.rank(new InetSocketAddress[] {fastAddress, slowAddress}));
+
+    latencyTable.recordFailure(slowAddress);
+
+    assertTrue(latencyTable.isBackingOff(slowAddress));
+    assertEquals(Arrays.asList(fastAddress, slowAddress),
+                 latencyTable.rank(new InetSocketAddress[] {slowAddress, fastAddress}));
+
+    latencyTable.recordSuccess(slowAddress, 900);
+
+    assertFalse(latencyTable.isBackingOff(slowAddress));
+  }
+
+  @Test public void testDnsCache() throws Exception {
+    DnsCache cache = new DnsCache(60 * 1000);
+
+    assertSame(cache.resolve("localhost"), cache.resolve("localhost"));
+  }
+
+  private static int getUnusedPort(InetAddress address) throws IOException {
+    ServerSocket socket = new ServerSocket(0, 1, address);
+    int          port   = socket.getLocalPort();
+
+    socket.close();
+    return port;
+  }
+}
@@ -0,0 +1,213 @@
+package org.thoughtcrime.securesms.audio;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioAttachmentServerTest extends BaseUnitTest {
+
+  private static final int SIZE = 100 * 1024 + 7;
+
+  private byte[]                data;
+  private AudioAttachmentServer server;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    data = new byte[SIZE];
+    new Random(SIZE).nextBytes(data);
+
+    server = new AudioAttachmentServer(new AudioAttachmentServer.AttachmentSource() {
+      @Override
+      public @NonNull InputStream getStream() throws IOException {
+        return new ByteArrayInputStream(data);
+      }
+
+      @Override
+      public long getSize() {
+        return data.length;
+      }
+
+      @Override
+      public @NonNull String getContentType() {
+        return "audio/aac";
+      }
+    });
+
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test public void testFullRequest() throws Exception {
+    Response response = request(server.getPath(), null);
+
+    assertEquals(200, response.status);
+    assertEquals(String.valueOf(SIZE), response.getHeader("Content-Length"));
+    assertNull(response.getHeader("Content-Range"));
+    assertArrayEquals(data, response.body);
+  }
+
+  @Test public void testClosedRange() throws Exception {
+    Response response = request(server.getPath(), "bytes=100-199");
+
+    assertEquals(206, response.status);
+    assertEquals("bytes 100-199/" + SIZE, response.getHeader("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(data, 100, 200), response.body);
+  }
+
+  @Test public void testOpenRange() throws Exception {
+    Response response = request(server.getPath(), "bytes=65536-");
+
+    assertEquals(206, response.status);
+    assertEquals("bytes 65536-" + (SIZE - 1) + "/" + SIZE, response.getHeader("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(data, 65536, SIZE), response.body);
+  }
+
+  @Test public void testSuffixRange() throws Exception {
+    Response response = request(server.getPath(), "bytes=-500");
+
+    assertEquals(206, response.status);
+    assertArrayEquals(Arrays.copyOfRange(data, SIZE - 500, SIZE), response.body);
+  }
+
+  @Test public void testRangePastEnd() throws Exception {
+    Response response = request(server.getPath(), "bytes=" + (SIZE - 10) + "-" + (SIZE * 2));
+
+    assertEquals(206, response.status);
+    assertArrayEquals(Arrays.copyOfRange(data, SIZE - 10, SIZE), response.body);
+  }
+
+  @Test public void testUnsatisfiableRange() throws Exception {
+    Response response = request(server.getPath(), "bytes=" + SIZE + "-");
+
+    assertEquals(416, response.status);
+    assertEquals("bytes */" + SIZE, response.getHeader("Content-Range"));
+    assertEquals(0, response.body.length);
+  }
+
+  @Test public void testBadAuth() throws Exception {
+    Response response = request("/0000000000000000", null);
+
+    assertEquals(-1, response.status);
+  }
+
+  @Test public void testConcurrentRequests() throws Exception {
+    ExecutorService       executor = Executors.newFixedThreadPool(4);
+    List<Future<Boolean>> results  = new LinkedList<>();
+
+    for (int i=0;i<16;i++) {
+      final int start = i * 4096;
+
+      results.add(executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          Response response = request(server.getPath(), "bytes=" + start + "-");
+          return response.status == 206 &&
+                 Arrays.equals(Arrays.copyOfRange(data, start, SIZE), response.body);
+        }
+      }));
+    }
+
+    for (Future<Boolean> result : results) {
+      assertTrue(result.get());
+    }
+
+    executor.shutdown();
+  }
+
+  @Test public void testParseRange() {
+    assertArrayEquals(new long[] {0, 99},  AudioAttachmentServer.parseRange(null, 100));
+    assertArrayEquals(new long[] {0, 99},  AudioAttachmentServer.parseRange("bytes=0-", 100));
+    assertArrayEquals(new long[] {10, 19}, AudioAttachmentServer.parseRange("bytes=10-19", 100));
+    assertArrayEquals(new long[] {90, 99}, AudioAttachmentServer.parseRange("bytes=-10", 100));
+    assertArrayEquals(new long[] {0, 99},  AudioAttachmentServer.parseRange("bytes=-1000", 100));
+    assertArrayEquals(new long[] {0, 99},  AudioAttachmentServer.parseRange("bytes=abc", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=100-", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=20-10", 100));
+    assertNull(AudioAttachmentServer.parseRange("bytes=-0", 100));
+  }
+
+  private Response request(String path, String range) throws IOException {
+    Socket socket = new Socket("127.0.0.1", server.getPort());
+
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET " + path + " HTTP/1.1\r\n" +
+                 "Host: 127.0.0.1\r\n" +
+                 (range != null ? "Range: " + range + "\r\n" : "") +
+                 "\r\n").getBytes());
+      out.flush();
+
+      return Response.parse(Util.readFully(socket.getInputStream()));
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static class Response {
+    private int          status  = -1;
+    private List<String> headers = new LinkedList<>();
+    private byte[]       body    = new byte[0];
+
+    private static Response parse(byte[] raw) throws IOException {
+      Response response = new Response();
+      int      end      = -1;
+
+      for (int i=0;i+3<raw.length;i++) {
+        if (raw[i] == '\r' && raw[i + 1] == '\n' && raw[i + 2] == '\r' && raw[i + 3] == '\n') {
+          end = i;
+          break;
+        }
+      }
+
+      if (end == -1) return response;
+
+      String[] lines = new String(raw, 0, end, "ISO-8859-1").split("\r\n");
+
+      response.status = Integer.parseInt(lines[0].split(" ")[1]);
+      response.headers.addAll(Arrays.asList(lines).subList(1, lines.length));
+      response.body   = Arrays.copyOfRange(raw, end + 4, raw.length);
+
+      return response;
+    }
+
+    private String getHeader(String name) {
+      for (String header : headers) {
+        if (header.toLowerCase().startsWith(name.toLowerCase() + ":")) {
+          return header.substring(name.length() + 1).trim();
+        }
+      }
+
+      return null;
+    }
+  }
+}
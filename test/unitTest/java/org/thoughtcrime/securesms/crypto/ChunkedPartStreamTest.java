@@ -0,0 +1,94 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@PowerMockIgnore("javax.crypto.*")
+public class ChunkedPartStreamTest extends BaseUnitTest {
+
+  private static final int CHUNK_SIZE = 4096;
+
+  @Test public void testRoundTrip() throws Exception {
+    for (int size : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, CHUNK_SIZE * 10 + 7}) {
+      byte[] data = randomBytes(size);
+      File   file = encrypt(data);
+
+      assertArrayEquals(data, Util.readFully(new ChunkedDecryptingPartInputStream(file, masterSecret)));
+      file.delete();
+    }
+  }
+
+  @Test public void testSkip() throws Exception {
+    byte[] data = randomBytes(CHUNK_SIZE * 10 + 7);
+    File   file = encrypt(data);
+
+    for (int offset : new int[] {0, 1, CHUNK_SIZE, CHUNK_SIZE * 3 + 5, data.length - 1, data.length}) {
+      InputStream in = new ChunkedDecryptingPartInputStream(file, masterSecret);
+
+      assertEquals(offset, in.skip(offset));
+      assertArrayEquals(Arrays.copyOfRange(data, offset, data.length), Util.readFully(in));
+    }
+
+    file.delete();
+  }
+
+  @Test(expected = IOException.class)
+  public void testTamperedChunk() throws Exception {
+    File file = encrypt(randomBytes(CHUNK_SIZE * 4));
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(CHUNK_SIZE * 2);
+    raf.write(raf.read() ^ 0x01);
+    raf.close();
+
+    try {
+      Util.readFully(new ChunkedDecryptingPartInputStream(file, masterSecret));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedAtChunkBoundary() throws Exception {
+    File file = encrypt(randomBytes(CHUNK_SIZE * 4));
+
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(ChunkedPartCipher.HEADER_LENGTH + 2 * ChunkedPartCipher.getEncryptedChunkLength(CHUNK_SIZE));
+    raf.close();
+
+    try {
+      Util.readFully(new ChunkedDecryptingPartInputStream(file, masterSecret));
+    } finally {
+      file.delete();
+    }
+  }
+
+  private File encrypt(byte[] data) throws IOException {
+    File         file = File.createTempFile("part", ".chunk");
+    OutputStream out  = new ChunkedEncryptingPartOutputStream(file, masterSecret, CHUNK_SIZE);
+
+    out.write(data);
+    out.close();
+
+    return file;
+  }
+
+  private byte[] randomBytes(int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return data;
+  }
+}
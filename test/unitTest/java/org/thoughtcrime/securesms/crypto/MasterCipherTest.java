@@ -6,6 +6,8 @@ import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.thoughtcrime.securesms.BaseUnitTest;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import static org.junit.Assert.assertEquals;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +23,13 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test
+  public void testRoundTripAfterClearingCachedState() throws Exception {
+    String encrypted = masterCipher.encryptBody("hello");
+
+    MasterCipher.clearCachedState();
+
+    assertEquals("hello", masterCipher.decryptBody(encrypted));
+  }
 }
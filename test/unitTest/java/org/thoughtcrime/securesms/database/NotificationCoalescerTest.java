@@ -0,0 +1,71 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+public class NotificationCoalescerTest extends BaseUnitTest {
+
+  private static final int UPDATES = 20;
+
+  private ContentResolver       contentResolver;
+  private NotificationCoalescer coalescer;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    contentResolver = mock(ContentResolver.class);
+    when(context.getContentResolver()).thenReturn(contentResolver);
+
+    coalescer = new NotificationCoalescer(context);
+  }
+
+  @Test public void testRapidUpdatesProduceOneNotification() throws Exception {
+    Uri uri = mock(Uri.class);
+
+    for (int i=0;i<UPDATES;i++) {
+      coalescer.notifyChange(uri);
+    }
+
+    verify(contentResolver, timeout(1000)).notifyChange(eq(uri), any(ContentObserver.class));
+    Thread.sleep(NotificationCoalescer.DEBOUNCE_MILLIS * 2);
+    verify(contentResolver).notifyChange(eq(uri), any(ContentObserver.class));
+
+    assertEquals(UPDATES, coalescer.getRequestedCount());
+    assertEquals(1, coalescer.getDeliveredCount());
+    assertEquals(UPDATES - 1, coalescer.getCoalescedCount());
+  }
+
+  @Test public void testTransactionHoldsNotificationsUntilCommit() throws Exception {
+    Uri uri = mock(Uri.class);
+
+    coalescer.getTransactionListener().onBegin();
+
+    for (int i=0;i<UPDATES;i++) {
+      coalescer.notifyChange(uri);
+    }
+
+    Thread.sleep(NotificationCoalescer.DEBOUNCE_MILLIS * 2);
+    verify(contentResolver, never()).notifyChange(any(Uri.class), any(ContentObserver.class));
+
+    coalescer.getTransactionListener().onCommit();
+
+    verify(contentResolver, timeout(1000)).notifyChange(eq(uri), any(ContentObserver.class));
+    assertEquals(1, coalescer.getDeliveredCount());
+  }
+}
@@ -0,0 +1,58 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlaintextCacheTest extends BaseUnitTest {
+
+  @Test public void testHitRequiresMatchingCiphertext() {
+    PlaintextCache cache = new PlaintextCache(4096);
+
+    cache.put(1, "ciphertext-a", "hello");
+
+    assertEquals("hello", cache.get(1, "ciphertext-a"));
+    assertNull(cache.get(1, "ciphertext-b"));
+    assertNull(cache.get(2, "ciphertext-a"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test public void testHashCollisionIsAMiss() {
+    PlaintextCache cache = new PlaintextCache(4096);
+
+    assertEquals("ciphertext-Aa".hashCode(), "ciphertext-BB".hashCode());
+
+    cache.put(1, "ciphertext-Aa", "hello");
+
+    assertNull(cache.get(1, "ciphertext-BB"));
+    assertEquals("hello", cache.get(1, new String("ciphertext-Aa")));
+  }
+
+  @Test public void testEvictsToByteBudget() {
+    PlaintextCache cache = new PlaintextCache(1024);
+    String         body  = "0123456789012345678901234567890123456789";
+
+    for (int i=0;i<20;i++) {
+      cache.put(i, "ciphertext" + i, body);
+      assertTrue(cache.getSize() <= 1024);
+    }
+
+    assertNull(cache.get(0, "ciphertext0"));
+    assertEquals(body, cache.get(19, "ciphertext19"));
+    assertTrue(cache.getEvictionCount() > 0);
+  }
+
+  @Test public void testClearDropsEverything() {
+    PlaintextCache cache = new PlaintextCache(4096);
+
+    cache.put(1, "ciphertext", "hello");
+    cache.clear();
+
+    assertNull(cache.get(1, "ciphertext"));
+    assertEquals(0, cache.getSize());
+  }
+}
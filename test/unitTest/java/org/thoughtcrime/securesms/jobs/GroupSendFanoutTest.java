@@ -0,0 +1,133 @@
+package org.thoughtcrime.securesms.jobs;
+
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.SignalServiceMessageSender;
+import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class GroupSendFanoutTest extends BaseUnitTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(GroupSendFanout.MAX_PARALLELISM);
+
+  @Test public void testSendsToEveryRecipient() throws Exception {
+    SignalServiceMessageSender sender    = mock(SignalServiceMessageSender.class);
+    List<SignalServiceAddress> addresses = getAddresses(50);
+    RecordingListener          listener  = new RecordingListener();
+
+    GroupSendFanout.Result result = new GroupSendFanout(sender, executor).send(addresses, getMessage(), listener);
+
+    verify(sender, times(50)).sendMessage(any(SignalServiceAddress.class), any(SignalServiceDataMessage.class));
+    assertTrue(result.isSuccess());
+    assertEquals(50, result.getDeliveredCount());
+    assertEquals(50, listener.delivered.size());
+  }
+
+  @Test public void testReportsFailuresPerRecipient() throws Exception {
+    SignalServiceMessageSender sender    = mock(SignalServiceMessageSender.class);
+    List<SignalServiceAddress> addresses = getAddresses(10);
+    RecordingListener          listener  = new RecordingListener();
+
+    doThrow(new PushNetworkException("network")).when(sender).sendMessage(argThat(new AddressMatcher("+14155550001")), any(SignalServiceDataMessage.class));
+    doThrow(new UntrustedIdentityException("untrusted", "+14155550002", null)).when(sender).sendMessage(argThat(new AddressMatcher("+14155550002")), any(SignalServiceDataMessage.class));
+    doThrow(new UnregisteredUserException("+14155550003", new IOException())).when(sender).sendMessage(argThat(new AddressMatcher("+14155550003")), any(SignalServiceDataMessage.class));
+
+    GroupSendFanout.Result result = new GroupSendFanout(sender, executor).send(addresses, getMessage(), listener);
+
+    assertFalse(result.isSuccess());
+    assertEquals(7, result.getDeliveredCount());
+    assertEquals(1, result.getNetworkFailureCount());
+    assertEquals(1, result.getUntrustedIdentityCount());
+    assertEquals(1, result.getUnregisteredCount());
+
+    assertEquals(Collections.singleton("+14155550001"), listener.networkFailures);
+    assertEquals(Collections.singleton("+14155550002"), listener.untrusted);
+    assertEquals(8, listener.delivered.size());
+    assertTrue(listener.delivered.contains("+14155550003"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testListenerFailureIsRetryable() throws Exception {
+    SignalServiceMessageSender sender   = mock(SignalServiceMessageSender.class);
+    RecordingListener          listener = new RecordingListener() {
+      @Override
+      public void onDelivered(SignalServiceAddress address) {
+        throw new IllegalStateException("database");
+      }
+    };
+
+    new GroupSendFanout(sender, executor).send(getAddresses(5), getMessage(), listener);
+  }
+
+  private List<SignalServiceAddress> getAddresses(int count) {
+    List<SignalServiceAddress> addresses = new LinkedList<>();
+
+    for (int i=0;i<count;i++) {
+      addresses.add(new SignalServiceAddress(String.format("+1415555%04d", i), Optional.<String>absent()));
+    }
+
+    return addresses;
+  }
+
+  private SignalServiceDataMessage getMessage() {
+    return SignalServiceDataMessage.newBuilder().withBody("hello").build();
+  }
+
+  private static class RecordingListener implements GroupSendFanout.Listener {
+    private final Set<String> delivered       = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> networkFailures = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> untrusted       = Collections.synchronizedSet(new HashSet<String>());
+
+    @Override
+    public void onDelivered(SignalServiceAddress address) {
+      delivered.add(address.getNumber());
+    }
+
+    @Override
+    public void onNetworkFailure(SignalServiceAddress address, IOException exception) {
+      networkFailures.add(address.getNumber());
+    }
+
+    @Override
+    public void onUntrustedIdentity(SignalServiceAddress address, UntrustedIdentityException exception) {
+      untrusted.add(address.getNumber());
+    }
+  }
+
+  private static class AddressMatcher extends ArgumentMatcher<SignalServiceAddress> {
+    private final String number;
+
+    private AddressMatcher(String number) {
+      this.number = number;
+    }
+
+    @Override
+    public boolean matches(Object argument) {
+      return argument != null && number.equals(((SignalServiceAddress)argument).getNumber());
+    }
+  }
+}
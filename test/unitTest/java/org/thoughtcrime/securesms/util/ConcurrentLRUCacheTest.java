@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentLRUCacheTest extends BaseUnitTest {
+
+  @Test public void testEvictsLeastRecentlyUsed() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    for (int i=0;i<10;i++) {
+      cache.put(i, String.valueOf(i));
+    }
+
+    assertNotNull(cache.get(0));
+
+    for (int i=10;i<18;i++) {
+      cache.put(i, String.valueOf(i));
+    }
+
+    assertTrue(cache.size() <= 11);
+    assertNotNull(cache.get(0));
+    assertNull(cache.get(1));
+    assertNotNull(cache.get(17));
+  }
+
+  @Test public void testHitMissCounters() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    cache.put(1, "1");
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test public void testRemove() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    cache.put(1, "1");
+    assertEquals("1", cache.remove(1));
+    assertNull(cache.get(1));
+  }
+}
@@ -0,0 +1,175 @@
+package ws.com.google.android.mms.pdu;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.util.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The expected pdus were made by the composer before it sized messages
+ * ahead of writing them, which must not change a single byte.
+ */
+public class PduComposerTest extends BaseUnitTest {
+
+  private static final String SEND_REQ_HEADERS =
+      "8c8098543135323462643761366536008d9285045705d500891a8018ea2b31353535353535303130" +
+      "302f545950453d504c4d4e009718ea2b31353535353535303130312f545950453d504c4d4e009713" +
+      "ea616c696365406578616d706c652e636f6d008214ea31302e302e302e312f545950453d49505634" +
+      "009608ea50686f746f73008a8088058103093a808f81868090818415b38a3c746578743e00897465" +
+      "78742f706c61696e0002210b0d8385746578742e7478740081eac0223c746578743e008e74657874" +
+      "2e7478740048656c6c6f20776f726c642281480c9e85696d6167652e6a706700c0223c696d616765" +
+      "3e008e696d6167652e6a706700";
+
+  private static final String LONG_PART_HEADERS =
+      "8c80985431008d928901819718ea2b31353535353535303130312f545950453d504c4d4e00840cb3" +
+      "89766964656f2f6d7034000136819c201f34766964656f2f6d70340085612d766964656f2d776974" +
+      "682d612d7261746865722d6c6f6e672d66696c652d6e616d652e6d703400";
+
+  private static final String EMPTY_SEND_REQ =
+      "8c80985432008d928901819718ea2b31353535353535303130312f545950453d504c4d4e0084b300";
+
+  private static final String NOTIFY_RESP_IND = "8c83985433008d929581";
+  private static final String ACKNOWLEDGE_IND = "8c85985434008d929180";
+
+  private static final String READ_REC_IND =
+      "8c878d928b4d31009718ea2b31353535353535303130312f545950453d504c4d4e00891a8018ea2b" +
+      "31353535353535303130302f545950453d504c4d4e0085045705d5009b80";
+
+  @Test public void testSendReq() throws Exception {
+    byte[] data = createData(200);
+
+    assertArrayEquals(concat(Hex.fromStringCondensed(SEND_REQ_HEADERS), data),
+                      new PduComposer(context, createSendReq(data)).make());
+  }
+
+  @Test public void testLongSections() throws Exception {
+    byte[]  data  = createData(20000);
+    PduPart video = new PduPart();
+    PduBody body  = new PduBody();
+
+    video.setContentType("video/mp4".getBytes());
+    video.setFilename("a-video-with-a-rather-long-file-name.mp4".getBytes());
+    video.setData(data);
+    body.addPart(video);
+
+    SendReq request = new SendReq();
+    request.setTransactionId("T1".getBytes());
+    request.addTo(new EncodedStringValue("+15555550101"));
+    request.setBody(body);
+
+    assertArrayEquals(concat(Hex.fromStringCondensed(LONG_PART_HEADERS), data),
+                      new PduComposer(context, request).make());
+  }
+
+  @Test public void testEmptySendReq() throws Exception {
+    SendReq request = new SendReq();
+    request.setTransactionId("T2".getBytes());
+    request.addTo(new EncodedStringValue("+15555550101"));
+
+    assertArrayEquals(Hex.fromStringCondensed(EMPTY_SEND_REQ),
+                      new PduComposer(context, request).make());
+  }
+
+  @Test public void testNotifyRespInd() throws Exception {
+    NotifyRespInd notifyResp = new NotifyRespInd(PduHeaders.CURRENT_MMS_VERSION, "T3".getBytes(),
+                                                 PduHeaders.STATUS_RETRIEVED);
+
+    assertArrayEquals(Hex.fromStringCondensed(NOTIFY_RESP_IND),
+                      new PduComposer(context, notifyResp).make());
+  }
+
+  @Test public void testAcknowledgeInd() throws Exception {
+    AcknowledgeInd acknowledge = new AcknowledgeInd(PduHeaders.CURRENT_MMS_VERSION, "T4".getBytes());
+    acknowledge.setReportAllowed(PduHeaders.VALUE_YES);
+
+    assertArrayEquals(Hex.fromStringCondensed(ACKNOWLEDGE_IND),
+                      new PduComposer(context, acknowledge).make());
+  }
+
+  @Test public void testReadRecInd() throws Exception {
+    ReadRecInd readRec = new ReadRecInd(new EncodedStringValue("+15555550100"), "M1".getBytes(),
+                                        PduHeaders.CURRENT_MMS_VERSION, PduHeaders.READ_STATUS_READ,
+                                        new EncodedStringValue[] {new EncodedStringValue("+15555550101")});
+    readRec.setDate(1460000000L);
+
+    assertArrayEquals(Hex.fromStringCondensed(READ_REC_IND),
+                      new PduComposer(context, readRec).make());
+  }
+
+  @Test public void testMakeToStream() throws Exception {
+    byte[]                data = createData(200);
+    ByteArrayOutputStream out  = new ByteArrayOutputStream();
+
+    assertTrue(new PduComposer(context, createSendReq(data)).make(out));
+    assertArrayEquals(concat(Hex.fromStringCondensed(SEND_REQ_HEADERS), data), out.toByteArray());
+  }
+
+  @Test public void testInvalidPdu() throws Exception {
+    SendReq request = new SendReq();
+    request.setTransactionId("T5".getBytes());
+    request.addTo(new EncodedStringValue("+15555550101"));
+    request.setContentType("application/x-unknown".getBytes());
+
+    assertNull(new PduComposer(context, request).make());
+  }
+
+  private SendReq createSendReq(byte[] imageData) throws Exception {
+    PduBody body  = new PduBody();
+    PduPart text  = new PduPart();
+    PduPart image = new PduPart();
+
+    text.setContentType("text/plain".getBytes());
+    text.setCharset(CharacterSets.UTF_8);
+    text.setContentId("text".getBytes());
+    text.setContentLocation("text.txt".getBytes());
+    text.setData("Hello world".getBytes());
+    body.addPart(text);
+
+    image.setContentType("image/jpeg".getBytes());
+    image.setName("image.jpg".getBytes());
+    image.setContentId("<image>".getBytes());
+    image.setContentLocation("image.jpg".getBytes());
+    image.setData(imageData);
+    body.addPart(image);
+
+    SendReq request = new SendReq();
+    request.setTransactionId("T1524bd7a6e6".getBytes());
+    request.setFrom(new EncodedStringValue("+15555550100"));
+    request.addTo(new EncodedStringValue("+15555550101"));
+    request.addTo(new EncodedStringValue("alice@example.com"));
+    request.addCc(new EncodedStringValue("10.0.0.1"));
+    request.setSubject(new EncodedStringValue(CharacterSets.UTF_8, "Photos".getBytes()));
+    request.setDate(1460000000L);
+    request.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+    request.setExpiry(604800L);
+    request.setPriority(PduHeaders.PRIORITY_NORMAL);
+    request.setDeliveryReport(PduHeaders.VALUE_YES);
+    request.setReadReport(PduHeaders.VALUE_NO);
+    request.setBody(body);
+
+    return request;
+  }
+
+  private static byte[] createData(int length) {
+    byte[] data = new byte[length];
+
+    for (int i=0;i<length;i++) {
+      data[i] = (byte)(i * 31);
+    }
+
+    return data;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(first);
+    out.write(second);
+    return out.toByteArray();
+  }
+}